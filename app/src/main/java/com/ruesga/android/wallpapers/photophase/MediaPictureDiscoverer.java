@@ -18,14 +18,20 @@ package com.ruesga.android.wallpapers.photophase;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.AsyncTask.Status;
+import android.os.SystemClock;
 import android.provider.MediaStore;
+import android.support.v4.util.LongSparseArray;
 import android.util.Log;
 
+import com.ruesga.android.wallpapers.photophase.MediaPictureIndex.OnPictureIndexedListener;
+import com.ruesga.android.wallpapers.photophase.preferences.PathSetStore;
 import com.ruesga.android.wallpapers.photophase.preferences.PreferencesProvider.Preferences;
+import com.ruesga.android.wallpapers.photophase.utils.PipelineStats;
+import com.ruesga.android.wallpapers.photophase.utils.PipelineStats.Stage;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -36,7 +42,9 @@ import java.util.Set;
 
 /**
  * A class that load asynchronously the paths of all media stored in the device.
- * This class only seek at the specified paths
+ * This class only seek at the specified paths. The MediaStore is read through a
+ * persistent {@link MediaPictureIndex}, which is only synced when the MediaStore notifies
+ * a change, and the listener receives the changes since the previous discovery.
  */
 public class MediaPictureDiscoverer {
 
@@ -45,6 +53,11 @@ public class MediaPictureDiscoverer {
     private static final boolean DEBUG = false;
 
     private static final String[] PROJECTION = {MediaStore.MediaColumns.DATA};
+    private static final String ALBUM_SORT = MediaStore.MediaColumns.DATA + " ASC";
+
+    // Partial data is handed to the listener in batches of this size or age (in millis)
+    private static final int PARTIAL_BATCH_SIZE = 64;
+    private static final long PARTIAL_BATCH_TIME = 250L;
 
     /**
      * An interface that is called when new data is ready.
@@ -57,31 +70,56 @@ public class MediaPictureDiscoverer {
          */
         void onStartMediaDiscovered(boolean userRequest);
         /**
-         * Called when the all the data is ready
+         * Called when the all the data is ready, with the changes since the previous
+         * discovery (the first discovery reports all the images as added)
          *
-         * @param images All the images paths found
+         * @param added The images paths added
+         * @param removed The images paths removed
          * @param userRequest If the user requested this media discovery
          */
-        void onEndMediaDiscovered(File[] images, boolean userRequest);
+        void onEndMediaDiscovered(File[] added, File[] removed, boolean userRequest);
         /**
-         * Called when the partial data is ready
+         * Called when the partial data is ready. Only notified while the images are read
+         * for the first time; the partial images are also reported as added at the end.
+         * Unlike the other callbacks, it's invoked from the discovery thread.
          *
-         * @param images All the images paths found
+         * @param images Some of the images paths found
          * @param userRequest If the user requested this media discovery
          */
         void onPartialMediaDiscovered(File[] images, boolean userRequest);
     }
 
+    /**
+     * An album seen by a discovery. The albums are found by their bucket ids, which are
+     * hashes of their paths, so the albums with the same id are chained.
+     */
+    private static class Album {
+        String mPath;
+        boolean mSelected;
+        Album mNext;
+    }
+
+    /**
+     * The result of a discovery
+     */
+    private static class DiscoveryResult {
+        Set<File> mImages;
+        File[] mAdded;
+        File[] mRemoved;
+    }
+
     /**
      * The asynchronous task for query the MediaStore
      */
-    private class AsyncDiscoverTask extends AsyncTask<Void, File, List<File>> {
+    private class AsyncDiscoverTask extends AsyncTask<Void, Void, DiscoveryResult> {
 
         private final ContentResolver mFinalContentResolver;
         private final OnMediaPictureDiscoveredListener mFinalCallback;
-        private final Set<String> mFilter;
-        private final Set<String> mLastAlbums;
+        private final PathSetStore mFilter;
+        private final PathSetStore mLastAlbums;
+        private final Set<String> mSelectedAlbums;
         private final Set<String> mNewAlbums;
+        private final LongSparseArray<Album> mAlbums;
         private final boolean mIsAutoSelectNewAlbums;
         private final boolean mUserRequest;
 
@@ -97,10 +135,12 @@ public class MediaPictureDiscoverer {
             super();
             mFinalContentResolver = cr;
             mFinalCallback = cb;
-            mFilter = Preferences.Media.getSelectedMedia(mContext);
-            mLastAlbums = Preferences.Media.getLastDiscorevedAlbums(mContext);
+            mFilter = Preferences.Media.getSelectedMediaStore(mContext);
+            mLastAlbums = Preferences.Media.getLastDiscoveredAlbumsStore(mContext);
             mIsAutoSelectNewAlbums = Preferences.Media.isAutoSelectNewAlbums(mContext);
+            mSelectedAlbums = new HashSet<>();
             mNewAlbums = new HashSet<>();
+            mAlbums = new LongSparseArray<>();
             mUserRequest = userRequest;
         }
 
@@ -108,18 +148,13 @@ public class MediaPictureDiscoverer {
          * {@inheritDoc}
          */
         @Override
-        protected List<File> doInBackground(Void...params) {
+        protected DiscoveryResult doInBackground(Void...params) {
             try {
                 // Start progress
                 publishProgress();
 
-                // Query external content
-                List<File> paths =
-                        getPictures(
-                                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                                PROJECTION,
-                                null,
-                                null);
+                // Update the index with the changes of the MediaStore
+                List<File> paths = getPictures();
                 if (DEBUG) {
                     int cc = paths.size();
                     Log.v(TAG, "Pictures found (" + cc + "):");
@@ -127,17 +162,17 @@ public class MediaPictureDiscoverer {
                         Log.v(TAG, "\t" + paths.get(i));
                     }
                 }
-                return paths;
+                return diff(paths);
 
             } catch (Exception e) {
                 Log.e(TAG, "AsyncDiscoverTask failed.", e);
 
                 // Return and empty list
-                return new ArrayList<>();
+                return diff(new ArrayList<File>());
             } finally {
-                // Save the filter (could have new albums)
-                Preferences.Media.setSelectedMedia(mContext, mFilter);
-                Preferences.Media.setLastDiscorevedAlbums(mContext, mNewAlbums);
+                // Save the filter (could have new albums). Only the changes are written
+                mFilter.addAll(mSelectedAlbums);
+                mLastAlbums.set(mNewAlbums);
             }
         }
 
@@ -145,13 +180,9 @@ public class MediaPictureDiscoverer {
          * {@inheritDoc}
          */
         @Override
-        protected void onProgressUpdate(File... values) {
+        protected void onProgressUpdate(Void... values) {
             if (mFinalCallback != null) {
-                if (values == null || values.length == 0) {
-                    mFinalCallback.onStartMediaDiscovered(mUserRequest);
-                } else {
-                    mFinalCallback.onPartialMediaDiscovered(values, mUserRequest);
-                }
+                mFinalCallback.onStartMediaDiscovered(mUserRequest);
             }
         }
 
@@ -159,9 +190,11 @@ public class MediaPictureDiscoverer {
          * {@inheritDoc}
          */
         @Override
-        protected void onPostExecute(List<File> result) {
+        protected void onPostExecute(DiscoveryResult result) {
+            mLastImages = result.mImages;
             if (mFinalCallback != null) {
-                mFinalCallback.onEndMediaDiscovered(result.toArray(new File[result.size()]), mUserRequest);
+                mFinalCallback.onEndMediaDiscovered(
+                        result.mAdded, result.mRemoved, mUserRequest);
             }
         }
 
@@ -169,88 +202,135 @@ public class MediaPictureDiscoverer {
          * {@inheritDoc}
          */
         @Override
-        protected void onCancelled(List<File> result) {
-            // Nothing found
+        protected void onCancelled(DiscoveryResult result) {
+            // Nothing changed
             if (mFinalCallback != null) {
                 // Overwrite the user request setting. If the task is cancelled then
                 // there is no notification to send to the user
-                mFinalCallback.onEndMediaDiscovered(new File[]{}, false);
+                mFinalCallback.onEndMediaDiscovered(new File[0], new File[0], false);
             }
         }
 
         /**
-         * Method that return all the media store pictures for the content uri
+         * Method that return all the pictures of the index that match the filter
          *
-         * @param uri The content uri where to search
-         * @param projection The field data to return
-         * @param where A filter
-         * @param args The filter arguments
          * @return List<File> The pictures found
          */
-        private List<File> getPictures(
-                Uri uri, String[] projection, String where, String[] args) {
+        private List<File> getPictures() {
             long start = System.currentTimeMillis();
-            List<File> paths = new ArrayList<>();
-            List<File> partial = new ArrayList<>();
-            String sort = projection[0] + " ASC";
-            Cursor c = mFinalContentResolver.query(uri, projection, where, args, sort);
-            if (c != null) {
-                try {
-                    int i = 0;
-                    while (c.moveToNext()) {
-                        // Only valid files (those i can read)
-                        String p = c.getString(0);
-                        if (p != null) {
-                            File f = new File(p);
-                            catalog(f);
-
-                            // Check if is a valid filter
-                            if (matchFilter(f)) {
-                                paths.add(f);
-                                partial.add(f);
+            final long scanStart = PipelineStats.start();
+
+            // Stream partial data to the listener while the pictures are read for the
+            // first time
+            if (mLastImages.isEmpty() && mFinalCallback != null) {
+                final List<File> partial = new ArrayList<>(PARTIAL_BATCH_SIZE);
+                final long[] lastPublished = {SystemClock.uptimeMillis()};
+                mIndex.sync(mFinalContentResolver, new OnPictureIndexedListener() {
+                    @Override
+                    public void onPictureIndexed(String path, long bucketId) {
+                        if (!isCancelled() && matchFilter(path, bucketId)) {
+                            partial.add(new File(path));
+                            long now = SystemClock.uptimeMillis();
+                            if (partial.size() >= PARTIAL_BATCH_SIZE
+                                    || now - lastPublished[0] >= PARTIAL_BATCH_TIME) {
+                                publishPartial(partial);
+                                lastPublished[0] = now;
                             }
                         }
-
-                        // Publish partial data
-                        if (i % 5 == 0 && partial.size() > 0) {
-                            publishProgress(partial.toArray(new File[partial.size()]));
-                            partial.clear();
-                        }
-                        i++;
                     }
-                } finally {
-                    try {
-                        c.close();
-                    } catch (Exception e) {
-                        // Ignore: handle exception
+                });
+                publishPartial(partial);
+            } else {
+                mIndex.sync(mFinalContentResolver, null);
+            }
+
+            final List<File> paths = new ArrayList<>();
+            mIndex.visit(new OnPictureIndexedListener() {
+                @Override
+                public void onPictureIndexed(String path, long bucketId) {
+                    // Check if is a valid filter
+                    if (matchFilter(path, bucketId)) {
+                        paths.add(new File(path));
                     }
                 }
-            }
+            });
+            Collections.sort(paths);
             long end = System.currentTimeMillis();
+            PipelineStats.record(Stage.SCAN, scanStart);
             if (DEBUG) Log.v(TAG, "Media reloaded in " + (end - start) + " milliseconds");
             return paths;
         }
 
         /**
-         * Method that checks if the picture match the preferences filter
+         * Method that hands a batch of partial data to the listener, directly from the
+         * discovery thread
          *
-         * @param picture The picture to check
-         * @return boolean whether the picture match the filter
+         * @param partial The batch of pictures (it's emptied)
          */
-        private boolean matchFilter(File picture) {
-            return mFilter.contains(picture.getAbsolutePath()) ||
-                    mFilter.contains(picture.getParentFile().getAbsolutePath());
+        private void publishPartial(List<File> partial) {
+            if (!partial.isEmpty() && !isCancelled()) {
+                mFinalCallback.onPartialMediaDiscovered(
+                        partial.toArray(new File[partial.size()]), mUserRequest);
+            }
+            partial.clear();
         }
 
         /**
-         * Method that catalog the file (set its album and determine if is a new album)
+         * Method that computes the changes of the pictures since the previous discovery
          *
-         * @param f The file to catalog
+         * @param paths The pictures found
+         * @return DiscoveryResult The result of the discovery
          */
-        private void catalog(File f) {
-            File parent = f.getParentFile();
-            String albumPath = parent.getAbsolutePath();
+        private DiscoveryResult diff(List<File> paths) {
+            Set<File> last = mLastImages;
+            DiscoveryResult result = new DiscoveryResult();
+            result.mImages = new HashSet<>(paths);
+            List<File> added = new ArrayList<>();
+            for (File f : paths) {
+                if (!last.contains(f)) {
+                    added.add(f);
+                }
+            }
+            List<File> removed = new ArrayList<>();
+            for (File f : last) {
+                if (!result.mImages.contains(f)) {
+                    removed.add(f);
+                }
+            }
+            result.mAdded = added.toArray(new File[added.size()]);
+            result.mRemoved = removed.toArray(new File[removed.size()]);
+            return result;
+        }
+
+        /**
+         * Method that checks if the picture match the preferences filter. The albums are
+         * resolved by their ids, so the path of an album is only built once per discovery.
+         *
+         * @param picture The path of the picture to check
+         * @param bucketId The id of the album of the picture
+         * @return boolean whether the picture match the filter
+         */
+        private boolean matchFilter(String picture, long bucketId) {
+            Album first = mAlbums.get(bucketId);
+            Album album = first;
+            while (album != null && !MediaPictureIndex.isInAlbum(picture, album.mPath)) {
+                album = album.mNext;
+            }
+            if (album == null) {
+                album = catalog(MediaPictureIndex.getAlbumPath(picture));
+                album.mNext = first;
+                mAlbums.put(bucketId, album);
+            }
+            return album.mSelected || mFilter.contains(picture);
+        }
 
+        /**
+         * Method that catalog an album (determine if is a new album and if it's selected)
+         *
+         * @param albumPath The path of the album to catalog
+         * @return Album The album
+         */
+        private Album catalog(String albumPath) {
             // Add to new albums
             mNewAlbums.add(albumPath);
 
@@ -259,13 +339,23 @@ public class MediaPictureDiscoverer {
                 // Is in the filter?
                 if (mIsAutoSelectNewAlbums && !mFilter.contains(albumPath)) {
                     // Add the album to the selected filter
-                    mFilter.add(parent.getAbsolutePath());
+                    mSelectedAlbums.add(albumPath);
                 }
             }
+
+            Album album = new Album();
+            album.mPath = albumPath;
+            album.mSelected = mFilter.contains(albumPath) || mSelectedAlbums.contains(albumPath);
+            return album;
         }
     }
 
     private final Context mContext;
+    private final MediaPictureIndex mIndex;
+    private ContentObserver mObserver;
+
+    // The images notified by the last discovery (updated in the main thread)
+    private volatile Set<File> mLastImages = new HashSet<>();
 
     private AsyncDiscoverTask mTask;
 
@@ -277,6 +367,7 @@ public class MediaPictureDiscoverer {
     public MediaPictureDiscoverer(Context ctx) {
         super();
         mContext = ctx;
+        mIndex = new MediaPictureIndex(ctx);
     }
 
     /**
@@ -293,63 +384,99 @@ public class MediaPictureDiscoverer {
         }
 
         if (AndroidHelper.hasReadExternalStoragePermissionGranted(mContext)) {
+            if (mObserver == null) {
+                // Any change in the MediaStore invalidates the index
+                mObserver = new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        mIndex.invalidate();
+                    }
+                };
+                mContext.getContentResolver().registerContentObserver(
+                        MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, mObserver);
+            }
             mTask = new AsyncDiscoverTask(mContext.getContentResolver(), cb, userRequest);
             mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         } else {
             // Notify that we don't have any files
-            cb.onEndMediaDiscovered(new File[0], userRequest);
+            Set<File> last = mLastImages;
+            mLastImages = new HashSet<>();
+            cb.onEndMediaDiscovered(new File[0], last.toArray(new File[last.size()]), userRequest);
         }
     }
 
     /**
-     * Method that request a synchronous reload of the media store picture data.
+     * Method that request a synchronous reload of the pictures of an album. The pictures
+     * of the nested albums aren't included.
      *
-     * @param album The parent album or null
-     * @return all the images found
+     * @param album The album
+     * @return all the images found, sorted by path
      */
     public List<File> obtain(File album) {
-        if (AndroidHelper.hasReadExternalStoragePermissionGranted(mContext)) {
-            ContentResolver cr = mContext.getContentResolver();
-            long start = System.currentTimeMillis();
-            // Query external content
-            Cursor c = cr.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                    PROJECTION, null, null, null);
-            List<File> images = new ArrayList<>();
-            if (c != null) {
-                try {
-                    while (c.moveToNext()) {
-                        // Only valid files (those i can read)
-                        String p = c.getString(0);
-                        if (p != null) {
-                            File f = new File(p);
-                            if (f.getAbsolutePath().contains(album.getAbsolutePath())) {
-                                images.add(f);
-                            }
-                        }
-                    }
-                } finally {
-                    try {
-                        c.close();
-                    } catch (Exception e) {
-                        // Ignore: handle exception
+        return obtain(album, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Method that request a synchronous reload of a page of the pictures of an album. The
+     * album is queried by its bucket id, so the cost doesn't depend on the size of the
+     * library, and the page is selected by the query, so only its rows are read. The
+     * pictures of the nested albums aren't included.
+     *
+     * @param album The album
+     * @param offset The position of the first picture of the page
+     * @param limit The maximum number of pictures of the page
+     * @return the images of the page, sorted by path
+     */
+    public List<File> obtain(File album, int offset, int limit) {
+        List<File> images = new ArrayList<>();
+        if (!AndroidHelper.hasReadExternalStoragePermissionGranted(mContext)) {
+            return images;
+        }
+
+        long start = System.currentTimeMillis();
+        String[] args = MediaPictureIndex.getAlbumSelectionArgs(album.getAbsolutePath());
+        String sort = ALBUM_SORT;
+        if (offset > 0 || limit != Integer.MAX_VALUE) {
+            // The pictures of other albums are filtered by the selection, so the pages
+            // are consistent
+            sort += " LIMIT " + limit + " OFFSET " + offset;
+        }
+        ContentResolver cr = mContext.getContentResolver();
+        Cursor c = cr.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                PROJECTION, MediaPictureIndex.ALBUM_SELECTION, args, sort);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    // Only valid files (those i can read)
+                    String p = c.getString(0);
+                    if (p != null) {
+                        images.add(new File(p));
                     }
                 }
-                long end = System.currentTimeMillis();
-                if (DEBUG) Log.v(TAG, "Media loaded in " + (end - start) + " milliseconds");
+            } finally {
+                try {
+                    c.close();
+                } catch (Exception e) {
+                    // Ignore: handle exception
+                }
             }
-            Collections.sort(images);
-            return images;
+            long end = System.currentTimeMillis();
+            if (DEBUG) Log.v(TAG, "Album loaded in " + (end - start) + " milliseconds");
         }
-        return null;
+        return images;
     }
 
     /**
      * Method that destroy the references of this class
      */
-    public void recycle() {
+    public synchronized void recycle() {
         if (mTask != null && !mTask.isCancelled()) {
             mTask.cancel(true);
         }
+        if (mObserver != null) {
+            mContext.getContentResolver().unregisterContentObserver(mObserver);
+            mObserver = null;
+        }
     }
 
 }
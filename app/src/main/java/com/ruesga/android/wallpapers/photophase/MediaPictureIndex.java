@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A persistent index of the pictures of the MediaStore (id -> path and album), stored under the app
+ * cache directory. The index is updated incrementally: only the rows added or modified
+ * since the last sync are read, and the deleted and moved rows are detected through their
+ * ids and paths (moving or renaming a picture doesn't change its modification date). The
+ * index is only synced when it was invalidated (by a change notified by the MediaStore or
+ * because the process was restarted).
+ */
+public class MediaPictureIndex {
+
+    private static final String TAG = "MediaPictureIndex";
+
+    private static final boolean DEBUG = false;
+
+    private static final String INDEX_FILE = "media.idx";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x50504d49;
+    private static final int VERSION = 2;
+
+    private static final String[] ID_PROJECTION = {
+            MediaStore.MediaColumns._ID,
+            MediaStore.MediaColumns.DATA,
+            MediaStore.Images.ImageColumns.BUCKET_ID};
+    private static final String[] PROJECTION = {
+            MediaStore.MediaColumns._ID,
+            MediaStore.MediaColumns.DATA,
+            MediaStore.Images.ImageColumns.BUCKET_ID,
+            MediaStore.MediaColumns.DATE_MODIFIED};
+    private static final String SELECTION = MediaStore.MediaColumns._ID + " > ? OR "
+            + MediaStore.MediaColumns.DATE_MODIFIED + " >= ?";
+    private static final String SORT = MediaStore.MediaColumns._ID + " ASC";
+
+    /**
+     * The selection of the pictures of an album (see {@link #getAlbumSelectionArgs(String)})
+     */
+    public static final String ALBUM_SELECTION =
+            MediaStore.Images.ImageColumns.BUCKET_ID + " = ? AND "
+            + MediaStore.MediaColumns.DATA + " GLOB ? AND "
+            + MediaStore.MediaColumns.DATA + " NOT GLOB ?";
+
+    /**
+     * An interface to be notified of the indexed pictures
+     */
+    public interface OnPictureIndexedListener {
+        /**
+         * Invoked from the calling thread for every picture
+         *
+         * @param path The path of the picture
+         * @param bucketId The id of the album of the picture
+         */
+        void onPictureIndexed(String path, long bucketId);
+    }
+
+    private static class Picture {
+        final String mPath;
+        final long mBucketId;
+
+        Picture(String path, long bucketId) {
+            mPath = path;
+            mBucketId = bucketId;
+        }
+    }
+
+    private final File mFile;
+
+    // Reused to read the paths of the cursor, so the unchanged rows don't allocate
+    private final CharArrayBuffer mPathBuffer = new CharArrayBuffer(256);
+
+    // The pictures sorted by id
+    private final LongSparseArray<Picture> mPictures = new LongSparseArray<>();
+    private long mMaxId = -1;
+    private long mLastModified = -1;
+    private boolean mLoaded;
+
+    // Changes are notified from any thread, without waiting for a sync in progress
+    private volatile boolean mDirty = true;
+
+    /**
+     * Constructor of <code>MediaPictureIndex</code>
+     *
+     * @param ctx The current context
+     */
+    public MediaPictureIndex(Context ctx) {
+        this(new File(ctx.getCacheDir(), INDEX_FILE));
+    }
+
+    /**
+     * Constructor of <code>MediaPictureIndex</code>
+     *
+     * @param file The file of the index
+     */
+    MediaPictureIndex(File file) {
+        super();
+        mFile = file;
+    }
+
+    /**
+     * Method that marks the index as outdated, so the next sync reads the changes of the
+     * MediaStore. Can be called from any thread.
+     */
+    public void invalidate() {
+        mDirty = true;
+    }
+
+    /**
+     * Method that updates the index with the changes of the MediaStore, if the index
+     * was invalidated
+     *
+     * @param cr The content resolver
+     * @param listener The listener to notify the added or modified pictures (from the
+     * calling thread) or null
+     * @return boolean If the index was changed
+     */
+    public synchronized boolean sync(ContentResolver cr, OnPictureIndexedListener listener) {
+        ensureLoaded();
+        if (!mDirty) {
+            return false;
+        }
+        // Changes notified while syncing will be read by the next sync
+        mDirty = false;
+
+        long start = System.currentTimeMillis();
+        boolean changed;
+        try {
+            changed = removeDeleted(cr);
+            changed |= readModified(cr, listener);
+        } catch (RuntimeException ex) {
+            mDirty = true;
+            throw ex;
+        }
+        if (changed) {
+            save();
+        }
+        long end = System.currentTimeMillis();
+        if (DEBUG) Log.v(TAG, "Index synced in " + (end - start) + " milliseconds: "
+                + mPictures.size() + " pictures, changed: " + changed);
+        return changed;
+    }
+
+    /**
+     * Method that notifies all the indexed pictures to a listener, without copying them
+     *
+     * @param listener The listener to notify the pictures (from the calling thread)
+     */
+    public synchronized void visit(OnPictureIndexedListener listener) {
+        ensureLoaded();
+        final int count = mPictures.size();
+        for (int i = 0; i < count; i++) {
+            Picture picture = mPictures.valueAt(i);
+            listener.onPictureIndexed(picture.mPath, picture.mBucketId);
+        }
+    }
+
+    /**
+     * Method that returns the id of the album of a picture, as computed by the MediaStore
+     *
+     * @param path The path of the picture
+     * @return long The id of the album
+     */
+    public static long getBucketId(String path) {
+        return getAlbumBucketId(getAlbumPath(path));
+    }
+
+    /**
+     * Method that returns the id of an album, as computed by the MediaStore
+     *
+     * @param albumPath The path of the album
+     * @return long The id of the album
+     */
+    public static long getAlbumBucketId(String albumPath) {
+        return albumPath.toLowerCase(Locale.ROOT).hashCode();
+    }
+
+    /**
+     * Method that returns the arguments of {@link #ALBUM_SELECTION} for an album. The
+     * pictures of the album are matched by their bucket id and by their path, so the
+     * pictures of other albums with the same bucket id (or with the same path in other
+     * case) aren't included.
+     *
+     * @param albumPath The path of the album
+     * @return String[] The arguments of the selection
+     */
+    public static String[] getAlbumSelectionArgs(String albumPath) {
+        String glob = escapeGlob(albumPath.endsWith(File.separator)
+                ? albumPath : albumPath + File.separator);
+        return new String[]{String.valueOf(getAlbumBucketId(albumPath)),
+                glob + "*", glob + "*" + File.separator + "*"};
+    }
+
+    private static String escapeGlob(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '*' || c == '?' || c == '[') {
+                sb.append('[').append(c).append(']');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Method that returns if a picture is directly inside an album (the pictures of the
+     * nested albums aren't), without building the path of the album of the picture
+     *
+     * @param path The absolute path of the picture
+     * @param albumPath The path of the album
+     * @return boolean If the picture is inside the album
+     */
+    public static boolean isInAlbum(String path, String albumPath) {
+        int pos = path.lastIndexOf(File.separatorChar);
+        if (pos <= 0) {
+            return albumPath.equals(File.separator);
+        }
+        return pos == albumPath.length() && path.startsWith(albumPath);
+    }
+
+    /**
+     * Method that returns the path of the album (parent directory) of a picture
+     *
+     * @param path The absolute path of the picture
+     * @return String The path of the album
+     */
+    public static String getAlbumPath(String path) {
+        int pos = path.lastIndexOf(File.separatorChar);
+        return pos <= 0 ? File.separator : path.substring(0, pos);
+    }
+
+    private boolean removeDeleted(ContentResolver cr) {
+        if (mPictures.size() == 0) {
+            return false;
+        }
+        Cursor c = cr.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                ID_PROJECTION, null, null, SORT);
+        if (c == null) {
+            throw new IllegalStateException("MediaStore is not available");
+        }
+        return removeDeleted(c);
+    }
+
+    /**
+     * Method that removes the pictures that aren't in a cursor of ids, and updates the
+     * pictures whose path changed (moved or renamed)
+     *
+     * @param c The cursor with the ids, paths and albums of the pictures, sorted by id
+     * (it's closed)
+     * @return boolean If the index was changed
+     */
+    boolean removeDeleted(Cursor c) {
+        // Both, the index and the cursor, are sorted by id
+        final CharArrayBuffer buffer = mPathBuffer;
+        List<Long> deleted = new ArrayList<>();
+        boolean moved = false;
+        try {
+            final int count = mPictures.size();
+            int i = 0;
+            while (c.moveToNext() && i < count) {
+                long id = c.getLong(0);
+                while (i < count && mPictures.keyAt(i) < id) {
+                    deleted.add(mPictures.keyAt(i));
+                    i++;
+                }
+                if (i < count && mPictures.keyAt(i) == id) {
+                    if (c.isNull(1)) {
+                        deleted.add(id);
+                    } else {
+                        // Only build the path of the pictures that were moved
+                        Picture current = mPictures.valueAt(i);
+                        c.copyStringToBuffer(1, buffer);
+                        if (!equals(buffer, current.mPath)) {
+                            String path = new String(buffer.data, 0, buffer.sizeCopied);
+                            long bucketId = c.isNull(2) ? getBucketId(path) : c.getLong(2);
+                            mPictures.setValueAt(i, new Picture(path, bucketId));
+                            moved = true;
+                        }
+                    }
+                    i++;
+                }
+            }
+            for (; i < count; i++) {
+                deleted.add(mPictures.keyAt(i));
+            }
+        } finally {
+            close(c);
+        }
+
+        for (Long id : deleted) {
+            mPictures.delete(id);
+        }
+        return moved || !deleted.isEmpty();
+    }
+
+    private boolean readModified(ContentResolver cr, OnPictureIndexedListener listener) {
+        String[] args = {String.valueOf(mMaxId), String.valueOf(mLastModified)};
+        Cursor c = cr.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                PROJECTION, SELECTION, args, SORT);
+        if (c == null) {
+            throw new IllegalStateException("MediaStore is not available");
+        }
+        return readModified(c, listener);
+    }
+
+    /**
+     * Method that adds or updates the pictures of a cursor
+     *
+     * @param c The cursor with the pictures, with the columns of the projection of the
+     * index (it's closed)
+     * @param listener The listener to notify the pictures (from the calling thread) or null
+     * @return boolean If the index was changed
+     */
+    boolean readModified(Cursor c, OnPictureIndexedListener listener) {
+        final CharArrayBuffer buffer = mPathBuffer;
+        boolean changed = false;
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                long modified = c.getLong(3);
+                mMaxId = Math.max(mMaxId, id);
+                mLastModified = Math.max(mLastModified, modified);
+
+                Picture current = mPictures.get(id);
+                if (c.isNull(1)) {
+                    if (current != null) {
+                        mPictures.delete(id);
+                        changed = true;
+                    }
+                    continue;
+                }
+
+                // Most of the rows are unchanged, so only build the path when it changed
+                c.copyStringToBuffer(1, buffer);
+                String path = current != null && equals(buffer, current.mPath)
+                        ? current.mPath : new String(buffer.data, 0, buffer.sizeCopied);
+                long bucketId = c.isNull(2) ? getBucketId(path) : c.getLong(2);
+                if (current == null || path != current.mPath
+                        || bucketId != current.mBucketId) {
+                    mPictures.put(id, new Picture(path, bucketId));
+                    changed = true;
+                }
+                if (listener != null) {
+                    listener.onPictureIndexed(path, bucketId);
+                }
+            }
+        } finally {
+            close(c);
+        }
+        return changed;
+    }
+
+    private static boolean equals(CharArrayBuffer buffer, String s) {
+        final int length = buffer.sizeCopied;
+        if (length != s.length()) {
+            return false;
+        }
+        final char[] data = buffer.data;
+        for (int i = 0; i < length; i++) {
+            if (data[i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                throw new IOException("Invalid index file");
+            }
+            long maxId = is.readLong();
+            long lastModified = is.readLong();
+            int count = is.readInt();
+            for (int i = 0; i < count; i++) {
+                long id = is.readLong();
+                long bucketId = is.readLong();
+                mPictures.append(id, new Picture(is.readUTF(), bucketId));
+            }
+            mMaxId = maxId;
+            mLastModified = lastModified;
+
+        } catch (IOException | RuntimeException ex) {
+            Log.w(TAG, "Failed to read the media index. Rebuilding it.", ex);
+            mPictures.clear();
+            mMaxId = -1;
+            mLastModified = -1;
+        } finally {
+            close(is);
+        }
+    }
+
+    private void save() {
+        File tmp = new File(mFile.getParentFile(), INDEX_FILE + TMP_SUFFIX);
+        DataOutputStream os = null;
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeLong(mMaxId);
+            os.writeLong(mLastModified);
+            final int count = mPictures.size();
+            os.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                Picture picture = mPictures.valueAt(i);
+                os.writeLong(mPictures.keyAt(i));
+                os.writeLong(picture.mBucketId);
+                os.writeUTF(picture.mPath);
+            }
+            os.close();
+            os = null;
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Cannot rename " + tmp);
+            }
+
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write the media index", ex);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        } finally {
+            close(os);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }
+    }
+
+    private static void close(Cursor c) {
+        try {
+            c.close();
+        } catch (Exception e) {
+            // Ignore: handle exception
+        }
+    }
+}
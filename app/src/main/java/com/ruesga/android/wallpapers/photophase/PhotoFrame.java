@@ -18,11 +18,11 @@ package com.ruesga.android.wallpapers.photophase;
 
 import android.graphics.RectF;
 import android.opengl.GLES20;
-import android.util.Log;
 
 import com.ruesga.android.wallpapers.photophase.model.Disposition;
 import com.ruesga.android.wallpapers.photophase.textures.TextureManager;
 import com.ruesga.android.wallpapers.photophase.textures.TextureRequestor;
+import com.ruesga.android.wallpapers.photophase.utils.GLESTexturePool;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil.GLColor;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil.GLESTextureInfo;
@@ -62,6 +62,10 @@ public class PhotoFrame implements TextureRequestor {
     private final GLColor mBackgroundColor;
 
     private boolean mLoaded;
+    private boolean mRecycled;
+
+    // The priority of the next texture request of this frame
+    private int mPriority;
 
     private final Object mSync = new Object();
 
@@ -76,9 +80,26 @@ public class PhotoFrame implements TextureRequestor {
      */
     public PhotoFrame(Disposition disposition, TextureManager textureManager, float[] frameVertex,
             float[] photoVertex, GLColor color) {
+        this(disposition, textureManager, frameVertex, photoVertex, color,
+                getDefaultPriority(disposition));
+    }
+
+    /**
+     * Constructor of <code>PhotoFrame</code>.
+     *
+     * @param disposition The associated disposition
+     * @param textureManager The texture manager
+     * @param frameVertex A 4 dimension array with the coordinates per vertex plus padding
+     * @param photoVertex A 4 dimension array with the coordinates per vertex without padding
+     * @param color Background color
+     * @param priority The priority of the first texture request of the frame
+     */
+    public PhotoFrame(Disposition disposition, TextureManager textureManager, float[] frameVertex,
+            float[] photoVertex, GLColor color, int priority) {
         super();
         mDisposition = disposition;
         mLoaded = false;
+        mPriority = priority;
         mBackgroundColor = color;
         mTextureManager = textureManager;
 
@@ -121,19 +142,44 @@ public class PhotoFrame implements TextureRequestor {
      */
     @Override
     public void setTextureHandle(GLESTextureInfo ti) {
-        // If the picture is invalid request a new texture
+        // The frame is not drawn anymore or the placeholder arrived too late
+        final boolean placeholder = ti != null && ti.placeholder;
+        if (mRecycled || (placeholder && mLoaded)) {
+            if (ti != null && ti.handle > 0) {
+                GLESTexturePool.release(ti.handle);
+            }
+            return;
+        }
+
+        // If the picture is invalid request a new texture (the request of a placeholder
+        // is still pending)
         if (ti == null || ti.handle <= 0) {
-            requestTexture();
+            if (!placeholder) {
+                requestTexture();
+            }
             return;
         }
 
-        // Full frame picture
-        setTextureHandle(ti, DEFAULT_TEXTURE_COORDS);
-        mLoaded = true;
+        // Full frame picture (oriented and cropped through the texture coordinates). A
+        // placeholder is replaced in place when the picture arrives, and the frame isn't
+        // loaded until then (it isn't selectable for transitions)
+        setTextureHandle(ti, GLESUtil.getTextureCoords(
+                DEFAULT_TEXTURE_COORDS, ti.orientation, ti.window));
+        if (!placeholder) {
+            mLoaded = true;
+            mPriority = getDefaultPriority(mDisposition);
+        }
     }
 
     public void requestTexture() {
-        mTextureManager.request(this);
+        if (!mRecycled) {
+            mTextureManager.request(this, mPriority);
+        }
+    }
+
+    private static int getDefaultPriority(Disposition disposition) {
+        return disposition != null && disposition.hasFlag(Disposition.BACKGROUND_FLAG)
+                ? TextureManager.PRIORITY_BACKGROUND : TextureManager.PRIORITY_FRAME;
     }
 
     /**
@@ -146,13 +192,7 @@ public class PhotoFrame implements TextureRequestor {
         // Recycle the previous handle
         if (mTextureInfo != null) {
             if (GLES20.glIsTexture(mTextureInfo.handle)) {
-                int[] textures = new int[]{mTextureInfo.handle};
-                if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                    Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteTextures: ["
-                            + mTextureInfo.handle + "]");
-                }
-                GLES20.glDeleteTextures(1, textures, 0);
-                GLESUtil.glesCheckError("glDeleteTextures");
+                GLESTexturePool.release(mTextureInfo.handle);
             }
             if (mTextureInfo.bitmap != null) {
                 mTextureInfo.bitmap.recycle();
@@ -259,10 +299,12 @@ public class PhotoFrame implements TextureRequestor {
     }
 
     /**
-     * Method that returns if the frame is loaded (has its picture loaded)
+     * Method that returns if the frame is loaded (has its picture loaded, not only its
+     * placeholder)
      *
-     * @return boolean If the frame is loaded (has its picture loaded)
+     * @return boolean If the frame is loaded
      */
+    @Override
     public boolean isLoaded() {
         return mLoaded;
     }
@@ -271,14 +313,12 @@ public class PhotoFrame implements TextureRequestor {
      * Request a recycle of the references of the object
      */
     public void recycle() {
+        // Drop any pending request, so no picture is decoded for this frame
+        mRecycled = true;
+        mTextureManager.cancelRequest(this);
+
         if (mTextureInfo != null && mTextureInfo.handle != 0) {
-            int[] textures = new int[]{mTextureInfo.handle};
-            if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteTextures: ["
-                        + mTextureInfo.handle + "]");
-            }
-            GLES20.glDeleteTextures(1, textures, 0);
-            GLESUtil.glesCheckError("glDeleteTextures");
+            GLESTexturePool.release(mTextureInfo.handle);
         }
         if (mTextureInfo != null && mTextureInfo.bitmap != null
                 && !mTextureInfo.bitmap.isRecycled()) {
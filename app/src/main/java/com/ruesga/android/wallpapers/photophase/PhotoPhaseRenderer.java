@@ -52,13 +52,19 @@ import com.ruesga.android.wallpapers.photophase.shapes.ColorShape;
 import com.ruesga.android.wallpapers.photophase.shapes.OopsShape;
 import com.ruesga.android.wallpapers.photophase.textures.PhotoPhaseTextureManager;
 import com.ruesga.android.wallpapers.photophase.transitions.Transition;
+import com.ruesga.android.wallpapers.photophase.utils.GLESFilterPipeline;
+import com.ruesga.android.wallpapers.photophase.utils.GLESProgramRegistry;
+import com.ruesga.android.wallpapers.photophase.utils.GLESTexturePool;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil.GLColor;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil.GLESTextureInfo;
+import com.ruesga.android.wallpapers.photophase.utils.MemoryGovernor;
+import com.ruesga.android.wallpapers.photophase.utils.MemoryGovernor.MemoryClient;
 
 import java.io.File;
 
 import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
 import javax.microedition.khronos.opengles.GL10;
 
 import static com.ruesga.android.wallpapers.photophase.providers.TemporaryContentAccessProvider.createAuthorizationUri;
@@ -66,7 +72,7 @@ import static com.ruesga.android.wallpapers.photophase.providers.TemporaryConten
 /**
  * The EGL renderer of PhotoPhase Live Wallpaper.
  */
-public class PhotoPhaseRenderer implements GLSurfaceView.Renderer {
+public class PhotoPhaseRenderer implements GLSurfaceView.Renderer, MemoryClient {
 
     private static final String TAG = "PhotoPhaseRenderer";
 
@@ -85,6 +91,7 @@ public class PhotoPhaseRenderer implements GLSurfaceView.Renderer {
     private final Handler mHandler;
     private final GLESSurfaceDispatcher mDispatcher;
     private PhotoPhaseTextureManager mTextureManager;
+    private volatile EGLContext mEglContext;
 
     private final AlarmManager mAlarmManager;
     private PendingIntent mRecreateDispositionPendingIntent;
@@ -267,6 +274,9 @@ public class PhotoPhaseRenderer implements GLSurfaceView.Renderer {
         sInstances++;
         mAlarmManager = (AlarmManager)ctx.getSystemService(Context.ALARM_SERVICE);
         mUseWallpaperOffset = PreferencesProvider.Preferences.General.isWallpaperOffset(ctx);
+        GLESProgramRegistry.init(ctx);
+        MemoryGovernor.init(ctx);
+        MemoryGovernor.register(this);
     }
 
     /**
@@ -338,6 +348,7 @@ public class PhotoPhaseRenderer implements GLSurfaceView.Renderer {
     public void onDestroy() {
         if (DEBUG) Log.d(TAG, "onDestroy [" + mInstance + "]");
         mIsDestroyed = true;
+        MemoryGovernor.unregister(this);
 
         // Register a receiver to listen for media reload request
         unbindFromCastService();
@@ -348,17 +359,50 @@ public class PhotoPhaseRenderer implements GLSurfaceView.Renderer {
             mEffectContext.release();
         }
         mEffectContext = null;
+        GLESProgramRegistry.forget(mEglContext);
+        mEglContext = null;
         mWidth = -1;
         mHeight = -1;
         mMeasuredHeight = -1;
     }
 
     /**
-     * Method called when system runs under low memory
+     * {@inheritDoc}
      */
-    public void onLowMemory() {
-        if (mTextureManager != null) {
-            mTextureManager.emptyTextureQueue(false);
+    @Override
+    public long getBitmapBytes() {
+        PhotoPhaseTextureManager textureManager = mTextureManager;
+        return textureManager != null ? textureManager.getBitmapBytes() : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTextureBytes() {
+        EGLContext ctx = mEglContext;
+        return GLESTexturePool.getAllocatedBytes(ctx) + GLESFilterPipeline.getAllocatedBytes(ctx);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onTrimMemory(final int level) {
+        // Release the prefetched bitmaps now, but the textures only can be deleted
+        // in the GLThread
+        PhotoPhaseTextureManager textureManager = mTextureManager;
+        if (textureManager != null) {
+            textureManager.onTrimMemory(level);
+        }
+        if (level >= MemoryGovernor.LEVEL_LOW && !mIsDestroyed) {
+            mDispatcher.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    GLESFilterPipeline.trim();
+                    GLESTexturePool.trim();
+                }
+            });
         }
     }
 
@@ -723,6 +767,9 @@ public class PhotoPhaseRenderer implements GLSurfaceView.Renderer {
             if (mTextureManager != null) mTextureManager.recycle();
             if (mOverlay != null) mOverlay.recycle();
             if (mOopsShape != null) mOopsShape.recycle();
+            GLESFilterPipeline.destroy();
+            GLESProgramRegistry.destroy();
+            GLESTexturePool.destroy();
             mWorld = null;
             mTextureManager = null;
             mOverlay = null;
@@ -736,6 +783,12 @@ public class PhotoPhaseRenderer implements GLSurfaceView.Renderer {
     @Override
     public void onSurfaceCreated(GL10 glUnused, EGLConfig config) {
         if (DEBUG) Log.d(TAG, "onSurfaceCreated [" + mInstance + "]");
+        EGLContext eglContext = GLESUtil.getCurrentEglContext();
+        if (mEglContext != null && !mEglContext.equals(eglContext)) {
+            // The previous context was lost, and its programs with it
+            GLESProgramRegistry.forget(mEglContext);
+        }
+        mEglContext = eglContext;
 
         mWidth = -1;
         mHeight = -1;
@@ -780,7 +833,7 @@ public class PhotoPhaseRenderer implements GLSurfaceView.Renderer {
             // Recycle the current texture manager and create a new one
             recycle();
             mTextureManager = new PhotoPhaseTextureManager(
-                    mContext, mHandler, mEffectContext, mDispatcher, cc, dimensions);
+                    mContext, mEffectContext, mDispatcher, cc, dimensions, mIsPreview);
         } else {
             mTextureManager.updateEffectContext(mEffectContext);
         }
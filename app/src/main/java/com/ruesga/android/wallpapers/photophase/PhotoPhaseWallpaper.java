@@ -36,7 +36,11 @@ import com.ruesga.android.wallpapers.photophase.GLESWallpaperService.GLESEngineL
 import com.ruesga.android.wallpapers.photophase.preferences.ChoosePicturesFragment;
 import com.ruesga.android.wallpapers.photophase.preferences.PhotoPhasePreferences;
 import com.ruesga.android.wallpapers.photophase.preferences.PreferencesProvider;
+import com.ruesga.android.wallpapers.photophase.utils.MemoryGovernor;
+import com.ruesga.android.wallpapers.photophase.utils.PipelineStats;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -234,11 +238,43 @@ public class PhotoPhaseWallpaper
     public void onLowMemory() {
         super.onLowMemory();
         Log.i(TAG, "onLowMemory");
-        for (Renderer renderer : mRenderers) {
-            // Pause the wallpaper and destroy the cached textures
-            ((PhotoPhaseRenderer) renderer).onPause();
-            ((PhotoPhaseRenderer) renderer).onLowMemory();
+        // Keep rendering, but release everything that is not on screen
+        MemoryGovernor.onLowMemory();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (DEBUG) Log.d(TAG, "onTrimMemory: " + level);
+        MemoryGovernor.onTrimMemory(level);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Dumps the pipeline statistics and the memory state. Accepts the "reset" argument, to
+     * reset the statistics, and the "debug" argument, to show/hide the statistics screen
+     * of the settings.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter out, String[] args) {
+        super.dump(fd, out, args);
+        if (args != null) {
+            for (String arg : args) {
+                if ("reset".equals(arg)) {
+                    PipelineStats.reset();
+                } else if ("debug".equals(arg)) {
+                    boolean enabled = !PreferencesProvider.Preferences.General.isDebugStats(this);
+                    PreferencesProvider.Preferences.General.setDebugStats(this, enabled);
+                    out.println("Debug statistics screen " + (enabled ? "enabled" : "disabled"));
+                }
+            }
         }
+        PipelineStats.dump(out);
+        MemoryGovernor.dump(out);
     }
 
     /**
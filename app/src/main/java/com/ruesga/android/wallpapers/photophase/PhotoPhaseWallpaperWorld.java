@@ -137,9 +137,25 @@ public class PhotoPhaseWallpaperWorld {
             return;
         }
 
-        // Get a random frame to apply the transition to
-        int item = Utils.getNextRandom(0, mTransitionsQueue.size() - 1);
-        int pos = mTransitionsQueue.remove(item);
+        // Get a random frame to apply the transition to (only the frames that have their
+        // picture; the others are still waiting for it, maybe showing its placeholder)
+        int loaded = 0;
+        for (Integer pos : mTransitionsQueue) {
+            if (mPhotoFrames.get(pos).isLoaded()) {
+                loaded++;
+            }
+        }
+        if (loaded == 0) {
+            return;
+        }
+        int item = Utils.getNextRandom(0, loaded - 1);
+        int pos = -1;
+        for (int i = 0; i < mTransitionsQueue.size(); i++) {
+            if (mPhotoFrames.get(mTransitionsQueue.get(i)).isLoaded() && item-- == 0) {
+                pos = mTransitionsQueue.remove(i);
+                break;
+            }
+        }
         mUsedTransitionsQueue.add(pos);
         PhotoFrame frame = mPhotoFrames.get(pos);
 
@@ -156,9 +172,9 @@ public class PhotoPhaseWallpaperWorld {
         // Ensure queue
         ensureTransitionsQueue();
 
-        // Get a the frame to apply the transition to
+        // Get a the frame to apply the transition to (only if it has its picture)
         int pos = mPhotoFrames.indexOf(frame);
-        if (pos == -1) {
+        if (pos == -1 || !frame.isLoaded()) {
             return;
         }
         mTransitionsQueue.remove(Integer.valueOf(pos));
@@ -307,6 +323,7 @@ public class PhotoPhaseWallpaperWorld {
             Log.d(TAG, "Dispositions: " + dispositions.size() + " | " +
                     String.valueOf(dispositions));
         }
+        mTextureManager.setFrameCount(dispositions.size());
         mPhotoFrames = new ArrayList<>(dispositions.size());
         mTransitions = new ArrayList<>(dispositions.size());
         mTransitionsQueue = new ArrayList<>(dispositions.size());
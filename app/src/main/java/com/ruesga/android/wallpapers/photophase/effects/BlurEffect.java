@@ -126,7 +126,7 @@ public class BlurEffect extends PhotoPhaseEffect {
             "}\n";
 
     private float mStrength = 2.0f;
-    private final int mStrengthHandle;
+    private final int[] mStrengthHandle;
 
     /**
      * Constructor of <code>BlurEffect</code>.
@@ -140,17 +140,20 @@ public class BlurEffect extends PhotoPhaseEffect {
                 new String[]{FRAGMENT_SHADER, FRAGMENT_SHADER});
 
         // Parameters
-        mStrengthHandle = GLES20.glGetUniformLocation(mProgram[0], "strength");
-        GLESUtil.glesCheckError("glGetUniformLocation");
+        mStrengthHandle = new int[mProgram.length];
+        for (int i = 0; i < mProgram.length; i++) {
+            mStrengthHandle[i] = GLES20.glGetUniformLocation(mProgram[i], "strength");
+            GLESUtil.glesCheckError("glGetUniformLocation");
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    void applyParameters(int width, int height) {
+    void applyParameters(int index, int width, int height) {
         // Set parameters
-        GLES20.glUniform1f(mStrengthHandle, mStrength);
+        GLES20.glUniform1f(mStrengthHandle[index], mStrength);
         GLESUtil.glesCheckError("glUniform1f");
     }
 
@@ -20,9 +20,10 @@ import android.media.effect.Effect;
 import android.media.effect.EffectContext;
 import android.media.effect.EffectFactory;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
-import android.util.Log;
 
+import com.ruesga.android.wallpapers.photophase.utils.GLESFilterPipeline;
+import com.ruesga.android.wallpapers.photophase.utils.GLESFilterPipeline.FilterPass;
+import com.ruesga.android.wallpapers.photophase.utils.GLESProgramRegistry;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil;
 
 import java.nio.ByteBuffer;
@@ -32,12 +33,10 @@ import java.nio.FloatBuffer;
 /**
  * An abstract class definition for all the PhotoPhase custom effects
  */
-public abstract class PhotoPhaseEffect extends Effect {
+public abstract class PhotoPhaseEffect extends Effect implements FilterPass {
 
     private static final int FLOAT_SIZE_BYTES = 4;
 
-    private static final String MCA_IDENTITY_EFFECT = "IdentityEffect";
-
     static final String VERTEX_SHADER =
             "attribute vec4 a_position;\n" +
             "attribute vec2 a_texcoord;\n" +
@@ -51,17 +50,8 @@ public abstract class PhotoPhaseEffect extends Effect {
     private static final float[] TEX_VERTICES = {0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 1.0f, 1.0f, 1.0f};
     private static final float[] POS_VERTICES = {-1.0f, -1.0f, 1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f};
 
-    private final int GL_STATE_FBO          = 0;
-    private final int GL_STATE_PROGRAM      = 1;
-    private final int GL_STATE_ARRAYBUFFER  = 2;
-    private final int GL_STATE_COUNT        = GL_STATE_ARRAYBUFFER + 1;
-
-    private final int[] mOldState = new int[GL_STATE_COUNT];
-
     private final String mName;
 
-    private final Effect mIdentityEffect;
-
     protected int[] mProgram;
     private int[] mTexSamplerHandle;
     private int[] mTexCoordHandle;
@@ -80,10 +70,6 @@ public abstract class PhotoPhaseEffect extends Effect {
     public PhotoPhaseEffect(EffectContext ctx, String name) {
         super();
         mName = name;
-
-        // Stand on MCA identity effect for the initialization work
-        EffectFactory effectFactory = ctx.getFactory();
-        mIdentityEffect = effectFactory.createEffect(MCA_IDENTITY_EFFECT);
     }
 
     void init(String vertexShader, String fragmentShader) {
@@ -138,60 +124,24 @@ public abstract class PhotoPhaseEffect extends Effect {
      * {@inheritDoc}
      */
     @Override
-    public final synchronized void apply(int inputTexId, int width, int height, int outputTexId) {
-        // Save the GLES state
-        saveGLState();
-
-        int[] fb = new int[1];
-        try {
-            // Create a framebuffer object and call the effect apply method to draw the effect
-            GLES20.glGenFramebuffers(1, fb, 0);
-            GLESUtil.glesCheckError("glGenFramebuffers");
-            if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                Log.d(GLESUtil.DEBUG_GL_MEMOBJS_NEW_TAG, "glGenFramebuffers: " + fb[0]);
-            }
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fb[0]);
-            GLESUtil.glesCheckError("glBindFramebuffer");
-
-            // Render on the whole framebuffer
-            GLES20.glViewport(0, 0, width, height);
-            GLESUtil.glesCheckError("glViewport");
-
-            // Create a new output texture (Use the MCA identity to clone the input to the output)
-            mIdentityEffect.apply(inputTexId, width, height, outputTexId);
-
-            // Create the framebuffer
-            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                    GLES20. GL_TEXTURE_2D, outputTexId, 0);
-            GLESUtil.glesCheckError("glFramebufferTexture2D");
-
-            // Check if the buffer was built successfully
-            final int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-            if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
-                // Something was wrong. Throw an exception
-                GLESUtil.glesCheckError("glCheckFramebufferStatus");
-                int error = GLES20.glGetError();
-                throw new android.opengl.GLException(error, GLUtils.getEGLErrorString(error));
-            }
-
-            // Apply the effect
-            int count = mProgram.length;
-            for (int i = 0; i < count; i++) {
-                applyProgram(i, inputTexId, width, height);
-            }
-
-        } finally {
-            // Restore the GLES state
-            restoreGLState();
-
-            // Clean framebuffer memory
-            if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteFramebuffers: " + fb[0]);
-            }
-            GLES20.glDeleteFramebuffers(1, fb, 0);
-            GLESUtil.glesCheckError("glDeleteFramebuffers");
+    public final void apply(int inputTexId, int width, int height, int outputTexId) {
+        // Draw through the filter pipeline, which takes care of the framebuffer
+        GLESFilterPipeline pipeline = GLESFilterPipeline.get();
+        if (pipeline != null) {
+            pipeline.apply(inputTexId, width, height, outputTexId, true, this);
         }
+    }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final synchronized void drawPass(int inputTexId, int width, int height) {
+        // Apply the effect
+        int count = mProgram.length;
+        for (int i = 0; i < count; i++) {
+            applyProgram(i, inputTexId, width, height);
+        }
     }
 
     /**
@@ -208,13 +158,7 @@ public abstract class PhotoPhaseEffect extends Effect {
     @Override
     public void release() {
         for (int program : mProgram) {
-            if (GLES20.glIsProgram(program)) {
-                if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                    Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteProgram: " + program);
-                }
-                GLES20.glDeleteProgram(program);
-                GLESUtil.glesCheckError("glDeleteProgram");
-            }
+            GLESProgramRegistry.release(program);
         }
         mTexVertices = null;
         mPosVertices = null;
@@ -245,8 +189,8 @@ public abstract class PhotoPhaseEffect extends Effect {
         GLES20.glEnableVertexAttribArray(mPosCoordHandle[index]);
         GLESUtil.glesCheckError("glEnableVertexAttribArray");
 
-        // Set parameters
-        applyParameters(width, height);
+        // Set parameters (the program may be shared, so they must be set on every bind)
+        applyParameters(index, width, height);
 
         // Set the input texture
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -272,27 +216,19 @@ public abstract class PhotoPhaseEffect extends Effect {
     }
 
     /**
-     * Method that applies the parameters of the effect.
-     */
-    void applyParameters(int width, int height) {
-        // Do nothing
-    }
-
-    /**
-     * Save GL state
+     * Method that applies the parameters of the effect to one of its programs. Effects with
+     * more than one program must set the parameters through the uniforms of that program.
+     *
+     * @param index The index of the bound program
      */
-    private void saveGLState() {
-        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mOldState, GL_STATE_FBO);
-        GLES20.glGetIntegerv(GLES20.GL_CURRENT_PROGRAM, mOldState, GL_STATE_PROGRAM);
-        GLES20.glGetIntegerv(GLES20.GL_ARRAY_BUFFER_BINDING, mOldState, GL_STATE_ARRAYBUFFER);
+    void applyParameters(int index, int width, int height) {
+        applyParameters(width, height);
     }
 
     /**
-     * Restore GL state
+     * Method that applies the parameters of the effect.
      */
-    private void restoreGLState() {
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mOldState[GL_STATE_FBO]);
-        GLES20.glUseProgram(mOldState[GL_STATE_PROGRAM]);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mOldState[GL_STATE_ARRAYBUFFER]);
+    void applyParameters(int width, int height) {
+        // Do nothing
     }
 }
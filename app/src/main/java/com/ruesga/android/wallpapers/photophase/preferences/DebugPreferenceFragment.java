@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.preferences;
+
+import android.os.Bundle;
+import android.preference.Preference;
+import android.preference.Preference.OnPreferenceClickListener;
+import android.preference.PreferenceCategory;
+import android.preference.PreferenceFragment;
+import android.text.format.Formatter;
+
+import com.ruesga.android.wallpapers.photophase.R;
+import com.ruesga.android.wallpapers.photophase.utils.MemoryGovernor;
+import com.ruesga.android.wallpapers.photophase.utils.PipelineStats;
+import com.ruesga.android.wallpapers.photophase.utils.PipelineStats.Stage;
+
+/**
+ * A hidden preference screen that shows the statistics of the picture pipeline. It's
+ * enabled with <code>adb shell dumpsys activity service
+ * com.ruesga.android.wallpapers.photophase/.PhotoPhaseWallpaper debug</code>.
+ */
+public class DebugPreferenceFragment extends PreferenceFragment {
+
+    private Preference mMemory;
+    private final Preference[] mStages = new Preference[Stage.values().length];
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        // Add the preferences
+        addPreferencesFromResource(R.xml.preferences_debug);
+
+        mMemory = findPreference("debug_memory");
+        Preference reset = findPreference("debug_reset");
+        reset.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                PipelineStats.reset();
+                update();
+                return true;
+            }
+        });
+
+        PreferenceCategory category = (PreferenceCategory) findPreference("category_debug_stages");
+        for (Stage stage : Stage.values()) {
+            Preference pref = new Preference(getActivity());
+            pref.setPersistent(false);
+            pref.setSelectable(false);
+            pref.setTitle(stage.name());
+            category.addPreference(pref);
+            mStages[stage.ordinal()] = pref;
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        update();
+    }
+
+    private void update() {
+        mMemory.setSummary(getString(R.string.pref_debug_memory_summary,
+                MemoryGovernor.getLevel(),
+                Formatter.formatShortFileSize(getActivity(), MemoryGovernor.getBitmapBytes()),
+                Formatter.formatShortFileSize(getActivity(), MemoryGovernor.getTextureBytes())));
+        for (Stage stage : Stage.values()) {
+            mStages[stage.ordinal()].setSummary(PipelineStats.getSummary(stage));
+        }
+    }
+}
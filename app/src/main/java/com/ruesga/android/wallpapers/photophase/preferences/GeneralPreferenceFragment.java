@@ -84,6 +84,9 @@ public class GeneralPreferenceFragment extends PreferenceFragment {
                 mRedrawFlag = true;
                 mEmptyTextureQueueFlag = true;
                 mFixAspectRatio.setEnabled(!((Boolean) newValue));
+            } else if (key.compareTo("ui_compressed_textures") == 0) {
+                mRedrawFlag = true;
+                mEmptyTextureQueueFlag = true;
             } else if (key.compareTo("ui_fix_aspect_ratio") == 0) {
                 mRedrawFlag = true;
                 mEmptyTextureQueueFlag = true;
@@ -263,6 +266,10 @@ public class GeneralPreferenceFragment extends PreferenceFragment {
         CheckBoxPreference powerOfTwo = (CheckBoxPreference) findPreference("ui_power_of_two");
         powerOfTwo.setOnPreferenceChangeListener(mOnChangeListener);
 
+        CheckBoxPreference compressedTextures =
+                (CheckBoxPreference) findPreference("ui_compressed_textures");
+        compressedTextures.setOnPreferenceChangeListener(mOnChangeListener);
+
         mFixAspectRatio = (CheckBoxPreference) findPreference("ui_fix_aspect_ratio");
         mFixAspectRatio.setOnPreferenceChangeListener(mOnChangeListener);
         mFixAspectRatio.setEnabled(!Preferences.General.isPowerOfTwo(getActivity()));
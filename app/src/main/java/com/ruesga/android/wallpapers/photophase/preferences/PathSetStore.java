@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.preferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent set of paths (albums and pictures), held in memory and stored as an
+ * append-only log of the changes under the app files directory. Every write only appends
+ * the paths added and removed, and the log is compacted when it grows too much.<br/>
+ * <br/>
+ * There is only one instance per set in the process. The set is migrated from the
+ * preference key with its name the first time it's loaded. The file is loaded and written
+ * by a background thread, so the callers (usually the UI thread) only wait for the first
+ * load, and the set in memory is updated before the write.
+ */
+public final class PathSetStore {
+
+    private static final String TAG = "PathSetStore";
+
+    private static final String STORE_DIR = "sets";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x50505353;
+    private static final int VERSION = 1;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    // Compact the log when it holds this number of records over the live paths
+    private static final int COMPACT_THRESHOLD = 256;
+
+    private static final long KEEP_ALIVE_TIME = 30L;
+
+    private static final Map<String, PathSetStore> sStores = new HashMap<>();
+
+    // A single thread, so the writes of a set are applied in order
+    private static final ThreadPoolExecutor sWriter = new ThreadPoolExecutor(1, 1,
+            KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, TAG);
+                }
+            });
+    static {
+        sWriter.allowCoreThreadTimeOut(true);
+    }
+
+    private final File mFile;
+    private final Set<String> mPaths = new HashSet<>();
+    private boolean mLoaded;
+
+    // Only accessed from the writer thread
+    private int mRecords;
+
+    /**
+     * Method that returns the store of a set of paths
+     *
+     * @param context The current context
+     * @param name The name of the set (and of the preference key to migrate)
+     * @return PathSetStore The store
+     */
+    public static PathSetStore get(Context context, String name) {
+        synchronized (sStores) {
+            PathSetStore store = sStores.get(name);
+            if (store == null) {
+                store = new PathSetStore(context.getApplicationContext(), name);
+                sStores.put(name, store);
+            }
+            return store;
+        }
+    }
+
+    private PathSetStore(final Context context, final String name) {
+        super();
+        mFile = new File(new File(context.getFilesDir(), STORE_DIR), name);
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                Set<String> paths = new HashSet<>();
+                try {
+                    if (!mFile.exists() || !load(paths)) {
+                        paths.clear();
+                        migrate(context, name, paths);
+                    }
+                } finally {
+                    // Never leave the callers waiting
+                    synchronized (PathSetStore.this) {
+                        mPaths.addAll(paths);
+                        mLoaded = true;
+                        PathSetStore.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private void waitForLoad() {
+        boolean interrupted = false;
+        while (!mLoaded) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Method that returns if the set contains a path
+     *
+     * @param path The path
+     * @return boolean If the set contains the path
+     */
+    public synchronized boolean contains(String path) {
+        waitForLoad();
+        return mPaths.contains(path);
+    }
+
+    /**
+     * Method that returns if the set contains a path or its parent
+     *
+     * @param path The path
+     * @param parent The parent path
+     * @return boolean If the set contains the path or its parent
+     */
+    public synchronized boolean contains(String path, String parent) {
+        waitForLoad();
+        return mPaths.contains(path) || mPaths.contains(parent);
+    }
+
+    /**
+     * Method that returns a copy of the paths of the set
+     *
+     * @return Set<String> The paths
+     */
+    public synchronized Set<String> getAll() {
+        waitForLoad();
+        return new HashSet<>(mPaths);
+    }
+
+    /**
+     * Method that replaces the paths of the set. Only the differences are written.
+     *
+     * @param paths The new paths
+     */
+    public synchronized void set(Set<String> paths) {
+        waitForLoad();
+        List<String> removed = new ArrayList<>();
+        for (String path : mPaths) {
+            if (!paths.contains(path)) {
+                removed.add(path);
+            }
+        }
+        List<String> added = new ArrayList<>();
+        for (String path : paths) {
+            if (!mPaths.contains(path)) {
+                added.add(path);
+            }
+        }
+        apply(added, removed);
+    }
+
+    /**
+     * Method that adds some paths to the set in a single write
+     *
+     * @param paths The paths to add
+     */
+    public synchronized void addAll(Collection<String> paths) {
+        waitForLoad();
+        List<String> added = new ArrayList<>();
+        for (String path : paths) {
+            if (!mPaths.contains(path)) {
+                added.add(path);
+            }
+        }
+        apply(added, new ArrayList<String>());
+    }
+
+    private void apply(final List<String> added, final List<String> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        mPaths.addAll(added);
+        mPaths.removeAll(removed);
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(added, removed);
+            }
+        });
+    }
+
+    private void write(List<String> added, List<String> removed) {
+        // The changes applied in memory after this one are written again by their own
+        // writes, so compacting a newer state of the set is safe
+        int size;
+        synchronized (this) {
+            size = mPaths.size();
+        }
+        int records = mRecords + added.size() + removed.size();
+        if (records > size + COMPACT_THRESHOLD || !mFile.exists()) {
+            compact(getAll());
+            return;
+        }
+
+        DataOutputStream os = null;
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            for (String path : added) {
+                os.writeByte(OP_ADD);
+                os.writeUTF(path);
+            }
+            for (String path : removed) {
+                os.writeByte(OP_REMOVE);
+                os.writeUTF(path);
+            }
+            os.flush();
+            mRecords = records;
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write " + mFile, ex);
+            close(os);
+            os = null;
+            compact(getAll());
+        } finally {
+            close(os);
+        }
+    }
+
+    private void compact(Set<String> paths) {
+        File dir = mFile.getParentFile();
+        File tmp = new File(dir, mFile.getName() + TMP_SUFFIX);
+        DataOutputStream os = null;
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            for (String path : paths) {
+                os.writeByte(OP_ADD);
+                os.writeUTF(path);
+            }
+            os.close();
+            os = null;
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Cannot rename " + tmp);
+            }
+            mRecords = paths.size();
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write " + mFile, ex);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        } finally {
+            close(os);
+        }
+    }
+
+    /**
+     * @return boolean If the file is a log of paths (false if it should be migrated again)
+     */
+    private boolean load(Set<String> paths) {
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                Log.w(TAG, "Invalid file " + mFile + ". Migrating it again");
+                return false;
+            }
+            while (true) {
+                byte op;
+                try {
+                    op = is.readByte();
+                } catch (EOFException ex) {
+                    break;
+                }
+                String path = is.readUTF();
+                if (op == OP_ADD) {
+                    paths.add(path);
+                } else if (op == OP_REMOVE) {
+                    paths.remove(path);
+                } else {
+                    throw new IOException("Invalid record");
+                }
+                mRecords++;
+            }
+        } catch (IOException ex) {
+            // Keep the records read until the failure (an interrupted write only loses
+            // its own records) and rewrite the log
+            Log.w(TAG, "Failed to read " + mFile, ex);
+            close(is);
+            is = null;
+            compact(paths);
+        } finally {
+            close(is);
+        }
+        return true;
+    }
+
+    private void migrate(Context context, String name, Set<String> paths) {
+        SharedPreferences preferences = context.getSharedPreferences(
+                PreferencesProvider.PREFERENCES_FILE, Context.MODE_PRIVATE);
+        Set<String> set = preferences.getStringSet(name, null);
+        if (set != null) {
+            paths.addAll(set);
+        }
+        compact(paths);
+        if (set != null && mFile.exists()) {
+            preferences.edit().remove(name).apply();
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }
+    }
+}
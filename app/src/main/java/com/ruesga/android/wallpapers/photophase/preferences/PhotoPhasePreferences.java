@@ -84,6 +84,15 @@ public class PhotoPhasePreferences extends AppCompatPreferenceActivity {
 
         // Retrieve the about header
         mAboutHeader = target.get(target.size() - 1);
+
+        // The statistics screen is hidden unless it was enabled through dumpsys
+        if (PreferencesProvider.Preferences.General.isDebugStats(this)) {
+            Header debug = new Header();
+            debug.title = getString(R.string.pref_debug);
+            debug.summary = getString(R.string.pref_debug_summary);
+            debug.fragment = DebugPreferenceFragment.class.getName();
+            target.add(target.size() - 1, debug);
+        }
     }
 
     @Override
@@ -183,6 +192,7 @@ public class PhotoPhasePreferences extends AppCompatPreferenceActivity {
                 || LiveEffectsPreviewFragment.class.getName().equals(fragmentName)
                 || LiveBordersPreviewFragment.class.getName().equals(fragmentName)
                 || PortraitDispositionFragment.class.getName().equals(fragmentName)
-                || LandscapeDispositionFragment.class.getName().equals(fragmentName);
+                || LandscapeDispositionFragment.class.getName().equals(fragmentName)
+                || DebugPreferenceFragment.class.getName().equals(fragmentName);
     }
 }
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.preferences;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A write-behind store of the playback position (the last media shown). The position
+ * changes with every picture shown, so the updates are held in memory and coalesced, and
+ * only the last one is written to a small file under the app files directory: after a
+ * delay, when the wallpaper is paused or when it's destroyed. Other logs of the playback
+ * (the cycle of random draws) are registered to be flushed with the same schedule. The
+ * delayed flushes run in a background thread, and the files are written without holding
+ * the lock of the store, so the callers are never blocked by the disk.<br/>
+ * <br/>
+ * There is only one instance in the process. The position is migrated from the
+ * preference key the first time it's loaded. The file is loaded by the background thread
+ * too, so the callers only wait for the first load.
+ */
+public final class PlaybackStateStore {
+
+    private static final String TAG = "PlaybackStateStore";
+
+    private static final String STATE_FILE = "playback";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String PREFERENCE_KEY = "media_last_media_shown";
+
+    private static final int MAGIC = 0x50505053;
+    private static final int VERSION = 1;
+
+    private static final long FLUSH_DELAY = 30000L;
+
+    private static PlaybackStateStore sInstance;
+
+    private final File mFile;
+    private final Handler mHandler;
+    // Serializes the writes of the file (the flushes can come from any thread)
+    private final Object mWriteSync = new Object();
+
+    private String mLastMedia;
+    private boolean mLoaded;
+    private boolean mDirty;
+    private boolean mFlushScheduled;
+    private final List<Flushable> mLogs = new ArrayList<>();
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PlaybackStateStore.this) {
+                mFlushScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    /**
+     * Method that returns the store of the playback position
+     *
+     * @param context The current context
+     * @return PlaybackStateStore The store
+     */
+    public static synchronized PlaybackStateStore get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PlaybackStateStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PlaybackStateStore(final Context context) {
+        super();
+        mFile = new File(context.getFilesDir(), STATE_FILE);
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                String media = null;
+                try {
+                    media = mFile.exists() ? load() : migrate(context);
+                } finally {
+                    // Never leave the callers waiting
+                    synchronized (PlaybackStateStore.this) {
+                        mLastMedia = media;
+                        mLoaded = true;
+                        PlaybackStateStore.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private void waitForLoad() {
+        boolean interrupted = false;
+        while (!mLoaded) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Method that returns the last media shown
+     *
+     * @return String The last media shown or null
+     */
+    public synchronized String getLastMedia() {
+        waitForLoad();
+        return mLastMedia;
+    }
+
+    /**
+     * Method that sets the last media shown. The change is written later.
+     *
+     * @param media The last media shown
+     */
+    public synchronized void setLastMedia(String media) {
+        waitForLoad();
+        if (media == null ? mLastMedia == null : media.equals(mLastMedia)) {
+            return;
+        }
+        mLastMedia = media;
+        mDirty = true;
+        scheduleFlush();
+    }
+
+    /**
+     * Method that registers a log to be flushed with the playback position
+     *
+     * @param log The log
+     */
+    public synchronized void register(Flushable log) {
+        if (!mLogs.contains(log)) {
+            mLogs.add(log);
+        }
+    }
+
+    /**
+     * Method that unregisters a log
+     *
+     * @param log The log
+     */
+    public synchronized void unregister(Flushable log) {
+        mLogs.remove(log);
+    }
+
+    /**
+     * Method that schedules a flush, if there isn't one already scheduled. Can be called
+     * from any thread.
+     */
+    public synchronized void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushTask, FLUSH_DELAY);
+        }
+    }
+
+    /**
+     * Method that writes the pending change and flushes the registered logs in the
+     * background thread, without waiting for the delay of a scheduled flush. Can be called
+     * from any thread.
+     */
+    public void flushAsync() {
+        mHandler.removeCallbacks(mFlushTask);
+        mHandler.post(mFlushTask);
+    }
+
+    /**
+     * Method that writes the pending change, if any, and flushes the registered logs. Can
+     * be called from any thread, but it blocks on the disk (see {@link #flushAsync()}).
+     */
+    public void flush() {
+        List<Flushable> logs;
+        synchronized (mWriteSync) {
+            // The change is taken under the write lock, so an older change is never
+            // written over a newer one
+            String media = null;
+            boolean dirty;
+            synchronized (this) {
+                dirty = mDirty;
+                if (dirty) {
+                    mDirty = false;
+                    media = mLastMedia;
+                }
+                logs = new ArrayList<>(mLogs);
+            }
+            if (dirty && !write(media)) {
+                synchronized (this) {
+                    // Retry with the next flush, unless there is already a newer change
+                    mDirty = true;
+                }
+            }
+        }
+        for (Flushable log : logs) {
+            try {
+                log.flush();
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to flush " + log, ex);
+            }
+        }
+    }
+
+    private boolean write(String media) {
+        synchronized (mWriteSync) {
+            File tmp = new File(mFile.getParentFile(), STATE_FILE + TMP_SUFFIX);
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(tmp);
+                DataOutputStream os = new DataOutputStream(fos);
+                os.writeInt(MAGIC);
+                os.writeInt(VERSION);
+                os.writeBoolean(media != null);
+                if (media != null) {
+                    os.writeUTF(media);
+                }
+                os.flush();
+
+                // The data must be on disk before the rename, or a crash could leave
+                // an empty file in place of the previous one
+                fos.getFD().sync();
+                fos.close();
+                fos = null;
+                if (!tmp.renameTo(mFile)) {
+                    throw new IOException("Cannot rename " + tmp);
+                }
+                return true;
+            } catch (IOException ex) {
+                Log.w(TAG, "Failed to write " + mFile, ex);
+                close(fos);
+                fos = null;
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+                return false;
+            } finally {
+                close(fos);
+            }
+        }
+    }
+
+    private String load() {
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new FileInputStream(mFile));
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                throw new IOException("Invalid file");
+            }
+            return is.readBoolean() ? is.readUTF() : null;
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to read " + mFile, ex);
+            return null;
+        } finally {
+            close(is);
+        }
+    }
+
+    private String migrate(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(
+                PreferencesProvider.PREFERENCES_FILE, Context.MODE_PRIVATE);
+        String media = preferences.getString(PREFERENCE_KEY, null);
+        if (write(media) && preferences.contains(PREFERENCE_KEY)) {
+            preferences.edit().remove(PREFERENCE_KEY).apply();
+        }
+        return media;
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -156,6 +156,15 @@ public final class PreferencesProvider {
                 return getSharedPreferences(context).getBoolean("ui_power_of_two", false);
             }
 
+            /**
+             * Return the current user preference about using compressed (ETC1) textures.
+             *
+             * @return boolean Indicates if opaque pictures should be uploaded compressed
+             */
+            public static boolean isCompressedTextures(Context context) {
+                return getSharedPreferences(context).getBoolean("ui_compressed_textures", false);
+            }
+
             /**
              * Return the current user preference about fix or not fix the aspect ratio
              * of the image by cropping the image.
@@ -180,6 +189,26 @@ public final class PreferencesProvider {
                 return getSharedPreferences(context).getBoolean("ui_wallpaper_offset", false);
             }
 
+            /**
+             * Return if the hidden screen with the pipeline statistics is enabled.
+             *
+             * @return boolean Indicates if the debug statistics screen is shown
+             */
+            public static boolean isDebugStats(Context context) {
+                return getSharedPreferences(context).getBoolean("debug_pipeline_stats", false);
+            }
+
+            /**
+             * Enables or disables the hidden screen with the pipeline statistics.
+             */
+            public static void setDebugStats(Context context, boolean enabled) {
+                SharedPreferences preferences =
+                        context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+                Editor editor = preferences.edit();
+                editor.putBoolean("debug_pipeline_stats", enabled);
+                editor.apply();
+            }
+
             /**
              * Touch behaviour preferences
              */
@@ -406,18 +435,22 @@ public final class PreferencesProvider {
             }
 
             // Internal settings (non-UI)
+            /**
+             * Method that returns the store of the albums and pictures to be displayed
+             *
+             * @return PathSetStore The store of the albums and pictures to be displayed
+             */
+            public static PathSetStore getSelectedMediaStore(Context context) {
+                return PathSetStore.get(context, "media_selected_media");
+            }
+
             /**
              * Method that returns the list of albums and pictures to be displayed
              *
              * @return Set<String> The list of albums and pictures to be displayed
              */
             public static Set<String> getSelectedMedia(Context context) {
-                Set<String> set = getSharedPreferences(context).getStringSet(
-                        "media_selected_media", null);
-                if (set == null) {
-                    return new HashSet<>();
-                }
-                return new HashSet<>(set);
+                return getSelectedMediaStore(context).getAll();
             }
 
             /**
@@ -426,13 +459,18 @@ public final class PreferencesProvider {
             * @param context The current context
             * @param selection The new list of albums and pictures to be displayed
             */
-           public static synchronized void setSelectedMedia(
-                   Context context, Set<String> selection) {
-               SharedPreferences preferences =
-                       context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
-               Editor editor = preferences.edit();
-               editor.putStringSet("media_selected_media", selection);
-               editor.apply();
+           public static void setSelectedMedia(Context context, Set<String> selection) {
+               getSelectedMediaStore(context).set(selection);
+           }
+
+           /**
+            * Method that returns the store of the name of the albums seen by the
+            * last media discovery scan.
+            *
+            * @return PathSetStore The store of the albums seen by the last scan
+            */
+           public static PathSetStore getLastDiscoveredAlbumsStore(Context context) {
+               return PathSetStore.get(context, "media_last_discovered_albums");
            }
 
            /**
@@ -442,12 +480,7 @@ public final class PreferencesProvider {
             * @return Set<String> The list of albums and pictures to be displayed
             */
            public static Set<String> getLastDiscorevedAlbums(Context context) {
-               Set<String> set = getSharedPreferences(context).getStringSet(
-                       "media_last_discovered_albums", null);
-               if (set == null) {
-                   return new HashSet<>();
-               }
-               return new HashSet<>(set);
+               return getLastDiscoveredAlbumsStore(context).getAll();
            }
 
            /**
@@ -457,36 +490,36 @@ public final class PreferencesProvider {
             * @param context The current context
             * @param albums The albums seen by the last media discovery scan
             */
-           public static synchronized void setLastDiscorevedAlbums(
-                   Context context, Set<String> albums) {
-               SharedPreferences preferences =
-                       context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
-               Editor editor = preferences.edit();
-               editor.putStringSet("media_last_discovered_albums", albums);
-               editor.apply();
+           public static void setLastDiscorevedAlbums(Context context, Set<String> albums) {
+               getLastDiscoveredAlbumsStore(context).set(albums);
            }
 
+            /**
+             * Method that returns the store of the last media shown
+             *
+             * @return PlaybackStateStore The store of the last media shown
+             */
+            public static PlaybackStateStore getLastMediaShownStore(Context context) {
+                return PlaybackStateStore.get(context);
+            }
+
             /**
              * Method that returns the last media shown
              *
              * @return String The last media shown
              */
             public static String getLastMediaShown(Context context) {
-                return getSharedPreferences(context).getString("media_last_media_shown", null);
+                return getLastMediaShownStore(context).getLastMedia();
             }
 
             /**
-             * Method that returns the list of albums and pictures to be displayed
+             * Method that sets the last media shown. The change is written in background.
              *
              * @param context The current context
              * @param media The current media shown
              */
-            public static synchronized void setLastMediaShown(Context context, String media) {
-                SharedPreferences preferences =
-                        context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
-                Editor editor = preferences.edit();
-                editor.putString("media_last_media_shown", media);
-                editor.apply();
+            public static void setLastMediaShown(Context context, String media) {
+                getLastMediaShownStore(context).setLastMedia(media);
             }
         }
 
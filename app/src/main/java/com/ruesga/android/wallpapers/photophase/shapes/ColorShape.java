@@ -18,8 +18,8 @@ package com.ruesga.android.wallpapers.photophase.shapes;
 
 import android.content.Context;
 import android.opengl.GLES20;
-import android.util.Log;
 
+import com.ruesga.android.wallpapers.photophase.utils.GLESProgramRegistry;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil.GLColor;
 import com.ruesga.android.wallpapers.photophase.R;
@@ -137,13 +137,7 @@ public class ColorShape implements DrawableShape {
      * Method that destroy all the internal references
      */
     public void recycle() {
-        if (GLES20.glIsProgram(mProgramHandler)) {
-            if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteProgram: " + mProgramHandler);
-            }
-            GLES20.glDeleteProgram(mProgramHandler);
-            GLESUtil.glesCheckError("glDeleteProgram");
-        }
+        GLESProgramRegistry.release(mProgramHandler);
         mProgramHandler = 0;
         mPositionHandler = 0;
         mColorHandler = 0;
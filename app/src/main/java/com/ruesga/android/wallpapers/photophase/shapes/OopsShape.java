@@ -24,11 +24,12 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Typeface;
 import android.opengl.GLES20;
-import android.util.Log;
 
 import com.ruesga.android.wallpapers.photophase.AndroidHelper;
 import com.ruesga.android.wallpapers.photophase.R;
 import com.ruesga.android.wallpapers.photophase.preferences.PreferencesProvider;
+import com.ruesga.android.wallpapers.photophase.utils.GLESProgramRegistry;
+import com.ruesga.android.wallpapers.photophase.utils.GLESTexturePool;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil.GLColor;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil.GLESTextureInfo;
@@ -248,33 +249,15 @@ public class OopsShape implements DrawableShape {
     public void recycle() {
         // Remove textures
         if (mOopsImageTexture != null && mOopsImageTexture.handle != 0) {
-            if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteTextures: ["
-                        + mOopsImageTexture.handle + "]");
-            }
-            int[] textures = new int[]{mOopsImageTexture.handle};
-            GLES20.glDeleteTextures(1, textures, 0);
-            GLESUtil.glesCheckError("glDeleteTextures");
+            GLESTexturePool.release(mOopsImageTexture.handle);
         }
         mOopsImageTexture = null;
         if (mOopsTextTexture != null && mOopsTextTexture.handle != 0) {
-            int[] textures = new int[]{mOopsTextTexture.handle};
-            if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteTextures: ["
-                        + mOopsTextTexture.handle + "]");
-            }
-            GLES20.glDeleteTextures(1, textures, 0);
-            GLESUtil.glesCheckError("glDeleteTextures");
+            GLESTexturePool.release(mOopsTextTexture.handle);
         }
         mOopsTextTexture = null;
         if (mNoPermissionTextTexture != null && mNoPermissionTextTexture.handle != 0) {
-            int[] textures = new int[]{mNoPermissionTextTexture.handle};
-            if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteTextures: ["
-                        + mNoPermissionTextTexture.handle + "]");
-            }
-            GLES20.glDeleteTextures(1, textures, 0);
-            GLESUtil.glesCheckError("glDeleteTextures");
+            GLESTexturePool.release(mNoPermissionTextTexture.handle);
         }
         mNoPermissionTextTexture = null;
 
@@ -289,14 +272,7 @@ public class OopsShape implements DrawableShape {
         mTextureBuffer = null;
 
         for (int i = 0; i < 2; i++) {
-            if (GLES20.glIsProgram(mProgramHandlers[i])) {
-                if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                    Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteProgram: "
-                            + mProgramHandlers[i]);
-                }
-                GLES20.glDeleteProgram(mProgramHandlers[i]);
-                GLESUtil.glesCheckError("glDeleteProgram(" + i + ")");
-            }
+            GLESProgramRegistry.release(mProgramHandlers[i]);
             mProgramHandlers[i] = 0;
             mTextureHandlers[i] = 0;
             mPositionHandlers[i] = 0;
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.textures;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Process;
+import android.util.Log;
+
+import com.ruesga.android.wallpapers.photophase.utils.BitmapPool;
+import com.ruesga.android.wallpapers.photophase.utils.BitmapUtils;
+import com.ruesga.android.wallpapers.photophase.utils.BitmapUtils.ScalingLogic;
+import com.ruesga.android.wallpapers.photophase.utils.GLESUtil;
+import com.ruesga.android.wallpapers.photophase.utils.GLESUtil.GLESTextureInfo;
+
+import java.io.File;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of background workers that decode pictures outside the GLThread. Workers
+ * only produce ready-to-upload bitmaps; the GLES upload is left to the caller. The pool is
+ * shared by all the texture managers of the process (see {@link SharedPictureService}).
+ */
+public class DecodeWorkerPool {
+
+    private static final String TAG = "DecodeWorkerPool";
+
+    private static final int MAX_WORKERS = 4;
+    private static final long KEEP_ALIVE_TIME = 30L;
+
+    /**
+     * An interface to be notified when a picture was decoded
+     */
+    public interface OnPictureDecodedListener {
+        /**
+         * Invoked from a worker thread when the picture was decoded. An invalid picture is
+         * reported with a texture info without bitmap.
+         *
+         * @param image The picture file
+         * @param ti The texture info (with the bitmap, but no gles data)
+         */
+        void onPictureDecoded(File image, GLESTextureInfo ti);
+    }
+
+    private static class DecodeThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Runnable wrapper = new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            };
+            return new Thread(wrapper, "PictureDecoder #" + mCount.getAndIncrement());
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final FrameBitmapDiskCache mCache;
+
+    /**
+     * Constructor of <code>DecodeWorkerPool</code>
+     *
+     * @param cache The cache of frame-sized pictures or null if no cache should be used
+     */
+    public DecodeWorkerPool(FrameBitmapDiskCache cache) {
+        super();
+        mCache = cache;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int workers = Math.max(1, Math.min(cores - 1, MAX_WORKERS));
+        mExecutor = new ThreadPoolExecutor(workers, workers, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DecodeThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Method that enqueues a new decode request
+     *
+     * @param image The picture to decode
+     * @param dimensions The desired dimensions
+     * @param scalingLogic The logic that will be used to scale the picture
+     * @param cacheLogic The logic of the pixels stored in the cache. If it differs from the
+     * scaling logic, the cache stores a copy of the picture scaled with this logic
+     * @param compress If the cropped pictures should be also compressed to ETC1
+     * @param cb The callback to notify when the picture was decoded
+     * @return boolean If the request was accepted
+     */
+    public boolean decode(final File image, final Rect dimensions,
+            final ScalingLogic scalingLogic, final ScalingLogic cacheLogic,
+            final boolean compress, final OnPictureDecodedListener cb) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    GLESTextureInfo ti;
+                    try {
+                        ti = loadPicture(image, dimensions, scalingLogic, cacheLogic,
+                                compress);
+                    } catch (Throwable e) {
+                        Log.e(TAG, "Something was wrong decoding the picture: " +
+                                image.getAbsolutePath(), e);
+                        ti = new GLESTextureInfo();
+                    }
+                    if (mExecutor.isShutdown()) {
+                        // Nobody is waiting for this picture
+                        if (ti.bitmap != null) {
+                            BitmapPool.recycle(ti.bitmap);
+                            ti.bitmap = null;
+                        }
+                        return;
+                    }
+                    cb.onPictureDecoded(image, ti);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Method that enqueues the decode of the placeholder of a picture (its thumbnail). The
+     * lookup of the thumbnail reads the exif of the picture and queries the media provider,
+     * so it's done by the workers too.
+     *
+     * @param context The current context
+     * @param image The picture
+     * @param cb The callback to notify when the placeholder was decoded
+     * @return boolean If the request was accepted
+     */
+    public boolean decodePlaceholder(final Context context, final File image,
+            final OnPictureDecodedListener cb) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    GLESTextureInfo ti;
+                    try {
+                        ti = GLESUtil.loadFakePlaceholderTexture(context, image);
+                    } catch (Throwable e) {
+                        Log.e(TAG, "Something was wrong decoding the placeholder: " +
+                                image.getAbsolutePath(), e);
+                        ti = new GLESTextureInfo();
+                    }
+                    if (mExecutor.isShutdown()) {
+                        // Nobody is waiting for this placeholder
+                        if (ti.bitmap != null) {
+                            BitmapPool.recycle(ti.bitmap);
+                            ti.bitmap = null;
+                        }
+                        return;
+                    }
+                    cb.onPictureDecoded(image, ti);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Method that loads a picture. Cropped pictures are decoded to the exact requested
+     * dimensions and fitted pictures to the nearest subsample of them, so they can be served
+     * from the cache the next time they are requested with the same dimensions.
+     *
+     * @param image The picture to decode
+     * @param dimensions The desired dimensions
+     * @param scalingLogic The logic that will be used to scale the picture
+     * @param cacheLogic The logic of the pixels stored in the cache
+     * @param compress If the picture should be also compressed to ETC1
+     * @return GLESTextureInfo The texture info (with the bitmap, but no gles data)
+     */
+    private GLESTextureInfo loadPicture(File image, Rect dimensions, ScalingLogic scalingLogic,
+            ScalingLogic cacheLogic, boolean compress) {
+        final int w = dimensions.width();
+        final int h = dimensions.height();
+        GLESTextureInfo ti = mCache != null ? mCache.get(image, w, h, cacheLogic) : null;
+        boolean cached = ti != null;
+        if (ti == null) {
+            ti = GLESUtil.loadFakeTexture(image, dimensions, scalingLogic);
+            if (ti.bitmap != null && mCache != null) {
+                if (cacheLogic == scalingLogic) {
+                    mCache.put(image, w, h, cacheLogic, ti);
+                    cached = true;
+                } else {
+                    putScaled(image, w, h, cacheLogic, ti);
+                }
+            }
+        }
+
+        // Opaque pictures can be uploaded compressed. Compress them here, so the GLThread
+        // only has to upload them. The compressed pixels are keyed as the bitmap they
+        // were encoded from, so only the pixels that come from the cache key are cached
+        if (compress && ti.bitmap != null && !ti.bitmap.hasAlpha()) {
+            if (mCache != null && cached) {
+                ti.compressed = mCache.getCompressed(image, w, h, cacheLogic);
+            }
+            if (ti.compressed == null
+                    || ti.compressed.getWidth() != ti.bitmap.getWidth()
+                    || ti.compressed.getHeight() != ti.bitmap.getHeight()) {
+                ti.compressed = BitmapUtils.compressBitmap(ti.bitmap);
+                if (mCache != null && cached) {
+                    mCache.putCompressed(image, w, h, cacheLogic, ti.compressed);
+                }
+            }
+        }
+        return ti;
+    }
+
+    /**
+     * Method that stores in the cache a copy of a decoded picture scaled with other logic.
+     * Fitted pictures decoded to be cropped through the texture coordinates are much larger
+     * than the frame, so only the frame-sized crop is stored and the byte cap of the cache
+     * holds as many pictures as with the bitmap crop.
+     *
+     * @param image The picture file
+     * @param w The target width (of the oriented picture)
+     * @param h The target height (of the oriented picture)
+     * @param cacheLogic The logic of the pixels stored in the cache
+     * @param ti The decoded picture (with the bitmap as stored in the picture file)
+     */
+    private void putScaled(File image, int w, int h, ScalingLogic cacheLogic,
+            GLESTextureInfo ti) {
+        // The pixels aren't oriented yet, so swap the dimensions of pictures stored rotated
+        boolean swap = BitmapUtils.isExifOrientationSwapped(ti.orientation);
+        Bitmap scaled = BitmapUtils.createScaledBitmap(ti.bitmap,
+                swap ? h : w, swap ? w : h, cacheLogic);
+        GLESTextureInfo copy = new GLESTextureInfo();
+        copy.bitmap = scaled;
+        copy.orientation = ti.orientation;
+        copy.path = image;
+        mCache.put(image, w, h, cacheLogic, copy);
+        if (!scaled.equals(ti.bitmap)) {
+            BitmapPool.recycle(scaled);
+        }
+    }
+
+    /**
+     * Method that stops all the workers
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.textures;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.opengl.ETC1Util.ETC1Texture;
+import android.util.Log;
+
+import com.ruesga.android.wallpapers.photophase.R;
+import com.ruesga.android.wallpapers.photophase.utils.BitmapPool;
+import com.ruesga.android.wallpapers.photophase.utils.BitmapUtils;
+import com.ruesga.android.wallpapers.photophase.utils.BitmapUtils.ScalingLogic;
+import com.ruesga.android.wallpapers.photophase.utils.GLESUtil.GLESTextureInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A persistent cache of the frame-sized pixels of the pictures (raw or ETC1 compressed),
+ * stored under the app cache directory and read back through memory-mapped I/O. Entries are
+ * keyed by the picture path, its last modification time, the target dimensions and the
+ * scaling logic, and evicted in LRU order under a byte cap.
+ */
+public class FrameBitmapDiskCache {
+
+    private static final String TAG = "FrameBitmapDiskCache";
+
+    private static final boolean DEBUG = false;
+
+    private static final String CACHE_DIR = "frames";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String COMPRESSED_SUFFIX = ".etc1";
+
+    // Entry header: magic, version, the full key of the entry (the file name is only a hash
+    // of it), width, height and bitmap config (plus alpha flag and Exif orientation) for
+    // bitmaps or the data size for compressed textures
+    private static final int MAGIC = 0x50504643;
+    private static final int VERSION = 2;
+    private static final int ALPHA_FLAG = 0x100;
+    private static final int CONFIG_MASK = 0xff;
+    private static final int ORIENTATION_SHIFT = 16;
+
+    // The persisted codes of the bitmap configs (the enum ordinals are not stable)
+    private static final int CONFIG_ALPHA_8 = 1;
+    private static final int CONFIG_RGB_565 = 2;
+    private static final int CONFIG_ARGB_4444 = 3;
+    private static final int CONFIG_ARGB_8888 = 4;
+
+    private final File mDir;
+    private final long mMaxSize;
+
+    // The index of entries (name -> bytes) in access order
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(32, 0.75f, true);
+    private long mSize;
+    private boolean mIndexed;
+
+    /**
+     * Constructor of <code>FrameBitmapDiskCache</code>
+     *
+     * @param context The current context
+     */
+    public FrameBitmapDiskCache(Context context) {
+        this(new File(context.getCacheDir(), CACHE_DIR),
+                context.getResources().getInteger(R.integer.config_frame_cache_size) * 1024L * 1024L);
+    }
+
+    /**
+     * Constructor of <code>FrameBitmapDiskCache</code>
+     *
+     * @param dir The cache directory
+     * @param maxSize The maximum number of bytes the cache can hold
+     */
+    public FrameBitmapDiskCache(File dir, long maxSize) {
+        super();
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Method that reads the cached pixels of a picture. The pixels are returned as stored,
+     * so they must be drawn with the returned Exif orientation.
+     *
+     * @param image The picture file
+     * @param width The target width (of the oriented picture)
+     * @param height The target height (of the oriented picture)
+     * @param scalingLogic The logic used to scale the picture to the target dimensions
+     * @return GLESTextureInfo The cached picture (with the bitmap, but no gles data) or null
+     * if the picture is not cached
+     */
+    public GLESTextureInfo get(File image, int width, int height, ScalingLogic scalingLogic) {
+        final String key = getKey(image, width, height, scalingLogic);
+        final String name = getName(key, width, height);
+        synchronized (this) {
+            ensureIndex();
+            if (mEntries.get(name) == null) {
+                return null;
+            }
+        }
+
+        File entry = new File(mDir, name);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(entry, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+            readHeader(buffer, key);
+            final int w = buffer.getInt();
+            final int h = buffer.getInt();
+            int flags = buffer.getInt();
+            final int orientation = flags >>> ORIENTATION_SHIFT;
+            final boolean swap = BitmapUtils.isExifOrientationSwapped(orientation);
+            if (scalingLogic == ScalingLogic.CROP
+                    && (w != (swap ? height : width) || h != (swap ? width : height))) {
+                // Cropped pictures have the exact target dimensions
+                throw new IOException("Invalid cache entry");
+            }
+            Bitmap.Config config = toConfig(flags & CONFIG_MASK);
+            Bitmap bitmap = BitmapPool.obtain(w, h, config);
+            bitmap.copyPixelsFromBuffer(buffer);
+            bitmap.setHasAlpha((flags & ALPHA_FLAG) != 0);
+
+            GLESTextureInfo ti = new GLESTextureInfo();
+            ti.bitmap = bitmap;
+            ti.orientation = orientation;
+            ti.path = image;
+            return ti;
+
+        } catch (IOException | RuntimeException ex) {
+            Log.w(TAG, "Failed to read cache entry for " + image, ex);
+            remove(name);
+            return null;
+
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Method that stores the pixels of a picture in the cache
+     *
+     * @param image The picture file
+     * @param dstWidth The target width (of the oriented picture)
+     * @param dstHeight The target height (of the oriented picture)
+     * @param scalingLogic The logic used to scale the picture to the target dimensions
+     * @param ti The decoded picture (with the bitmap as stored in the picture file)
+     */
+    public void put(File image, int dstWidth, int dstHeight, ScalingLogic scalingLogic,
+            GLESTextureInfo ti) {
+        final Bitmap bitmap = ti.bitmap;
+        if (bitmap == null || bitmap.isRecycled() || bitmap.getConfig() == null) {
+            return;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int orientation = ti.orientation;
+        final int configCode = toCode(bitmap.getConfig());
+        final String key = getKey(image, dstWidth, dstHeight, scalingLogic);
+        final String name = getName(key, dstWidth, dstHeight);
+        final byte[] keyBytes = toBytes(key);
+        final long size = getHeaderSize(keyBytes) + (long) bitmap.getRowBytes() * height;
+        if (configCode == 0 || size > mMaxSize) {
+            return;
+        }
+        synchronized (this) {
+            ensureIndex();
+            if (mEntries.containsKey(name)) {
+                return;
+            }
+        }
+
+        File tmp = new File(mDir, name + TMP_SUFFIX);
+        RandomAccessFile raf = null;
+        try {
+            if (!mDir.exists() && !mDir.mkdirs()) {
+                return;
+            }
+            raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            writeHeader(buffer, keyBytes);
+            buffer.putInt(width);
+            buffer.putInt(height);
+            buffer.putInt(configCode | (bitmap.hasAlpha() ? ALPHA_FLAG : 0)
+                    | (orientation << ORIENTATION_SHIFT));
+            bitmap.copyPixelsToBuffer(buffer);
+            close(raf);
+            raf = null;
+
+            commit(tmp, name, size);
+            if (DEBUG) Log.d(TAG, "Cached " + image + " (" + width + "x" + height + ")");
+
+        } catch (IOException | RuntimeException ex) {
+            Log.w(TAG, "Failed to write cache entry for " + image, ex);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Method that reads the cached compressed pixels of a picture
+     *
+     * @param image The picture file
+     * @param dstWidth The target width (of the oriented picture)
+     * @param dstHeight The target height (of the oriented picture)
+     * @param scalingLogic The logic used to scale the picture to the target dimensions
+     * @return ETC1Texture The cached texture or null if the picture is not cached
+     */
+    public ETC1Texture getCompressed(File image, int dstWidth, int dstHeight,
+            ScalingLogic scalingLogic) {
+        final String key = getKey(image, dstWidth, dstHeight, scalingLogic) + COMPRESSED_SUFFIX;
+        final String name = getName(key, dstWidth, dstHeight) + COMPRESSED_SUFFIX;
+        synchronized (this) {
+            ensureIndex();
+            if (mEntries.get(name) == null) {
+                return null;
+            }
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(new File(mDir, name), "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+            readHeader(buffer, key);
+            final int width = buffer.getInt();
+            final int height = buffer.getInt();
+            int size = buffer.getInt();
+            buffer.limit(buffer.position() + size);
+
+            // Fault in the pages here, so the upload doesn't hit the disk in the GLThread
+            ByteBuffer data = buffer.slice().order(ByteOrder.nativeOrder());
+            buffer.load();
+            return new ETC1Texture(width, height, data);
+
+        } catch (IOException | RuntimeException ex) {
+            Log.w(TAG, "Failed to read compressed cache entry for " + image, ex);
+            remove(name);
+            return null;
+
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Method that stores the compressed pixels of a picture in the cache
+     *
+     * @param image The picture file
+     * @param dstWidth The target width (of the oriented picture)
+     * @param dstHeight The target height (of the oriented picture)
+     * @param scalingLogic The logic used to scale the picture to the target dimensions
+     * @param texture The compressed texture (with the pixels as stored in the picture file)
+     */
+    public void putCompressed(File image, int dstWidth, int dstHeight,
+            ScalingLogic scalingLogic, ETC1Texture texture) {
+        if (texture == null) {
+            return;
+        }
+        final int width = texture.getWidth();
+        final int height = texture.getHeight();
+        final String key = getKey(image, dstWidth, dstHeight, scalingLogic) + COMPRESSED_SUFFIX;
+        final String name = getName(key, dstWidth, dstHeight) + COMPRESSED_SUFFIX;
+        final byte[] keyBytes = toBytes(key);
+        final ByteBuffer data = texture.getData();
+        final int dataSize = data.capacity();
+        final long size = getHeaderSize(keyBytes) + dataSize;
+        if (size > mMaxSize) {
+            return;
+        }
+        synchronized (this) {
+            ensureIndex();
+            if (mEntries.containsKey(name)) {
+                return;
+            }
+        }
+
+        File tmp = new File(mDir, name + TMP_SUFFIX);
+        RandomAccessFile raf = null;
+        try {
+            if (!mDir.exists() && !mDir.mkdirs()) {
+                return;
+            }
+            raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            writeHeader(buffer, keyBytes);
+            buffer.putInt(width);
+            buffer.putInt(height);
+            buffer.putInt(dataSize);
+            ByteBuffer src = data.duplicate();
+            src.position(0);
+            buffer.put(src);
+            close(raf);
+            raf = null;
+
+            commit(tmp, name, size);
+
+        } catch (IOException | RuntimeException ex) {
+            Log.w(TAG, "Failed to write compressed cache entry for " + image, ex);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Method that returns the number of bytes currently stored in the cache
+     *
+     * @return long The bytes stored
+     */
+    public synchronized long size() {
+        ensureIndex();
+        return mSize;
+    }
+
+    private void commit(File tmp, String name, long size) throws IOException {
+        if (!tmp.renameTo(new File(mDir, name))) {
+            throw new IOException("Can't rename " + tmp);
+        }
+        synchronized (this) {
+            mEntries.put(name, size);
+            mSize += size;
+            trimToSize();
+        }
+    }
+
+    private synchronized void remove(String name) {
+        Long size = mEntries.remove(name);
+        if (size != null) {
+            mSize -= size;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        new File(mDir, name).delete();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            mSize -= eldest.getValue();
+            //noinspection ResultOfMethodCallIgnored
+            new File(mDir, eldest.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    private void ensureIndex() {
+        if (mIndexed) {
+            return;
+        }
+        mIndexed = true;
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // The access order is not persisted, so restore it from the write time
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            if (f.getName().endsWith(TMP_SUFFIX)) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+                continue;
+            }
+            mEntries.put(f.getName(), f.length());
+            mSize += f.length();
+        }
+        trimToSize();
+    }
+
+    private static String getKey(File image, int width, int height,
+            ScalingLogic scalingLogic) {
+        // Fitted pictures keep their aspect ratio, so they are keyed apart
+        return image.getAbsolutePath() + "|" + image.lastModified()
+                + "|" + width + "x" + height
+                + (scalingLogic == ScalingLogic.FIT ? "|fit" : "");
+    }
+
+    private static String getName(String key, int width, int height) {
+        // Two hashes reduce the chance of collisions. Anyway the full key is stored in the
+        // header of the entry and checked on read
+        return Integer.toHexString(key.hashCode())
+                + Integer.toHexString(new StringBuilder(key).reverse().toString().hashCode())
+                + "_" + width + "x" + height;
+    }
+
+    private static byte[] toBytes(String key) {
+        return key.getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static int getHeaderSize(byte[] keyBytes) {
+        // Magic, version, key length and key, plus the 3 ints of the entry type
+        return 24 + keyBytes.length;
+    }
+
+    private static void writeHeader(ByteBuffer buffer, byte[] keyBytes) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(keyBytes.length);
+        buffer.put(keyBytes);
+    }
+
+    private static void readHeader(ByteBuffer buffer, String key) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Invalid cache entry");
+        }
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid cache entry");
+        }
+        byte[] keyBytes = new byte[length];
+        buffer.get(keyBytes);
+        if (!Arrays.equals(keyBytes, toBytes(key))) {
+            // A collision of the hashes of the name
+            throw new IOException("Cache entry of another picture");
+        }
+    }
+
+    private static int toCode(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return CONFIG_ALPHA_8;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return CONFIG_RGB_565;
+        } else if (config == Bitmap.Config.ARGB_4444) {
+            return CONFIG_ARGB_4444;
+        } else if (config == Bitmap.Config.ARGB_8888) {
+            return CONFIG_ARGB_8888;
+        }
+        // Not cacheable
+        return 0;
+    }
+
+    private static Bitmap.Config toConfig(int code) throws IOException {
+        switch (code) {
+            case CONFIG_ALPHA_8:
+                return Bitmap.Config.ALPHA_8;
+            case CONFIG_RGB_565:
+                return Bitmap.Config.RGB_565;
+            case CONFIG_ARGB_4444:
+                return Bitmap.Config.ARGB_4444;
+            case CONFIG_ARGB_8888:
+                return Bitmap.Config.ARGB_8888;
+            default:
+                throw new IOException("Invalid bitmap config " + code);
+        }
+    }
+
+    private static void close(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -21,16 +21,13 @@ import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.media.effect.EffectContext;
+import android.opengl.ETC1Util.ETC1Texture;
 import android.opengl.GLES20;
-import android.os.Handler;
 import android.text.TextUtils;
 import android.util.Log;
-import android.widget.Toast;
 
-import com.ruesga.android.wallpapers.photophase.FixedQueue;
 import com.ruesga.android.wallpapers.photophase.FixedQueue.EmptyQueueException;
 import com.ruesga.android.wallpapers.photophase.GLESSurfaceDispatcher;
-import com.ruesga.android.wallpapers.photophase.MediaPictureDiscoverer;
 import com.ruesga.android.wallpapers.photophase.MediaPictureDiscoverer.OnMediaPictureDiscoveredListener;
 import com.ruesga.android.wallpapers.photophase.R;
 import com.ruesga.android.wallpapers.photophase.borders.Borders;
@@ -38,16 +35,20 @@ import com.ruesga.android.wallpapers.photophase.effects.Effects;
 import com.ruesga.android.wallpapers.photophase.model.Disposition;
 import com.ruesga.android.wallpapers.photophase.preferences.PreferencesProvider;
 import com.ruesga.android.wallpapers.photophase.preferences.PreferencesProvider.Preferences;
+import com.ruesga.android.wallpapers.photophase.textures.DecodeWorkerPool.OnPictureDecodedListener;
+import com.ruesga.android.wallpapers.photophase.utils.BitmapPool;
 import com.ruesga.android.wallpapers.photophase.utils.BitmapUtils;
+import com.ruesga.android.wallpapers.photophase.utils.BitmapUtils.ScalingLogic;
+import com.ruesga.android.wallpapers.photophase.utils.GLESTexturePool;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil.GLESTextureInfo;
-import com.ruesga.android.wallpapers.photophase.utils.Utils;
+import com.ruesga.android.wallpapers.photophase.utils.MemoryGovernor;
+import com.ruesga.android.wallpapers.photophase.utils.PipelineStats;
+import com.ruesga.android.wallpapers.photophase.utils.PipelineStats.Stage;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class that manages the acquisition of new textures.
@@ -57,21 +58,36 @@ public class PhotoPhaseTextureManager extends TextureManager
 
     private static final String TAG = "TextureManager";
 
-    private static final int QUEUE_SIZE = 1;
+    private static final boolean DEBUG = false;
+
+    private static final String SEQUENCE_FILE = "sequence";
+
+    // The fitted pictures cropped on the GPU are subsampled to keep both dimensions above
+    // the frame ones, so they use up to 4 times the memory of a frame-sized picture
+    private static final int GPU_CROP_BYTES_FACTOR = 4;
 
     private final Context mContext;
-    private final Handler mHandler;
     private final Object mEffectsSync = new Object();
     private Effects mEffects;
     private Borders mBorders;
     private final Object mSync;
-    private final List<TextureRequestor> mPendingRequests;
-    private final FixedQueue<GLESTextureInfo> mQueue = new FixedQueue<>(QUEUE_SIZE);
+    private final TextureRequestScheduler mPendingRequests;
+    private final TexturePrefetchQueue mQueue;
+    private int mFrames;
     private BackgroundPictureLoaderThread mBackgroundTask;
-    private final MediaPictureDiscoverer mPictureDiscoverer;
+    private final SharedPictureService mPictureService;
+    private final DecodeWorkerPool mDecoder;
+    // The pictures of this texture manager being decoded or pending to be processed
+    private final AtomicInteger mInFlight = new AtomicInteger(0);
+    private volatile boolean mRecycled;
 
     private Rect mScreenDimensions;
     private Rect mDimensions;
+    private Rect mPrefetchSize;
+
+    // Whether the pictures are cropped through the texture coordinates instead of in a bitmap
+    private final boolean mGpuCrop;
+    private final boolean mIsPreview;
 
     private final GLESSurfaceDispatcher mDispatcher;
 
@@ -81,34 +97,39 @@ public class PhotoPhaseTextureManager extends TextureManager
     // 2 - Error
     private byte mStatus;
 
-    private boolean mFirstLoad = true;
-
     /**
-     * A private runnable that will run in the GLThread
+     * A private runnable that will run in the GLThread to deliver an already decoded picture
      */
     private class PictureDispatcher implements Runnable {
         File mImage;
+        TextureRequestor mRequestor;
         GLESTextureInfo ti = null;
-        final Object mWait = new Object();
+        long mDecodedAt;
 
         /**
          * {@inheritDoc}
          */
         @Override
         public void run() {
-            try {
-                // Load the bitmap and create a fake gles information
-                ti = GLESUtil.loadFakeTexture(mImage, mDimensions);
+            PipelineStats.record(Stage.DISPATCH, mDecodedAt);
 
-                boolean enqueue;
-                synchronized (mSync) {
-                    enqueue = mPendingRequests.size() == 0;
-                }
+            // A new picture changes the memory used, so the level of the governor too
+            MemoryGovernor.update();
+            try {
                 synchronized (mSync) {
-                    // Notify the new images to all pending frames
-                    if (!enqueue) {
+                    // Notify the new images to the frame the picture was decoded for or,
+                    // otherwise (or if the request was cancelled), to the pending frame
+                    // with the highest priority that isn't waiting for other picture
+                    TextureRequestor requestor = null;
+                    if (mRequestor != null && mPendingRequests.remove(mRequestor)) {
+                        requestor = mRequestor;
+                    }
+                    if (requestor == null) {
+                        requestor = mPendingRequests.poll(mImage);
+                    }
+
+                    if (requestor != null) {
                         // Invalid textures are also reported, so requestor can handle it
-                        TextureRequestor requestor = mPendingRequests.remove(0);
                         applyToRequestor(requestor, ti);
 
                     } else {
@@ -125,13 +146,105 @@ public class PhotoPhaseTextureManager extends TextureManager
 
             } finally {
                 // Notify that we have a new image
-                synchronized (mWait) {
-                    mWait.notify();
+                mInFlight.decrementAndGet();
+                BackgroundPictureLoaderThread task = mBackgroundTask;
+                if (task != null) {
+                    synchronized (task.mLoadSync) {
+                        task.mLoadSync.notify();
+                    }
                 }
             }
         }
     }
 
+    /**
+     * A private runnable that will run in the GLThread to show the placeholder of a picture
+     * in the frame that is waiting for it
+     */
+    private class PlaceholderDispatcher implements Runnable {
+        TextureRequestor mRequestor;
+        GLESTextureInfo ti;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            try {
+                synchronized (mSync) {
+                    // Only if the frame is still waiting for this picture
+                    if (mPendingRequests.isClaimedFor(mRequestor, ti.path)
+                            && !mRequestor.isLoaded()) {
+                        applyPlaceholderToRequestor(mRequestor, ti);
+                    }
+                }
+            } catch (Throwable e) {
+                Log.e(TAG, "Something was wrong loading the placeholder: " + ti.path, e);
+            } finally {
+                if (ti.bitmap != null) {
+                    BitmapPool.recycle(ti.bitmap);
+                    ti.bitmap = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * A listener that hands decoded placeholders from the workers to the GLThread
+     */
+    private class DecodedPlaceholderListener implements OnPictureDecodedListener {
+        private final TextureRequestor mRequestor;
+
+        DecodedPlaceholderListener(TextureRequestor requestor) {
+            mRequestor = requestor;
+        }
+
+        @Override
+        public void onPictureDecoded(File image, GLESTextureInfo ti) {
+            if (ti.bitmap == null) {
+                return;
+            }
+            if (mRecycled) {
+                BitmapPool.recycle(ti.bitmap);
+                ti.bitmap = null;
+                return;
+            }
+            PlaceholderDispatcher pd = new PlaceholderDispatcher();
+            pd.mRequestor = mRequestor;
+            pd.ti = ti;
+            mDispatcher.dispatch(pd);
+        }
+    }
+
+    /**
+     * A listener that hands decoded pictures from the workers to the GLThread
+     */
+    private class DecodedPictureListener implements OnPictureDecodedListener {
+        private final TextureRequestor mRequestor;
+
+        DecodedPictureListener(TextureRequestor requestor) {
+            mRequestor = requestor;
+        }
+
+        @Override
+        public void onPictureDecoded(File image, GLESTextureInfo ti) {
+            if (mRecycled) {
+                // The workers are shared, so the texture manager could be already destroyed
+                if (ti.bitmap != null) {
+                    BitmapPool.recycle(ti.bitmap);
+                    ti.bitmap = null;
+                }
+                return;
+            }
+            PictureDispatcher pd = new PictureDispatcher();
+            pd.mImage = image;
+            pd.mRequestor = mRequestor;
+            pd.ti = ti;
+            pd.mDecodedAt = PipelineStats.start();
+            mDispatcher.dispatch(pd);
+        }
+    }
+
     /**
      * Constructor of <code>PhotoPhaseTextureManager</code>
      *
@@ -140,26 +253,32 @@ public class PhotoPhaseTextureManager extends TextureManager
      * @param dispatcher The GLES dispatcher
      * @param requestors The number of requestors
      * @param screenDimensions The screen dimensions
+     * @param isPreview If the texture manager belongs to a preview of the wallpaper
      */
-    public PhotoPhaseTextureManager(final Context ctx, final Handler handler,
-            final EffectContext effectCtx, GLESSurfaceDispatcher dispatcher,
-            int requestors, Rect screenDimensions) {
+    public PhotoPhaseTextureManager(final Context ctx, final EffectContext effectCtx,
+            GLESSurfaceDispatcher dispatcher, int requestors, Rect screenDimensions,
+            boolean isPreview) {
         super();
         mContext = ctx;
-        mHandler = handler;
+        mIsPreview = isPreview;
         mEffects = new Effects(ctx, effectCtx);
         mBorders = new Borders(ctx, effectCtx);
         mDispatcher = dispatcher;
         mScreenDimensions = screenDimensions;
         mDimensions = screenDimensions; // For now, use the screen dimensions as the preferred dimensions for bitmaps
+        mGpuCrop = ctx.getResources().getBoolean(R.bool.config_gpu_crop);
         mSync = new Object();
-        mPendingRequests = new ArrayList<>(requestors);
-        mPictureDiscoverer = new MediaPictureDiscoverer(mContext);
-
-        // Run the media discovery thread
+        mPendingRequests = new TextureRequestScheduler(requestors);
+        mQueue = new TexturePrefetchQueue(ctx);
+        mFrames = requestors;
+        mPictureService = SharedPictureService.acquire(ctx);
+        mDecoder = mPictureService.getDecoder();
+
+        // Run the media discovery thread (the media already discovered by other texture
+        // managers is reused)
         mBackgroundTask = new BackgroundPictureLoaderThread();
         mBackgroundTask.mTaskPaused = false;
-        reloadMedia(false);
+        mPictureService.register(this);
     }
 
     /**
@@ -192,6 +311,23 @@ public class PhotoPhaseTextureManager extends TextureManager
         mDimensions = dimensions;
     }
 
+    /**
+     * Method that allow to change the number of frames of the current disposition. This
+     * adapts how many pictures are prefetched.
+     *
+     * @param frames The number of frames
+     */
+    public void setFrameCount(int frames) {
+        mFrames = frames;
+        mPrefetchSize = null;
+        BackgroundPictureLoaderThread task = mBackgroundTask;
+        if (task != null) {
+            synchronized (task.mLoadSync) {
+                task.mLoadSync.notify();
+            }
+        }
+    }
+
     /**
      * Method that allow to change the screen dimensions
      *
@@ -223,38 +359,49 @@ public class PhotoPhaseTextureManager extends TextureManager
                 mBackgroundTask.mLoadSync.notify();
             }
         }
+        if (pause) {
+            // Write the last media shown while the wallpaper isn't visible
+            Preferences.Media.getLastMediaShownStore(mContext).flushAsync();
+        } else if (!mIsPreview) {
+            // The visible wallpaper persists its cycle of random draws (not the preview)
+            mBackgroundTask.mSequence.attachLog();
+        }
     }
 
     /**
-     * Method that reload the references of media pictures
+     * Method that reload the references of media pictures. The new media is notified to
+     * all the texture managers of the process.
      *
      * @param userRequest If the request was generated by the user
      */
     public void reloadMedia(final boolean userRequest) {
         Log.d(TAG, "Reload media picture data");
-        // Discovery new media
-        // GLThread doesn't run in the UI thread and AsyncThread can't create a
-        // valid handler in ICS (it's fixed in JB+) so we force to run the async
-        // thread in a valid UI thread
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                mPictureDiscoverer.discover(userRequest, PhotoPhaseTextureManager.this);
-            }
-        });
+        mPictureService.discover(userRequest);
     }
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
-    public void request(TextureRequestor requestor) {
+    public void request(TextureRequestor requestor, int priority) {
         synchronized (mSync) {
             try {
-                GLESTextureInfo ti = mQueue.remove();
+                GLESTextureInfo ti;
+                if (Preferences.General.isFixAspectRatio(mContext)) {
+                    // Prefer a picture already prefetched with the size of this frame (any
+                    // picture fits if the crop is done through the texture coordinates)
+                    Rect size = getTextureSize(getRequestorPixels(requestor));
+                    mPrefetchSize = size;
+                    ti = mGpuCrop ? mQueue.remove() : mQueue.remove(size.width(), size.height());
+                } else {
+                    ti = mQueue.remove();
+                }
                 applyToRequestor(requestor, ti);
 
             } catch (EmptyQueueException eqex) {
                 // Add to queue of pending request to be notified when
                 // we have a new bitmap in the queue
-                mPendingRequests.add(requestor);
+                mPendingRequests.add(requestor, priority);
             }
         }
 
@@ -275,16 +422,10 @@ public class PhotoPhaseTextureManager extends TextureManager
                 List<GLESTextureInfo> all = mQueue.removeAll();
                 for (GLESTextureInfo info : all) {
                     if (GLES20.glIsTexture(info.handle)) {
-                        int[] textures = new int[] {info.handle};
-                        if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                            Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteTextures: ["
-                                    + info.handle + "]");
-                        }
-                        GLES20.glDeleteTextures(1, textures, 0);
-                        GLESUtil.glesCheckError("glDeleteTextures");
+                        GLESTexturePool.release(info.handle);
                     }
                     // Return the bitmap
-                    info.bitmap.recycle();
+                    BitmapPool.recycle(info.bitmap);
                     info.bitmap = null;
                 }
             } catch (EmptyQueueException eqex) {
@@ -309,17 +450,47 @@ public class PhotoPhaseTextureManager extends TextureManager
     }
 
     /**
-     * Method that cancels a request did it previously.
+     * Method that releases the prefetched pictures under memory pressure. Can be called
+     * from any thread.
      *
-     * @param requestor The requestor of the texture
+     * @param level The level of the memory governor
      */
-    @SuppressWarnings("unused")
-    public void cancelRequest(TextureRequestor requestor) {
+    public void onTrimMemory(int level) {
+        if (level < MemoryGovernor.LEVEL_REDUCED) {
+            return;
+        }
+        List<GLESTextureInfo> trimmed;
         synchronized (mSync) {
-            if (mPendingRequests.contains(requestor)) {
-                mPendingRequests.remove(requestor);
+            trimmed = mQueue.trim(level >= MemoryGovernor.LEVEL_CRITICAL ? 0 : 1);
+        }
+        for (GLESTextureInfo info : trimmed) {
+            // Prefetched pictures don't have a texture yet, just release the bitmap
+            if (info.bitmap != null) {
+                BitmapPool.recycle(info.bitmap);
+                info.bitmap = null;
             }
         }
+        if (DEBUG) Log.d(TAG, "Trimmed " + trimmed.size() + " prefetched pictures");
+    }
+
+    /**
+     * Method that returns the bytes of the bitmaps held by the texture manager
+     *
+     * @return long The bitmap bytes
+     */
+    public long getBitmapBytes() {
+        return mQueue.bytes();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancelRequest(TextureRequestor requestor) {
+        synchronized (mSync) {
+            // A picture being decoded for this requestor is delivered to the next request
+            mPendingRequests.remove(requestor);
+        }
     }
 
     /**
@@ -330,11 +501,6 @@ public class PhotoPhaseTextureManager extends TextureManager
         // No images but thread should start here to received partial data
         this.mStatus = 0; // Loading
         if (mBackgroundTask != null) {
-            // In order to continue with the last media shown, we need all the
-            // images to process them
-            if (!Preferences.Media.isRememberLastMediaShown(mContext) || mFirstLoad) {
-                mBackgroundTask.setAvailableImages(new File[]{});
-            }
             if (!mBackgroundTask.mRun) {
                 mBackgroundTask.start();
             } else {
@@ -350,11 +516,13 @@ public class PhotoPhaseTextureManager extends TextureManager
      */
     @Override
     public void onPartialMediaDiscovered(File[] images, boolean userRequest) {
-        if (mBackgroundTask != null) {
-            // In order to continue with the last media shown, we need all the
-            // images to process them
-            if (!Preferences.Media.isRememberLastMediaShown(mContext)) {
-                mBackgroundTask.setPartialAvailableImages(images);
+        // Called from the discovery thread, so the pictures can be loaded right away
+        BackgroundPictureLoaderThread task = mBackgroundTask;
+        if (task != null) {
+            // The sequence continues with the last media shown even with partial results
+            task.setPartialAvailableImages(images);
+            synchronized (task.mLoadSync) {
+                task.mLoadSync.notify();
             }
         }
     }
@@ -363,29 +531,19 @@ public class PhotoPhaseTextureManager extends TextureManager
      * {@inheritDoc}
      */
     @Override
-    @SuppressWarnings("boxing")
-    public void onEndMediaDiscovered(File[] images, boolean userRequest) {
+    public void onEndMediaDiscovered(File[] added, File[] removed, boolean userRequest) {
         // Now we have the paths of the images to use. Notify to the thread to
         // load pictures in background
         if (mBackgroundTask != null) {
-            mBackgroundTask.setAvailableImages(images);
-            if (images != null && images.length > 0) {
-                mFirstLoad = false;
-            }
+            mBackgroundTask.updateAvailableImages(added, removed);
             synchronized (mBackgroundTask.mLoadSync) {
                 mBackgroundTask.mLoadSync.notify();
             }
             this.mStatus = 1; // Loaded
 
-            // Audit
-            int found = images == null ? 0 : images.length;
-            Log.d(TAG, "Media picture data reloaded: " + found + " images found.");
-            if (userRequest) {
-                CharSequence msg =
-                        String.format(mContext.getResources().getQuantityText(
-                                R.plurals.msg_media_reload_complete, found).toString(), found);
-                Toast.makeText(mContext, msg, Toast.LENGTH_SHORT).show();
-            }
+            // Audit (the user is notified by the shared service)
+            Log.d(TAG, "Media picture data reloaded: " + added.length + " images added, "
+                    + removed.length + " images removed.");
         } else {
             this.mStatus = 2; // Error
         }
@@ -395,8 +553,9 @@ public class PhotoPhaseTextureManager extends TextureManager
      * Method that destroy the references of this class
      */
     public void recycle() {
-        // Destroy the media discovery task
-        mPictureDiscoverer.recycle();
+        // Detach from the shared media discovery and decode workers
+        mRecycled = true;
+        mPictureService.unregister(this);
         synchronized (mEffectsSync) {
             if (mEffects != null) {
                 mEffects.release();
@@ -408,6 +567,7 @@ public class PhotoPhaseTextureManager extends TextureManager
 
         // Destroy the background task
         if (mBackgroundTask != null) {
+            mBackgroundTask.mSequence.close();
             mBackgroundTask.mRun = false;
             try {
                 synchronized (mBackgroundTask.mLoadSync) {
@@ -418,6 +578,12 @@ public class PhotoPhaseTextureManager extends TextureManager
             }
         }
         mBackgroundTask = null;
+
+        // Write the last media shown before the process could be killed
+        Preferences.Media.getLastMediaShownStore(mContext).flushAsync();
+
+        // The shared service is destroyed with the last texture manager
+        mPictureService.release();
     }
 
 
@@ -436,7 +602,8 @@ public class PhotoPhaseTextureManager extends TextureManager
      * @return boolean If the texture manager is empty
      */
     public boolean isEmpty() {
-        return mBackgroundTask != null && mBackgroundTask.mEmpty;
+        BackgroundPictureLoaderThread task = mBackgroundTask;
+        return task != null && task.isEmpty();
     }
 
     /**
@@ -448,12 +615,7 @@ public class PhotoPhaseTextureManager extends TextureManager
      */
     private void applyToRequestor(TextureRequestor requestor, GLESTextureInfo ti) {
         // Transform requestor dimensions to screen dimensions
-        RectF dimens = requestor.getRequestorDimensions();
-        Rect pixels = new Rect(
-                0,
-                0,
-                (int)(mScreenDimensions.width() * dimens.width() / 2),
-                (int)(mScreenDimensions.height() * dimens.height() / 2));
+        Rect pixels = getRequestorPixels(requestor);
 
         final Disposition disposition = requestor.getDisposition();
         synchronized (mEffectsSync) {
@@ -467,47 +629,154 @@ public class PhotoPhaseTextureManager extends TextureManager
 
         // Check if we have to apply any correction to the image
         GLESTextureInfo dst;
-        if (ti.bitmap != null && Preferences.General.isFixAspectRatio(mContext)) {
-
-            // Create a texture of power of two here to avoid scaling the bitmap twice
-            int w = pixels.width();
-            int h = pixels.height();
-            if (!BitmapUtils.isPowerOfTwo(w, h) &&
-                    PreferencesProvider.Preferences.General.isPowerOfTwo(mContext)) {
-                w = h = BitmapUtils.calculateUpperPowerOfTwo(Math.min(w, h));
-            }
-
-            // Create a thumbnail of the image
-            Bitmap thumb = BitmapUtils.createScaledBitmap(
-                    ti.bitmap, w, h, BitmapUtils.ScalingLogic.CROP);
+        if (ti.bitmap != null && mGpuCrop && Preferences.General.isFixAspectRatio(mContext)) {
+            // Upload the picture as is and crop it through the texture coordinates
+            dst = GLESUtil.loadTexture(mContext, ti.bitmap, ti.compressed, ti.orientation,
+                    getCropWindow(ti, pixels), ti.effect, ti.border, pixels);
+        } else if (ti.bitmap != null && Preferences.General.isFixAspectRatio(mContext)) {
+
+            // Create a thumbnail of the image. The pixels aren't oriented yet, so the
+            // dimensions of the crop are swapped for pictures stored rotated
+            Rect size = getTextureSize(pixels);
+            boolean swap = BitmapUtils.isExifOrientationSwapped(ti.orientation);
+            Bitmap thumb = BitmapUtils.createScaledBitmap(ti.bitmap,
+                    swap ? size.height() : size.width(), swap ? size.width() : size.height(),
+                    BitmapUtils.ScalingLogic.CROP);
+            ETC1Texture compressed = null;
             if (!thumb.equals(ti.bitmap)) {
-                ti.bitmap.recycle();
+                BitmapPool.recycle(ti.bitmap);
+            } else {
+                // The compressed pixels are still valid for the thumbnail
+                compressed = ti.compressed;
             }
-            dst = GLESUtil.loadTexture(mContext, thumb, ti.effect, ti.border, pixels);
+            dst = GLESUtil.loadTexture(mContext, thumb, compressed, ti.orientation,
+                    ti.effect, ti.border, pixels);
         } else {
-            // Load the texture without any correction
-            dst = GLESUtil.loadTexture(
-                    mContext, ti.bitmap, ti.effect, ti.border, pixels);
+            // Load the texture without any correction (the compressed pixels are only used
+            // if they match the dimensions of the texture)
+            dst = GLESUtil.loadTexture(mContext, ti.bitmap, ti.compressed, ti.orientation,
+                    ti.effect, ti.border, pixels);
         }
 
         // Swap references
         ti.bitmap = dst.bitmap;
         ti.handle = dst.handle;
+        ti.orientation = dst.orientation;
+        ti.window = dst.window;
         ti.effect = null;
         ti.border = null;
+        ti.compressed = null;
         dst.handle = 0;
         dst.bitmap = null;
 
         // And notify to the requestor
+        final long handoffStart = PipelineStats.start();
         requestor.setTextureHandle(ti);
+        PipelineStats.record(Stage.HANDOFF, handoffStart);
 
         // Clean up memory
         if (ti.bitmap != null) {
-            ti.bitmap.recycle();
+            BitmapPool.recycle(ti.bitmap);
             ti.bitmap = null;
         }
     }
 
+    /**
+     * Method that loads the gles texture of a placeholder and applies it to the requestor
+     * frame. Effects and borders are not applied to the placeholders.
+     *
+     * @param requestor The requestor target
+     * @param ti The placeholder texture information (the one with the bitmap one)
+     */
+    private void applyPlaceholderToRequestor(TextureRequestor requestor, GLESTextureInfo ti) {
+        Rect pixels = getRequestorPixels(requestor);
+        RectF window = Preferences.General.isFixAspectRatio(mContext)
+                ? getCropWindow(ti, pixels) : null;
+        GLESTextureInfo dst = GLESUtil.loadTexture(
+                mContext, ti.bitmap, null, ti.orientation, window, null, null, pixels);
+        ti.bitmap = dst.bitmap;
+        ti.handle = dst.handle;
+        ti.window = dst.window;
+        dst.handle = 0;
+        dst.bitmap = null;
+
+        // The request is still pending, so the picture will replace the placeholder
+        requestor.setTextureHandle(ti);
+    }
+
+    /**
+     * Method that returns the region of a picture that fills a requestor, keeping the aspect
+     * ratio of the picture
+     *
+     * @param ti The picture (with the pixels as stored in the picture file)
+     * @param pixels The dimensions in pixels of the requestor
+     * @return RectF The visible region of the oriented picture (normalized) or null if the
+     * whole picture is visible
+     */
+    private static RectF getCropWindow(GLESTextureInfo ti, Rect pixels) {
+        boolean swap = BitmapUtils.isExifOrientationSwapped(ti.orientation);
+        int w = swap ? ti.bitmap.getHeight() : ti.bitmap.getWidth();
+        int h = swap ? ti.bitmap.getWidth() : ti.bitmap.getHeight();
+        Rect crop = BitmapUtils.calculateSrcRect(
+                w, h, pixels.width(), pixels.height(), BitmapUtils.ScalingLogic.CROP);
+        if (crop.width() == w && crop.height() == h) {
+            return null;
+        }
+        return new RectF((float) crop.left / w, (float) crop.top / h,
+                (float) crop.right / w, (float) crop.bottom / h);
+    }
+
+    /**
+     * Method that returns the dimensions in pixels of a requestor
+     *
+     * @param requestor The requestor target
+     * @return Rect The dimensions in pixels
+     */
+    private Rect getRequestorPixels(TextureRequestor requestor) {
+        // Transform requestor dimensions to screen dimensions (downscaled under
+        // memory pressure)
+        RectF dimens = requestor.getRequestorDimensions();
+        float scale = MemoryGovernor.getTextureScale();
+        return new Rect(
+                0,
+                0,
+                (int)(mScreenDimensions.width() * dimens.width() * scale / 2),
+                (int)(mScreenDimensions.height() * dimens.height() * scale / 2));
+    }
+
+    /**
+     * Method that returns the dimensions downscaled under memory pressure
+     *
+     * @param dimensions The dimensions
+     * @return Rect The scaled dimensions
+     */
+    private static Rect getScaledDimensions(Rect dimensions) {
+        float scale = MemoryGovernor.getTextureScale();
+        if (scale >= 1f) {
+            return dimensions;
+        }
+        return new Rect(0, 0, (int) (dimensions.width() * scale),
+                (int) (dimensions.height() * scale));
+    }
+
+    /**
+     * Method that returns the size of the texture to create for a requestor when the
+     * aspect ratio is fixed
+     *
+     * @param pixels The dimensions in pixels of the requestor
+     * @return Rect The size of the texture
+     */
+    private Rect getTextureSize(Rect pixels) {
+        // Create a texture of power of two here to avoid scaling the bitmap twice
+        int w = pixels.width();
+        int h = pixels.height();
+        if (!BitmapUtils.isPowerOfTwo(w, h) &&
+                PreferencesProvider.Preferences.General.isPowerOfTwo(mContext)) {
+            w = h = BitmapUtils.calculateUpperPowerOfTwo(Math.min(w, h));
+        }
+        return new Rect(0, 0, w, h);
+    }
+
     /**
      * An internal thread to load pictures in background
      */
@@ -517,48 +786,48 @@ public class PhotoPhaseTextureManager extends TextureManager
         boolean mRun;
         boolean mTaskPaused;
 
+        // Both guarded by the lock of the sequence, so they are consistent with its size
+        // (the loader doesn't reload the media while an update empties it in batches)
         boolean mEmpty;
-        private final List<File> mNewImages;
-        private final List<File> mUsedImages;
+        private int mUpdates;
+        private final PictureSequence mSequence;
+        private File mLastShown;
 
         /**
          * Constructor of <code>BackgroundPictureLoaderThread</code>.
          */
         public BackgroundPictureLoaderThread() {
             super();
-            mNewImages = new ArrayList<>();
-            mUsedImages = new ArrayList<>();
+            mSequence = new PictureSequence(new File(mContext.getFilesDir(), SEQUENCE_FILE),
+                    Preferences.Media.getLastMediaShownStore(mContext));
+
+            // Continue the sequential order with the last media shown
+            if (Preferences.Media.isRememberLastMediaShown(mContext)) {
+                String lastMedia = Preferences.Media.getLastMediaShown(mContext);
+                if (!TextUtils.isEmpty(lastMedia)) {
+                    mLastShown = new File(lastMedia);
+                }
+            }
         }
 
         /**
-         * Method that sets the current available images.
+         * Method that applies the changes of the available images. The images already
+         * shown in the current cycle remain used. The sequence has its own lock, so the
+         * loader keeps delivering pictures while the changes are applied.
          *
-         * @param images The current images
+         * @param added The images added (could be already available)
+         * @param removed The images removed
          */
-        public void setAvailableImages(File[] images) {
-            synchronized (mLoadSync) {
-                List<File> filtered = new ArrayList<>(Arrays.asList(images));
-                mUsedImages.retainAll(filtered);
-                filtered.removeAll(mUsedImages);
-                mNewImages.clear();
-                mNewImages.addAll(filtered);
-
-                if (!mFirstLoad) {
-                    reuseLastShownMedia();
-                }
-
-                // Retain used images
-                int count = mUsedImages.size() - 1;
-                for (int i = count; i >= 0; i--) {
-                    File image = mUsedImages.get(i);
-                    if (!mNewImages.contains(image)) {
-                        mUsedImages.remove(image);
-                    } else {
-                        mNewImages.remove(image);
-                    }
-                }
-
-                mEmpty = images.length == 0;
+        public void updateAvailableImages(File[] added, File[] removed) {
+            // Add first, so the sequence isn't seen empty in the middle of a full refresh
+            synchronized (mSequence) {
+                mUpdates++;
+            }
+            mSequence.addAll(added);
+            mSequence.removeAll(removed);
+            synchronized (mSequence) {
+                mUpdates--;
+                mEmpty = mSequence.size() == 0;
             }
         }
 
@@ -568,40 +837,45 @@ public class PhotoPhaseTextureManager extends TextureManager
          * @param images The current images
          */
         public void setPartialAvailableImages(File[] images) {
-            synchronized (mLoadSync) {
-                mNewImages.addAll(Arrays.asList(images));
-                mEmpty = images.length == 0;
+            synchronized (mSequence) {
+                mUpdates++;
+            }
+            mSequence.addAll(images);
+            synchronized (mSequence) {
+                mUpdates--;
+                mEmpty = mSequence.size() == 0;
             }
         }
 
         /**
-         * Method that reset the current available images queue.
+         * Method that returns if the available images should be reloaded, because the
+         * sequence is empty but the last update found images
+         *
+         * @return boolean If the media should be reloaded
          */
-        public void resetAvailableImages() {
-            synchronized (mLoadSync) {
-                mNewImages.addAll(mUsedImages);
-                mUsedImages.clear();
+        boolean isReloadNeeded() {
+            synchronized (mSequence) {
+                return mSequence.size() == 0 && !mEmpty && mUpdates == 0;
             }
         }
 
-        private void reuseLastShownMedia() {
-            if (!Preferences.Media.isRandomSequence(mContext) &&
-                    Preferences.Media.isRememberLastMediaShown(mContext)) {
-                String lastMedia = Preferences.Media.getLastMediaShown(mContext);
-                if (!TextUtils.isEmpty(lastMedia)) {
-                    File lastMediaFile = new File(lastMedia);
-                    mNewImages.addAll(mUsedImages);
-                    mUsedImages.clear();
-                    Collections.sort(mNewImages);
-                    int pos = mNewImages.indexOf(lastMediaFile);
-                    // Only if not exists or is not the next in the list
-                    if (pos > 0) {
-                        // Remove all items to used
-                        for (int i = pos - 1; i >= 0; i--) {
-                            mUsedImages.add(mNewImages.remove(i));
-                        }
-                    }
-                }
+        /**
+         * Method that returns if the last update didn't find any image
+         *
+         * @return boolean If there are no available images
+         */
+        boolean isEmpty() {
+            synchronized (mSequence) {
+                return mEmpty;
+            }
+        }
+
+        /**
+         * Method that reset the current available images queue.
+         */
+        public void resetAvailableImages() {
+            synchronized (mLoadSync) {
+                mSequence.reset();
             }
         }
 
@@ -612,50 +886,83 @@ public class PhotoPhaseTextureManager extends TextureManager
         public void run() {
             mRun = true;
             while (mRun) {
-                // Check if we need to load more images
-                while (!mTaskPaused && PhotoPhaseTextureManager.this.mQueue.items() <
-                        PhotoPhaseTextureManager.this.mQueue.size()) {
+                // Adapt the prefetch queue to the current disposition and transition interval
+                final Rect prefetchDimensions = getScaledDimensions(mDimensions);
+                long itemBytes = prefetchDimensions.width() * prefetchDimensions.height() * 4L;
+                if (mGpuCrop && Preferences.General.isFixAspectRatio(mContext)) {
+                    itemBytes *= GPU_CROP_BYTES_FACTOR;
+                }
+                mQueue.adapt(mFrames,
+                        Preferences.General.Transitions.getTransitionInterval(mContext),
+                        itemBytes);
+
+                // Check if we need to load more images (count the ones being decoded too)
+                while (!mTaskPaused && mQueue.hasRoom(mInFlight.get(), itemBytes)) {
                     File image;
+                    final long selectStart = PipelineStats.start();
                     synchronized (mLoadSync) {
-                        // Swap arrays if needed
-                        if (mNewImages.size() == 0) {
-                            mNewImages.addAll(mUsedImages);
-                            mUsedImages.clear();
-                        }
-                        if (mNewImages.size() == 0) {
-                            if (!mEmpty) {
+                        if (mSequence.size() == 0) {
+                            if (isReloadNeeded()) {
                                 reloadMedia(false);
                             }
                             break;
                         }
 
                         // Extract a random or sequential image
-                        int low = 0;
-                        int high = mNewImages.size() - 1;
                         if (Preferences.Media.isRandomSequence(mContext)) {
-                            image = mNewImages.remove(Utils.getNextRandom(low, high));
+                            image = mSequence.nextRandom();
                         } else {
-                            image = mNewImages.remove(0);
+                            image = mSequence.nextSequential(mLastShown);
                         }
+                        mLastShown = image;
                         Preferences.Media.setLastMediaShown(mContext, image.getPath());
-
-                        // Add to used images
-                        mUsedImages.add(image);
+                    }
+                    PipelineStats.record(Stage.SELECT, selectStart);
+
+                    // If a frame is already waiting for a picture, decode it directly with the
+                    // frame size, so only the region that survives the crop is decoded.
+                    // Otherwise, prefetch with the size of the last requesting frame, so the
+                    // frame-sized pixels can be reused from the cache. When the crop is done
+                    // through the texture coordinates, the whole picture is decoded
+                    TextureRequestor target;
+                    boolean placeholder;
+                    synchronized (mSync) {
+                        target = mPendingRequests.claim(image);
+                        placeholder = target != null && !target.isLoaded()
+                                && mPendingRequests.getPriority(target) < PRIORITY_TRANSITION;
+                    }
+                    Rect dimensions = prefetchDimensions;
+                    ScalingLogic scalingLogic = ScalingLogic.FIT;
+                    ScalingLogic cacheLogic = ScalingLogic.FIT;
+                    if (Preferences.General.isFixAspectRatio(mContext)) {
+                        final ScalingLogic crop = mGpuCrop ? ScalingLogic.FIT : ScalingLogic.CROP;
+                        if (target != null) {
+                            dimensions = getTextureSize(getRequestorPixels(target));
+                            scalingLogic = crop;
+                            cacheLogic = ScalingLogic.CROP;
+                        } else if (mPrefetchSize != null) {
+                            dimensions = mPrefetchSize;
+                            scalingLogic = crop;
+                            cacheLogic = ScalingLogic.CROP;
+                        }
                     }
 
-                    // Run commands in the GLThread
+                    // Decode the picture in background. Only the upload is done in the GLThread.
+                    // An empty frame shows the placeholder of the picture while it's decoded
+                    // (frames of a transition wait for the picture, so the transition isn't
+                    // shown with the placeholder). The placeholder is enqueued first, so it's
+                    // usually ready before the picture
                     if (!mRun) break;
-                    PictureDispatcher pd = new PictureDispatcher();
-                    pd.mImage = image;
-                    mDispatcher.dispatch(pd);
-
-                    // Wait until the texture is loaded
-                    try {
-                        synchronized (pd.mWait) {
-                            pd.mWait.wait();
-                        }
-                    } catch (Exception e) {
-                        // Ignore
+                    if (placeholder) {
+                        mDecoder.decodePlaceholder(mContext, image,
+                                new DecodedPlaceholderListener(target));
+                    }
+                    boolean compress = Preferences.General.isCompressedTextures(mContext);
+                    mInFlight.incrementAndGet();
+                    if (!mDecoder.decode(image, dimensions, scalingLogic, cacheLogic, compress,
+                            new DecodedPictureListener(target))) {
+                        mInFlight.decrementAndGet();
+                        break;
                     }
                 }
 
@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.textures;
+
+import android.util.Log;
+
+import com.ruesga.android.wallpapers.photophase.preferences.PlaybackStateStore;
+import com.ruesga.android.wallpapers.photophase.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sequence of the available pictures of a texture manager.<br/>
+ * <br/>
+ * Random draws are an incremental Fisher-Yates shuffle: the pictures already drawn in the
+ * current cycle are kept at the head of the array, and every draw swaps a random picture
+ * of the tail into the head, so a draw is O(1) and no picture is repeated until all of
+ * them were drawn. Pictures added in the middle of a cycle join the tail, and pictures
+ * removed are swapped out in O(1). The pictures drawn in the current cycle are appended to
+ * a log (as 64-bit hashes of their paths, so every entry has a fixed size), so the cycle is
+ * resumed after a restart of the process. The draws are buffered and the log is written
+ * with the coalesced flushes of the {@link PlaybackStateStore}. Only one sequence of the
+ * process (the one of the visible wallpaper, see {@link #attachLog()}) writes the log; all
+ * of them resume the persisted cycle.<br/>
+ * <br/>
+ * Sequential draws follow the pictures sorted by path, starting after the last one shown.
+ * The sequence is locked on itself, so the callers can synchronize on it to read its state
+ * along with their own.
+ */
+public class PictureSequence implements Flushable {
+
+    private static final String TAG = "PictureSequence";
+
+    private static final int MAGIC = 0x50505351;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+
+    // The number of pictures changed per lock, so the draws are not blocked by big changes
+    private static final int BATCH_SIZE = 512;
+
+    // Only one sequence per process owns the log (the others are not persisted)
+    private static PictureSequence sLogOwner;
+    // Serializes the writes of the log (of the current and the previous owner)
+    private static final Object sLogSync = new Object();
+    // The last sequence that wrote the log (guarded by sLogSync)
+    private static PictureSequence sLogWriter;
+
+    // The pictures drawn in the current cycle come first
+    private final ArrayList<File> mOrder = new ArrayList<>();
+    private final Map<File, Integer> mPositions = new HashMap<>();
+    private int mDrawn;
+
+    // The pictures sorted by path (for sequential draws) or null if outdated
+    private List<File> mSorted;
+
+    private final File mLogFile;
+    private final PlaybackStateStore mStore;
+    private boolean mLogOwner;
+    // If the log has every draw of this sequence (until it draws without owning it)
+    private boolean mLogInSync;
+    // The ids of the draws not written yet (and if the log must be rewritten before them)
+    private long[] mPendingLog = new long[64];
+    private int mPendingCount;
+    private boolean mPendingRewrite;
+    // The ids of the pictures drawn in the persisted cycle (sorted), and the ones that
+    // were already added to the sequence
+    private long[] mRestored;
+    private BitSet mRestoredAdded;
+    private int mRestoredCount;
+
+    /**
+     * Constructor of <code>PictureSequence</code>
+     *
+     * @param logFile The file where the current cycle is persisted
+     * @param store The store that schedules the writes of the log or null to only write it
+     * with {@link #flush()}
+     */
+    public PictureSequence(File logFile, PlaybackStateStore store) {
+        super();
+        mLogFile = logFile;
+        mStore = store;
+        readLog();
+    }
+
+    /**
+     * Method that makes this sequence the one that writes the log. The previous owner stops
+     * writing it, and the log is rewritten with the cycle of this sequence (unless the log
+     * already has it, because nothing else wrote it since this sequence did).
+     */
+    public void attachLog() {
+        PictureSequence previous;
+        synchronized (PictureSequence.class) {
+            previous = sLogOwner;
+            if (previous == this) {
+                return;
+            }
+            sLogOwner = this;
+        }
+        if (previous != null) {
+            previous.detachLog();
+        }
+        boolean inSync;
+        synchronized (sLogSync) {
+            inSync = sLogWriter == this;
+        }
+        synchronized (this) {
+            mLogOwner = true;
+            if (!inSync || !mLogInSync) {
+                rewriteLog();
+            }
+        }
+        if (mStore != null) {
+            mStore.register(this);
+        }
+    }
+
+    private void detachLog() {
+        synchronized (this) {
+            mLogOwner = false;
+            if (mPendingCount > 0 || mPendingRewrite) {
+                mLogInSync = false;
+            }
+            mPendingCount = 0;
+            mPendingRewrite = false;
+        }
+        if (mStore != null) {
+            mStore.unregister(this);
+        }
+    }
+
+    /**
+     * Method that adds a picture to the sequence (if it's not already there)
+     *
+     * @param picture The picture
+     */
+    public synchronized void add(File picture) {
+        if (mPositions.containsKey(picture)) {
+            return;
+        }
+        int pos = mOrder.size();
+        mOrder.add(picture);
+        mPositions.put(picture, pos);
+        mSorted = null;
+
+        // Was it drawn in the persisted cycle?
+        if (mRestoredCount > 0 && removeRestored(getId(picture))) {
+            swap(pos, mDrawn);
+            mDrawn++;
+        }
+    }
+
+    /**
+     * Method that adds some pictures to the sequence (the ones not already there). The
+     * pictures are added in batches, so draws from other threads are served in between.
+     *
+     * @param pictures The pictures
+     */
+    public void addAll(File[] pictures) {
+        for (int start = 0; start < pictures.length; start += BATCH_SIZE) {
+            int end = Math.min(start + BATCH_SIZE, pictures.length);
+            synchronized (this) {
+                mOrder.ensureCapacity(mOrder.size() + pictures.length - start);
+                for (int i = start; i < end; i++) {
+                    add(pictures[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method that removes some pictures from the sequence. The pictures are removed in
+     * batches, so draws from other threads are served in between.
+     *
+     * @param pictures The pictures
+     */
+    public void removeAll(File[] pictures) {
+        for (int start = 0; start < pictures.length; start += BATCH_SIZE) {
+            int end = Math.min(start + BATCH_SIZE, pictures.length);
+            synchronized (this) {
+                for (int i = start; i < end; i++) {
+                    remove(pictures[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method that removes a picture from the sequence
+     *
+     * @param picture The picture
+     */
+    public synchronized void remove(File picture) {
+        Integer p = mPositions.get(picture);
+        if (p == null) {
+            return;
+        }
+        int pos = p;
+        if (pos < mDrawn) {
+            // Move it to the end of the head and shrink the head
+            swap(pos, mDrawn - 1);
+            pos = mDrawn - 1;
+            mDrawn--;
+        }
+        int last = mOrder.size() - 1;
+        swap(pos, last);
+        mOrder.remove(last);
+        mPositions.remove(picture);
+        mSorted = null;
+    }
+
+    /**
+     * Method that returns the number of pictures of the sequence
+     *
+     * @return int The number of pictures
+     */
+    public synchronized int size() {
+        return mOrder.size();
+    }
+
+    /**
+     * Method that draws a random picture not drawn yet in the current cycle. A new cycle
+     * starts when all the pictures were drawn.
+     *
+     * @return File The picture or null if the sequence is empty
+     */
+    public synchronized File nextRandom() {
+        final int count = mOrder.size();
+        if (count == 0) {
+            return null;
+        }
+        if (mDrawn >= count) {
+            reset();
+        }
+        swap(mDrawn, Utils.getNextRandom(mDrawn, count - 1));
+        File picture = mOrder.get(mDrawn);
+        mDrawn++;
+        if (mLogOwner) {
+            appendPendingLog(getId(picture));
+            scheduleFlush();
+        } else {
+            mLogInSync = false;
+        }
+        return picture;
+    }
+
+    /**
+     * Method that returns the picture that follows another one in path order
+     *
+     * @param last The last picture shown or null to start with the first picture
+     * @return File The picture or null if the sequence is empty
+     */
+    public synchronized File nextSequential(File last) {
+        if (mOrder.isEmpty()) {
+            return null;
+        }
+        if (mSorted == null) {
+            mSorted = new ArrayList<>(mOrder);
+            Collections.sort(mSorted);
+        }
+        int pos = 0;
+        if (last != null) {
+            pos = Collections.binarySearch(mSorted, last);
+            pos = pos >= 0 ? pos + 1 : -pos - 1;
+            if (pos >= mSorted.size()) {
+                pos = 0;
+            }
+        }
+        return mSorted.get(pos);
+    }
+
+    /**
+     * Method that starts a new cycle of random draws
+     */
+    public synchronized void reset() {
+        mDrawn = 0;
+        mRestored = null;
+        mRestoredAdded = null;
+        mRestoredCount = 0;
+        if (mLogOwner) {
+            // Truncate the log
+            rewriteLog();
+        } else {
+            mLogInSync = false;
+        }
+    }
+
+    /**
+     * Method that writes the buffered draws to the log, if this sequence owns it. Can be
+     * called from any thread; the sequence is only locked to take the buffered draws.
+     */
+    @Override
+    public void flush() {
+        synchronized (sLogSync) {
+            long[] pending;
+            boolean rewrite;
+            synchronized (this) {
+                if (!mLogOwner || (mPendingCount == 0 && !mPendingRewrite)) {
+                    return;
+                }
+                pending = Arrays.copyOf(mPendingLog, mPendingCount);
+                rewrite = mPendingRewrite;
+                mPendingCount = 0;
+                mPendingRewrite = false;
+            }
+            if (writeLog(pending, rewrite)) {
+                sLogWriter = this;
+            } else {
+                // Rewrite the whole cycle with the next flush
+                synchronized (this) {
+                    if (mLogOwner) {
+                        rewriteLog();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Method that writes the buffered draws and releases the log of the sequence
+     */
+    public void close() {
+        flush();
+        synchronized (PictureSequence.class) {
+            if (sLogOwner == this) {
+                sLogOwner = null;
+            }
+        }
+        synchronized (sLogSync) {
+            if (sLogWriter == this) {
+                sLogWriter = null;
+            }
+        }
+        detachLog();
+    }
+
+    private void swap(int i, int j) {
+        if (i == j) {
+            return;
+        }
+        File a = mOrder.get(i);
+        File b = mOrder.get(j);
+        mOrder.set(i, b);
+        mOrder.set(j, a);
+        mPositions.put(b, i);
+        mPositions.put(a, j);
+    }
+
+    private void rewriteLog() {
+        // The pictures drawn in this cycle (and the ones of the persisted cycle that
+        // aren't available yet)
+        mPendingCount = 0;
+        mPendingRewrite = true;
+        mLogInSync = true;
+        for (int i = 0; i < mDrawn; i++) {
+            appendPendingLog(getId(mOrder.get(i)));
+        }
+        if (mRestoredCount > 0) {
+            for (int i = mRestoredAdded.nextClearBit(0); i < mRestored.length;
+                    i = mRestoredAdded.nextClearBit(i + 1)) {
+                appendPendingLog(mRestored[i]);
+            }
+        }
+        scheduleFlush();
+    }
+
+    private void appendPendingLog(long id) {
+        if (mPendingCount == mPendingLog.length) {
+            mPendingLog = Arrays.copyOf(mPendingLog, mPendingCount * 2);
+        }
+        mPendingLog[mPendingCount++] = id;
+    }
+
+    private boolean removeRestored(long id) {
+        int pos = Arrays.binarySearch(mRestored, id);
+        if (pos < 0 || mRestoredAdded.get(pos)) {
+            return false;
+        }
+        mRestoredAdded.set(pos);
+        mRestoredCount--;
+        return true;
+    }
+
+    /**
+     * Method that returns the id of a picture in the log: a 64-bit FNV-1a hash of its path
+     *
+     * @param picture The picture
+     * @return long The id of the picture
+     */
+    static long getId(File picture) {
+        final String path = picture.getAbsolutePath();
+        final int length = path.length();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void scheduleFlush() {
+        if (mStore != null) {
+            mStore.scheduleFlush();
+        }
+    }
+
+    private void readLog() {
+        final long length = mLogFile.length();
+        if (length <= HEADER_SIZE) {
+            return;
+        }
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(mLogFile)));
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                throw new IOException("Invalid log file");
+            }
+            // The entries have a fixed size (an incomplete last entry is ignored)
+            long[] drawn = new long[(int) ((length - HEADER_SIZE) / 8)];
+            for (int i = 0; i < drawn.length; i++) {
+                drawn[i] = is.readLong();
+            }
+            Arrays.sort(drawn);
+            int count = 0;
+            for (int i = 0; i < drawn.length; i++) {
+                if (count == 0 || drawn[i] != drawn[count - 1]) {
+                    drawn[count++] = drawn[i];
+                }
+            }
+            mRestored = Arrays.copyOf(drawn, count);
+            mRestoredAdded = new BitSet(count);
+            mRestoredCount = count;
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to read the sequence log", ex);
+        } finally {
+            close(is);
+        }
+    }
+
+    private boolean writeLog(long[] pictures, boolean rewrite) {
+        DataOutputStream os = null;
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mLogFile, !rewrite)));
+            if (rewrite) {
+                os.writeInt(MAGIC);
+                os.writeInt(VERSION);
+            }
+            for (long picture : pictures) {
+                os.writeLong(picture);
+            }
+            os.close();
+            os = null;
+            return true;
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write the sequence log", ex);
+            return false;
+        } finally {
+            close(os);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }
+    }
+}
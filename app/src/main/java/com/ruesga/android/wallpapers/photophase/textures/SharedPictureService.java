@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.textures;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.ruesga.android.wallpapers.photophase.MediaPictureDiscoverer;
+import com.ruesga.android.wallpapers.photophase.MediaPictureDiscoverer.OnMediaPictureDiscoveredListener;
+import com.ruesga.android.wallpapers.photophase.R;
+import com.ruesga.android.wallpapers.photophase.utils.BitmapPool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A process-wide service that owns the media discovery, the decode workers and the cache
+ * of decoded pictures, and serves all the active texture managers (home screen, lock screen,
+ * preview, ...), so every engine doesn't scan the MediaStore and decode the pictures on its
+ * own. The texture managers only keep their GLES state.<br/>
+ * <br/>
+ * The service is reference counted: it's created by the first {@link #acquire(Context)} and
+ * destroyed by the last {@link #release()}.
+ */
+public final class SharedPictureService {
+
+    private static final String TAG = "SharedPictureService";
+
+    private static final boolean DEBUG = false;
+
+    private static SharedPictureService sInstance;
+    private static int sReferences;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final MediaPictureDiscoverer mDiscoverer;
+    private final DecodeWorkerPool mDecoder;
+
+    private final List<OnMediaPictureDiscoveredListener> mListeners = new ArrayList<>();
+    // The listeners that still don't have the images of the previous discoveries
+    private final List<OnMediaPictureDiscoveredListener> mNewListeners = new ArrayList<>();
+    private Set<File> mImages;
+    private boolean mDiscovering;
+    private int mDiscovery;
+    private boolean mDiscoverPending;
+    private boolean mPendingUserRequest;
+
+    /**
+     * The listener of a discovery, that forwards its results to all the listeners of the
+     * service. The results of a discovery cancelled by a newer one are discarded.
+     */
+    private class Discovery implements OnMediaPictureDiscoveredListener {
+        private final int mId;
+
+        Discovery(int id) {
+            mId = id;
+        }
+
+        private boolean isCurrent() {
+            synchronized (mListeners) {
+                return mId == mDiscovery;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onStartMediaDiscovered(boolean userRequest) {
+            if (!isCurrent()) return;
+            for (OnMediaPictureDiscoveredListener listener : getListeners()) {
+                listener.onStartMediaDiscovered(userRequest);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onPartialMediaDiscovered(File[] images, boolean userRequest) {
+            if (!isCurrent()) return;
+            for (OnMediaPictureDiscoveredListener listener : getListeners()) {
+                listener.onPartialMediaDiscovered(images, userRequest);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        @SuppressWarnings("boxing")
+        public void onEndMediaDiscovered(File[] added, File[] removed, boolean userRequest) {
+            final List<OnMediaPictureDiscoveredListener> newListeners;
+            final File[] images;
+            final int found;
+            synchronized (mListeners) {
+                if (mId != mDiscovery) {
+                    return;
+                }
+                if (mImages == null) {
+                    mImages = new HashSet<>();
+                }
+                for (File image : removed) {
+                    mImages.remove(image);
+                }
+                Collections.addAll(mImages, added);
+                mDiscovering = false;
+                found = mImages.size();
+
+                // The new listeners receive all the images instead of the changes
+                newListeners = new ArrayList<>(mNewListeners);
+                mNewListeners.clear();
+                images = newListeners.isEmpty() ? null : mImages.toArray(new File[found]);
+            }
+            for (OnMediaPictureDiscoveredListener listener : getListeners()) {
+                if (newListeners.contains(listener)) {
+                    listener.onEndMediaDiscovered(images, new File[0], userRequest);
+                } else {
+                    listener.onEndMediaDiscovered(added, removed, userRequest);
+                }
+            }
+
+            // Notify the user only once, not once per engine
+            if (userRequest) {
+                CharSequence msg =
+                        String.format(mContext.getResources().getQuantityText(
+                                R.plurals.msg_media_reload_complete, found).toString(), found);
+                Toast.makeText(mContext, msg, Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+
+    private final Runnable mDiscoverTask = new Runnable() {
+        @Override
+        public void run() {
+            boolean userRequest;
+            int discovery;
+            synchronized (mListeners) {
+                userRequest = mPendingUserRequest;
+                mDiscoverPending = false;
+                mPendingUserRequest = false;
+                mDiscovering = true;
+                discovery = ++mDiscovery;
+            }
+            mDiscoverer.discover(userRequest, new Discovery(discovery));
+        }
+    };
+
+    /**
+     * Method that returns the shared service, creating it if needed. Every call must be
+     * paired with a call to {@link #release()}.
+     *
+     * @param ctx The current context
+     * @return SharedPictureService The shared service
+     */
+    public static synchronized SharedPictureService acquire(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new SharedPictureService(ctx.getApplicationContext());
+        }
+        sReferences++;
+        if (DEBUG) Log.d(TAG, "acquire: " + sReferences + " references");
+        return sInstance;
+    }
+
+    /**
+     * Constructor of <code>SharedPictureService</code>
+     *
+     * @param ctx The application context
+     */
+    private SharedPictureService(Context ctx) {
+        super();
+        mContext = ctx;
+        mHandler = new Handler(Looper.getMainLooper());
+        mDiscoverer = new MediaPictureDiscoverer(ctx);
+        mDecoder = new DecodeWorkerPool(new FrameBitmapDiskCache(ctx));
+    }
+
+    /**
+     * Method that releases a reference to the shared service. The service is destroyed
+     * when the last reference is released.
+     */
+    public void release() {
+        synchronized (SharedPictureService.class) {
+            sReferences--;
+            if (DEBUG) Log.d(TAG, "release: " + sReferences + " references");
+            if (sReferences > 0) {
+                return;
+            }
+            sInstance = null;
+
+            // Release the memory of the pooled bitmaps (under the lock, so a new service
+            // acquired meanwhile doesn't lose the bitmaps it pools)
+            if (DEBUG) Log.d(TAG, "Bitmap pool: " + BitmapPool.getHits() + " hits, "
+                    + BitmapPool.getMisses() + " misses");
+            BitmapPool.clear();
+        }
+
+        mHandler.removeCallbacks(mDiscoverTask);
+        mDiscoverer.recycle();
+        mDecoder.shutdown();
+        synchronized (mListeners) {
+            mListeners.clear();
+            mNewListeners.clear();
+        }
+    }
+
+    /**
+     * Method that returns the shared decode workers
+     *
+     * @return DecodeWorkerPool The decode workers
+     */
+    public DecodeWorkerPool getDecoder() {
+        return mDecoder;
+    }
+
+    /**
+     * Method that registers a listener of the discovered media. The listener receives all
+     * the pictures already discovered as added, and then the changes of the next
+     * discoveries; the media is only discovered if no other listener did it before.
+     *
+     * @param listener The listener
+     */
+    public void register(final OnMediaPictureDiscoveredListener listener) {
+        File[] images = null;
+        synchronized (mListeners) {
+            mListeners.add(listener);
+            if (mImages != null && !mDiscovering && !mDiscoverPending) {
+                images = mImages.toArray(new File[mImages.size()]);
+            } else {
+                // Wait for the end of the next discovery
+                mNewListeners.add(listener);
+                if (!mDiscovering) {
+                    scheduleDiscover(false);
+                }
+            }
+        }
+        final File[] all = images;
+        if (images != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mListeners) {
+                        if (!mListeners.contains(listener)) {
+                            return;
+                        }
+                    }
+                    listener.onStartMediaDiscovered(false);
+                    listener.onEndMediaDiscovered(all, new File[0], false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Method that unregisters a listener of the discovered media
+     *
+     * @param listener The listener
+     */
+    public void unregister(OnMediaPictureDiscoveredListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+            mNewListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Method that request a new discovery of the media. The requests of all the listeners
+     * that arrive before the discovery is started are served by the same discovery.
+     *
+     * @param userRequest If the request was generated by the user
+     */
+    public void discover(boolean userRequest) {
+        synchronized (mListeners) {
+            scheduleDiscover(userRequest);
+        }
+    }
+
+    private void scheduleDiscover(boolean userRequest) {
+        mPendingUserRequest |= userRequest;
+        if (!mDiscoverPending) {
+            mDiscoverPending = true;
+            // GLThread doesn't run in the UI thread and AsyncThread can't create a
+            // valid handler in ICS (it's fixed in JB+) so we force to run the async
+            // thread in a valid UI thread
+            mHandler.post(mDiscoverTask);
+        }
+    }
+
+    private List<OnMediaPictureDiscoveredListener> getListeners() {
+        synchronized (mListeners) {
+            return new ArrayList<>(mListeners);
+        }
+    }
+}
@@ -66,7 +66,7 @@ public class SimpleTextureManager extends TextureManager {
     }
 
     @Override
-    public void request(TextureRequestor requestor) {
+    public void request(TextureRequestor requestor, int priority) {
         // Load the bitmap
         Bitmap bitmap = null;
         InputStream is = null;
@@ -91,4 +91,9 @@ public class SimpleTextureManager extends TextureManager {
                     GLESUtil.loadTexture(mContext, bitmap, mEffect, mBorder, mDimensions));
         }
     }
+
+    @Override
+    public void cancelRequest(TextureRequestor requestor) {
+        // Requests are served synchronously
+    }
 }
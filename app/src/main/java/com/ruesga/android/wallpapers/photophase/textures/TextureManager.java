@@ -18,10 +18,40 @@ package com.ruesga.android.wallpapers.photophase.textures;
 
 public abstract class TextureManager {
 
+    /**
+     * The priority of the frames with a background disposition
+     */
+    public static final int PRIORITY_BACKGROUND = 0;
+    /**
+     * The priority of the frames on screen
+     */
+    public static final int PRIORITY_FRAME = 1;
+    /**
+     * The priority of the frame that a transition is about to show
+     */
+    public static final int PRIORITY_TRANSITION = 2;
+
+    /**
+     * Method that request a new picture for the {@link TextureRequestor}
+     *
+     * @param requestor The requestor of the texture
+     */
+    public void request(TextureRequestor requestor) {
+        request(requestor, PRIORITY_FRAME);
+    }
+
     /**
      * Method that request a new picture for the {@link TextureRequestor}
      *
      * @param requestor The requestor of the texture
+     * @param priority The priority of the request
+     */
+    public abstract void request(TextureRequestor requestor, int priority);
+
+    /**
+     * Method that cancels a request did it previously.
+     *
+     * @param requestor The requestor of the texture
      */
-    public abstract void request(TextureRequestor requestor);
+    public abstract void cancelRequest(TextureRequestor requestor);
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.textures;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import com.ruesga.android.wallpapers.photophase.FixedQueue.EmptyQueueException;
+import com.ruesga.android.wallpapers.photophase.utils.BitmapUtils;
+import com.ruesga.android.wallpapers.photophase.utils.GLESUtil.GLESTextureInfo;
+import com.ruesga.android.wallpapers.photophase.utils.MemoryGovernor;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A queue of decoded pictures ready to be uploaded. Instead of a fixed number of items, its
+ * depth adapts to the number of frames of the current disposition, the transition interval
+ * and the memory class of the device, and it's bounded by a byte budget.
+ */
+public class TexturePrefetchQueue {
+
+    /**
+     * The maximum number of pictures that can be prefetched
+     */
+    public static final int MAX_DEPTH = 8;
+
+    // The time window (in millis) we want to cover with prefetched pictures, so a transition
+    // never has to wait for a decode when the interval is shorter than this
+    private static final long PREFETCH_WINDOW = 6000L;
+
+    // The fraction of the heap that the prefetched pictures can use
+    private static final int HEAP_FRACTION = 8;
+
+    private final LinkedList<GLESTextureInfo> mQueue = new LinkedList<>();
+    private final long mMemoryBudget;
+    private long mBytes;
+    private int mDepth = 1;
+
+    /**
+     * Constructor of <code>TexturePrefetchQueue</code>
+     *
+     * @param context The current context
+     */
+    public TexturePrefetchQueue(Context context) {
+        super();
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mMemoryBudget = am.getMemoryClass() * 1024L * 1024L / HEAP_FRACTION;
+    }
+
+    /**
+     * Method that recalculates the depth of the queue
+     *
+     * @param frames The number of frames of the current disposition
+     * @param interval The transition interval in millis (0 if transitions are disabled)
+     * @param itemBytes The estimated size in bytes of every picture
+     */
+    public void adapt(int frames, int interval, long itemBytes) {
+        // Under memory pressure the governor limits the prefetched pictures
+        final int maxDepth = MemoryGovernor.getPrefetchDepth(MAX_DEPTH);
+
+        synchronized (this) {
+            // Cover the transitions that happen inside the prefetch window
+            int depth = 1;
+            if (interval > 0) {
+                depth += (int) (PREFETCH_WINDOW / interval);
+            }
+
+            // Never more than the frames on screen (a recreation of the world requests all of
+            // them at once) and never more than the memory budget allows
+            depth = Math.min(depth, Math.max(1, frames));
+            if (itemBytes > 0) {
+                depth = (int) Math.min(depth, Math.max(1, mMemoryBudget / itemBytes));
+            }
+            mDepth = Math.max(1, Math.min(depth, maxDepth));
+        }
+    }
+
+    /**
+     * Method that returns if there is room for a new picture
+     *
+     * @param inFlight The number of pictures being decoded right now
+     * @param itemBytes The estimated size in bytes of every picture
+     * @return boolean If a new picture can be decoded
+     */
+    public synchronized boolean hasRoom(int inFlight, long itemBytes) {
+        int items = mQueue.size() + inFlight;
+        if (items >= mDepth) {
+            return false;
+        }
+        // Always allow at least one picture, whatever the budget
+        return items == 0 || mBytes + ((inFlight + 1) * itemBytes) <= mMemoryBudget;
+    }
+
+    /**
+     * Method that inserts a new picture to the queue.
+     *
+     * @param ti The picture to insert
+     */
+    public synchronized void insert(GLESTextureInfo ti) {
+        if (ti == null) throw new NullPointerException();
+        mQueue.add(ti);
+        mBytes += byteSizeOf(ti);
+    }
+
+    /**
+     * Method that extract the first picture in the queue
+     *
+     * @return The picture extracted
+     * @throws EmptyQueueException If the queue hasn't element
+     */
+    public synchronized GLESTextureInfo remove() throws EmptyQueueException {
+        if (mQueue.isEmpty()) throw new EmptyQueueException();
+        GLESTextureInfo ti = mQueue.removeFirst();
+        mBytes = Math.max(0, mBytes - byteSizeOf(ti));
+        return ti;
+    }
+
+    /**
+     * Method that extract the first picture in the queue with the passed dimensions or, if
+     * there is none, the first picture in the queue
+     *
+     * @param width The preferred width
+     * @param height The preferred height
+     * @return The picture extracted
+     * @throws EmptyQueueException If the queue hasn't element
+     */
+    public synchronized GLESTextureInfo remove(int width, int height)
+            throws EmptyQueueException {
+        for (GLESTextureInfo ti : mQueue) {
+            // The pixels of the pictures stored rotated aren't oriented yet
+            boolean swap = BitmapUtils.isExifOrientationSwapped(ti.orientation);
+            if (ti.bitmap != null && ti.bitmap.getWidth() == (swap ? height : width)
+                    && ti.bitmap.getHeight() == (swap ? width : height)) {
+                mQueue.remove(ti);
+                mBytes = Math.max(0, mBytes - byteSizeOf(ti));
+                return ti;
+            }
+        }
+        return remove();
+    }
+
+    /**
+     * Method that extract all the pictures from the queue
+     *
+     * @return The pictures extracted
+     * @throws EmptyQueueException If the queue hasn't element
+     */
+    public synchronized List<GLESTextureInfo> removeAll() throws EmptyQueueException {
+        if (mQueue.isEmpty()) throw new EmptyQueueException();
+        List<GLESTextureInfo> l = new ArrayList<>(mQueue);
+        mQueue.clear();
+        mBytes = 0;
+        return l;
+    }
+
+    /**
+     * Method that extract the newest pictures from the queue, so it doesn't hold more
+     * than the passed number of pictures
+     *
+     * @param max The maximum number of pictures to keep
+     * @return The pictures extracted
+     */
+    public synchronized List<GLESTextureInfo> trim(int max) {
+        List<GLESTextureInfo> l = new ArrayList<>();
+        while (mQueue.size() > Math.max(0, max)) {
+            GLESTextureInfo ti = mQueue.removeLast();
+            mBytes = Math.max(0, mBytes - byteSizeOf(ti));
+            l.add(ti);
+        }
+        return l;
+    }
+
+    /**
+     * Method that returns the number of pictures in the queue
+     *
+     * @return int The number of pictures
+     */
+    public synchronized int items() {
+        return mQueue.size();
+    }
+
+    /**
+     * Method that returns the current depth of this queue.
+     *
+     * @return The depth of this queue
+     */
+    public synchronized int size() {
+        return mDepth;
+    }
+
+    /**
+     * Method that returns the number of bytes used by the pictures in the queue
+     *
+     * @return long The bytes used
+     */
+    public synchronized long bytes() {
+        return mBytes;
+    }
+
+    private static long byteSizeOf(GLESTextureInfo ti) {
+        if (ti.bitmap == null || ti.bitmap.isRecycled()) {
+            return 0;
+        }
+        return BitmapUtils.byteSizeOf(ti.bitmap);
+    }
+}
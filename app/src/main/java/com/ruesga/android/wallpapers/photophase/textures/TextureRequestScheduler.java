@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.textures;
+
+import android.graphics.RectF;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The pending texture requests, ordered by priority. Requests with a higher priority
+ * (see {@link TextureManager#PRIORITY_TRANSITION}) are served first, then the ones of the
+ * frames with a bigger on-screen area and then the oldest ones.<br/>
+ * <br/>
+ * A request can be claimed when a picture is being decoded for it. A claimed request is
+ * bound to that picture (the frame may be showing its placeholder), so it only can be
+ * served with it, and the decoded pictures without a target are delivered to the requests
+ * that are not waiting for their own picture. This class is not thread-safe.
+ */
+public class TextureRequestScheduler {
+
+    private static class Request {
+        TextureRequestor mRequestor;
+        int mPriority;
+        float mArea;
+        long mSequence;
+        File mPicture;
+    }
+
+    private static final Comparator<Request> COMPARATOR = new Comparator<Request>() {
+        @Override
+        public int compare(Request lhs, Request rhs) {
+            if (lhs.mPriority != rhs.mPriority) {
+                return lhs.mPriority > rhs.mPriority ? -1 : 1;
+            }
+            if (lhs.mArea != rhs.mArea) {
+                return lhs.mArea > rhs.mArea ? -1 : 1;
+            }
+            return lhs.mSequence < rhs.mSequence ? -1 : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+        }
+    };
+
+    private final List<Request> mRequests;
+    private long mSequence;
+
+    /**
+     * Constructor of <code>TextureRequestScheduler</code>
+     *
+     * @param capacity The expected number of requests
+     */
+    public TextureRequestScheduler(int capacity) {
+        super();
+        mRequests = new ArrayList<>(capacity);
+    }
+
+    /**
+     * Method that adds a new request. If the requestor already has a pending request, its
+     * priority is raised (never lowered).
+     *
+     * @param requestor The requestor of the texture
+     * @param priority The priority of the request
+     */
+    public void add(TextureRequestor requestor, int priority) {
+        Request request = find(requestor);
+        if (request != null) {
+            if (priority > request.mPriority) {
+                request.mPriority = priority;
+                Collections.sort(mRequests, COMPARATOR);
+            }
+            return;
+        }
+
+        request = new Request();
+        request.mRequestor = requestor;
+        request.mPriority = priority;
+        RectF dimens = requestor.getRequestorDimensions();
+        request.mArea = dimens.width() * dimens.height();
+        request.mSequence = mSequence++;
+        int pos = Collections.binarySearch(mRequests, request, COMPARATOR);
+        mRequests.add(pos < 0 ? -(pos + 1) : pos, request);
+    }
+
+    /**
+     * Method that removes the pending request of a requestor
+     *
+     * @param requestor The requestor of the texture
+     * @return boolean If the requestor had a pending request
+     */
+    public boolean remove(TextureRequestor requestor) {
+        Request request = find(requestor);
+        return request != null && mRequests.remove(request);
+    }
+
+    /**
+     * Method that removes and returns the request with the highest priority that can be
+     * served with a picture: an unclaimed request or, otherwise, the request claimed for
+     * that same picture
+     *
+     * @param picture The picture to deliver
+     * @return TextureRequestor The requestor or null if no pending request can be served
+     * with the picture
+     */
+    public TextureRequestor poll(File picture) {
+        Request request = null;
+        for (Request r : mRequests) {
+            if (r.mPicture == null) {
+                request = r;
+                break;
+            }
+            if (request == null && r.mPicture.equals(picture)) {
+                request = r;
+            }
+        }
+        if (request == null) {
+            return null;
+        }
+        mRequests.remove(request);
+        return request.mRequestor;
+    }
+
+    /**
+     * Method that claims the unclaimed request with the highest priority, so the picture
+     * is decoded for it
+     *
+     * @param picture The picture that will be decoded for the request
+     * @return TextureRequestor The requestor or null if there is no unclaimed request
+     */
+    public TextureRequestor claim(File picture) {
+        for (Request r : mRequests) {
+            if (r.mPicture == null) {
+                r.mPicture = picture;
+                return r.mRequestor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method that returns if the pending request of a requestor is claimed for a picture
+     *
+     * @param requestor The requestor of the texture
+     * @param picture The picture
+     * @return boolean If the requestor has a pending request claimed for the picture
+     */
+    public boolean isClaimedFor(TextureRequestor requestor, File picture) {
+        Request request = find(requestor);
+        return request != null && request.mPicture != null && request.mPicture.equals(picture);
+    }
+
+    /**
+     * Method that returns the priority of the pending request of a requestor
+     *
+     * @param requestor The requestor of the texture
+     * @return int The priority or -1 if the requestor has no pending request
+     */
+    public int getPriority(TextureRequestor requestor) {
+        Request request = find(requestor);
+        return request != null ? request.mPriority : -1;
+    }
+
+    /**
+     * Method that returns if there are pending requests
+     *
+     * @return boolean If there are no pending requests
+     */
+    public boolean isEmpty() {
+        return mRequests.isEmpty();
+    }
+
+    private Request find(TextureRequestor requestor) {
+        for (Request r : mRequests) {
+            if (r.mRequestor == requestor) {
+                return r;
+            }
+        }
+        return null;
+    }
+}
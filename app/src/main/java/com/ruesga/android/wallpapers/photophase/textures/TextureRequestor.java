@@ -33,6 +33,14 @@ public interface TextureRequestor {
      */
     void setTextureHandle(GLESTextureInfo ti);
 
+    /**
+     * Method that returns if the requestor already has a texture (a placeholder doesn't
+     * count)
+     *
+     * @return boolean If the requestor has a texture
+     */
+    boolean isLoaded();
+
     /**
      * Method that returns the dimension of the requestor
      *
@@ -19,12 +19,12 @@ package com.ruesga.android.wallpapers.photophase.transitions;
 import android.content.Context;
 import android.opengl.GLES20;
 import android.os.SystemClock;
-import android.util.Log;
 import android.view.animation.AccelerateInterpolator;
 
 import com.ruesga.android.wallpapers.photophase.PhotoFrame;
 import com.ruesga.android.wallpapers.photophase.textures.TextureManager;
 import com.ruesga.android.wallpapers.photophase.transitions.Transitions.TRANSITIONS;
+import com.ruesga.android.wallpapers.photophase.utils.GLESProgramRegistry;
 import com.ruesga.android.wallpapers.photophase.utils.GLESUtil;
 
 /**
@@ -101,7 +101,8 @@ public abstract class Transition {
                             mTextureManager,
                             mTarget.getFrameVertex(),
                             mTarget.getPhotoVertex(),
-                            mTarget.getBackgroundColor());
+                            mTarget.getBackgroundColor(),
+                            TextureManager.PRIORITY_TRANSITION);
         }
     }
 
@@ -226,6 +227,13 @@ public abstract class Transition {
         mTextureHandlers[index] =
                 GLES20.glGetUniformLocation(mProgramHandlers[index], "sTexture");
         GLESUtil.glesCheckError("glGetUniformLocation");
+        if (mTextureHandlers[index] == -1) {
+            // Some shaders name the sampler differently. It must be resolved anyway, because
+            // programs are shared and the sampler must be set every time the program is bound
+            mTextureHandlers[index] =
+                    GLES20.glGetUniformLocation(mProgramHandlers[index], "s_texture");
+            GLESUtil.glesCheckError("glGetUniformLocation");
+        }
         mPositionHandlers[index] =
                 GLES20.glGetAttribLocation(mProgramHandlers[index], "aPosition");
         GLESUtil.glesCheckError("glGetAttribLocation");
@@ -238,7 +246,8 @@ public abstract class Transition {
     }
 
     /**
-     * Method that set the program to use
+     * Method that set the program to use. Programs are shared with other users of the same
+     * shaders, so all the uniforms of the program must be set after this call.
      *
      * @param index The index of the program to use
      */
@@ -256,14 +265,7 @@ public abstract class Transition {
     public void recycle() {
         int cc = mProgramHandlers.length;
         for (int i = 0; i < cc; i++) {
-            if (GLES20.glIsProgram(mProgramHandlers[i])) {
-                if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                    Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteProgram: "
-                            + mProgramHandlers[i]);
-                }
-                GLES20.glDeleteProgram(mProgramHandlers[i]);
-                GLESUtil.glesCheckError("glDeleteProgram");
-            }
+            GLESProgramRegistry.release(mProgramHandlers[i]);
             mProgramHandlers[i] = -1;
             mTextureHandlers[i] = -1;
             mPositionHandlers[i] = -1;
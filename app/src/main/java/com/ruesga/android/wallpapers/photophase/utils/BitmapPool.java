@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.ruesga.android.wallpapers.photophase.AndroidHelper;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A process-wide pool of bitmaps, bucketed by their allocation size, used to reuse the
+ * memory of the pictures already uploaded (as decode targets through
+ * {@link BitmapFactory.Options#inBitmap} or as scratch bitmaps for scaling) instead of
+ * allocating new bitmaps for every picture.
+ */
+public final class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    private static final boolean DEBUG = false;
+
+    // The fraction of the heap that the pooled bitmaps can use
+    private static final int HEAP_FRACTION = 8;
+
+    private static final SparseArray<LinkedList<Bitmap>> sBuckets = new SparseArray<>();
+    private static final long sMaxSize = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+    private static long sSize;
+
+    private static int sHits;
+    private static int sMisses;
+
+    private BitmapPool() {
+    }
+
+    /**
+     * Method that returns a mutable bitmap with the passed dimensions and config, reusing
+     * a pooled bitmap if possible. The content of the bitmap is undefined.
+     *
+     * @param width The width of the bitmap
+     * @param height The height of the bitmap
+     * @param config The config of the bitmap
+     * @return Bitmap A mutable bitmap
+     */
+    public static Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width, height, config);
+        if (bitmap != null) {
+            if (AndroidHelper.isKitKatOrGreater()) {
+                reconfigure(bitmap, width, height, config);
+            }
+            bitmap.eraseColor(0);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Method that sets a pooled bitmap as the decode target of a decode operation. Pre-KitKat
+     * devices only can reuse bitmaps of the exact same size without subsampling.
+     *
+     * @param options The decode options (with the inSampleSize already set)
+     * @param width The width of the picture to decode
+     * @param height The height of the picture to decode
+     */
+    @SuppressWarnings("deprecation")
+    public static void prepareDecode(BitmapFactory.Options options, int width, int height) {
+        options.inMutable = true;
+        if (!AndroidHelper.isKitKatOrGreater() && options.inSampleSize > 1) {
+            return;
+        }
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int w = (width + sampleSize - 1) / sampleSize;
+        int h = (height + sampleSize - 1) / sampleSize;
+        options.inBitmap = take(w, h, options.inPreferredConfig);
+        if (options.inBitmap != null) {
+            // Purgeable bitmaps can't be reused
+            options.inPurgeable = false;
+            options.inInputShareable = false;
+        }
+    }
+
+    /**
+     * Method that returns a bitmap to the pool. The bitmap must not be used anymore by the
+     * caller. Bitmaps that can't be reused (or that are returned under memory pressure) are
+     * just recycled.
+     *
+     * @param bitmap The bitmap to return
+     */
+    public static void recycle(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getConfig() == null
+                || MemoryGovernor.getLevel() >= MemoryGovernor.LEVEL_REDUCED) {
+            bitmap.recycle();
+            return;
+        }
+
+        final int bytes = BitmapUtils.byteSizeOf(bitmap);
+        synchronized (BitmapPool.class) {
+            if (bytes > sMaxSize) {
+                bitmap.recycle();
+                return;
+            }
+            LinkedList<Bitmap> bucket = sBuckets.get(bucketOf(bytes));
+            if (bucket == null) {
+                bucket = new LinkedList<>();
+                sBuckets.put(bucketOf(bytes), bucket);
+            }
+            bucket.addFirst(bitmap);
+            sSize += bytes;
+            trimToSize();
+        }
+    }
+
+    /**
+     * Method that recycles all the pooled bitmaps
+     */
+    public static synchronized void clear() {
+        for (int i = 0; i < sBuckets.size(); i++) {
+            for (Bitmap bitmap : sBuckets.valueAt(i)) {
+                bitmap.recycle();
+            }
+        }
+        sBuckets.clear();
+        sSize = 0;
+    }
+
+    /**
+     * Method that returns the number of requests that were served with a pooled bitmap
+     *
+     * @return int The number of hits
+     */
+    public static synchronized int getHits() {
+        return sHits;
+    }
+
+    /**
+     * Method that returns the number of requests that required a new bitmap
+     *
+     * @return int The number of misses
+     */
+    public static synchronized int getMisses() {
+        return sMisses;
+    }
+
+    /**
+     * Method that returns the number of bytes currently pooled
+     *
+     * @return long The bytes pooled
+     */
+    public static synchronized long size() {
+        return sSize;
+    }
+
+    private static synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        final boolean kitkat = AndroidHelper.isKitKatOrGreater();
+        final int bytes = width * height * bytesPerPixel(config);
+
+        // KitKat and later can reuse any bitmap big enough. Look in the bucket of the
+        // requested size and in the next one, so the wasted memory is bounded
+        int bucket = bucketOf(bytes);
+        for (int b = bucket; b <= bucket + (kitkat ? 1 : 0); b++) {
+            LinkedList<Bitmap> candidates = sBuckets.get(b);
+            if (candidates == null) {
+                continue;
+            }
+            Iterator<Bitmap> it = candidates.iterator();
+            while (it.hasNext()) {
+                Bitmap bitmap = it.next();
+                if (bitmap.isRecycled()) {
+                    it.remove();
+                    continue;
+                }
+                boolean fits = kitkat
+                        ? BitmapUtils.byteSizeOf(bitmap) >= bytes
+                        : bitmap.getWidth() == width && bitmap.getHeight() == height
+                                && bitmap.getConfig() == config;
+                if (fits) {
+                    it.remove();
+                    sSize -= BitmapUtils.byteSizeOf(bitmap);
+                    sHits++;
+                    if (DEBUG) Log.d(TAG, "hit: " + width + "x" + height + " " + config);
+                    return bitmap;
+                }
+            }
+        }
+        sMisses++;
+        if (DEBUG) Log.d(TAG, "miss: " + width + "x" + height + " " + config);
+        return null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height
+                || bitmap.getConfig() != config) {
+            bitmap.reconfigure(width, height, config);
+        }
+    }
+
+    private static void trimToSize() {
+        // Drop the bitmaps of the largest buckets first, they are the less likely to fit
+        for (int i = sBuckets.size() - 1; i >= 0 && sSize > sMaxSize; i--) {
+            LinkedList<Bitmap> bucket = sBuckets.valueAt(i);
+            while (!bucket.isEmpty() && sSize > sMaxSize) {
+                Bitmap bitmap = bucket.removeLast();
+                sSize -= BitmapUtils.byteSizeOf(bitmap);
+                bitmap.recycle();
+            }
+        }
+    }
+
+    private static int bucketOf(int bytes) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(0, bytes - 1));
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -18,21 +18,31 @@
 package com.ruesga.android.wallpapers.photophase.utils;
 
 import android.app.ActivityManager;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import android.opengl.ETC1Util.ETC1Texture;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
 import android.support.media.ExifInterface;
 
 import com.ruesga.android.wallpapers.photophase.AndroidHelper;
+import com.ruesga.android.wallpapers.photophase.utils.PipelineStats.Stage;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * A helper class for deal with Bitmaps
@@ -80,36 +90,242 @@ public class BitmapUtils {
      * @param dstHeight The request height
      * @return Bitmap The decoded bitmap
      */
-    @SuppressWarnings("deprecation")
     public static Bitmap decodeBitmap(File file, int dstWidth, int dstHeight) {
+        return decodeBitmap(file, dstWidth, dstHeight, ScalingLogic.FIT);
+    }
+
+    /**
+     * Method that decodes a bitmap subsampled to the requested dimensions. When the scaling
+     * logic is {@link ScalingLogic#CROP}, only the region of the picture that survives the
+     * crop is decoded, and the result is cropped, oriented and scaled to exactly the
+     * requested dimensions.
+     *
+     * @param file The bitmap file to decode
+     * @param dstWidth The request width
+     * @param dstHeight The request height
+     * @param scalingLogic Logic that will be used to scale the decoded bitmap
+     * @return Bitmap The decoded bitmap
+     */
+    public static Bitmap decodeBitmap(File file, int dstWidth, int dstHeight,
+            ScalingLogic scalingLogic) {
+        return decodeBitmap(file, dstWidth, dstHeight, scalingLogic,
+                getExifOrientation(file), true);
+    }
+
+    /**
+     * Method that decodes a bitmap subsampled to the requested dimensions, but without
+     * applying its Exif orientation. The pixels are returned as stored in the file, so the
+     * dimensions of a picture stored rotated are swapped, and the caller is responsible of
+     * orienting them (i.e. through the texture coordinates).
+     *
+     * @param file The bitmap file to decode
+     * @param dstWidth The request width (of the oriented picture)
+     * @param dstHeight The request height (of the oriented picture)
+     * @param scalingLogic Logic that will be used to scale the decoded bitmap
+     * @param orientation The Exif orientation of the picture (see
+     * {@link #getExifOrientation(File)})
+     * @return Bitmap The decoded bitmap
+     */
+    public static Bitmap decodeUnorientedBitmap(File file, int dstWidth, int dstHeight,
+            ScalingLogic scalingLogic, int orientation) {
+        return decodeBitmap(file, dstWidth, dstHeight, scalingLogic, orientation, false);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap decodeBitmap(File file, int dstWidth, int dstHeight,
+            ScalingLogic scalingLogic, int orientation, boolean orient) {
         // First decode with inJustDecodeBounds=true to check dimensions
         final Options options = new Options();
         options.inScaled = false;
         options.inDither = true;
         options.inPreferQualityOverSpeed = false;
         options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-        // Deprecated, but still valid for KitKat and lower apis
-        options.inPurgeable = true;
-        options.inInputShareable = true;
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // The requested dimensions are relative to the displayed picture, so swap them
+        // if the picture is stored rotated
+        boolean swap = isExifOrientationSwapped(orientation);
+        int reqWidth = swap ? dstHeight : dstWidth;
+        int reqHeight = swap ? dstWidth : dstHeight;
 
         // Decode the bitmap with inSampleSize set
-        options.inSampleSize = Math.min(1, calculateBitmapRatio(options, dstWidth, dstHeight));
+        final long decodeStart = PipelineStats.start();
         options.inJustDecodeBounds = false;
-        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        Bitmap bitmap = null;
+        boolean cropped = false;
+        if (scalingLogic == ScalingLogic.CROP) {
+            Rect region = calculateSrcRect(options.outWidth, options.outHeight,
+                    reqWidth, reqHeight, ScalingLogic.CROP);
+            options.inSampleSize = calculateBitmapRatio(
+                    region.width(), region.height(), reqWidth, reqHeight);
+            bitmap = decodeBitmapRegion(file, region, options);
+            cropped = bitmap != null;
+        }
+        if (bitmap == null) {
+            final int width = options.outWidth;
+            final int height = options.outHeight;
+            options.inSampleSize = calculateBitmapRatio(width, height, reqWidth, reqHeight);
+            // Deprecated, but still valid for KitKat and lower apis
+            options.inPurgeable = true;
+            options.inInputShareable = true;
+            BitmapPool.prepareDecode(options, width, height);
+            bitmap = decodeFile(file, options);
+        }
         if (bitmap == null) {
             return null;
         }
+        PipelineStats.record(Stage.DECODE, decodeStart, byteSizeOf(bitmap));
 
-        // Test if the bitmap has exif format, and decode properly
-        Bitmap out = decodeExifBitmap(file, bitmap);
+        Bitmap out;
+        final long transformStart = PipelineStats.start();
+        if (scalingLogic == ScalingLogic.CROP) {
+            // Crop (if the region wasn't decoded), orient and scale the picture to the
+            // requested dimensions in one pass
+            Rect crop = cropped ? null : calculateSrcRect(bitmap.getWidth(), bitmap.getHeight(),
+                    reqWidth, reqHeight, ScalingLogic.CROP);
+            if (orient) {
+                out = createTransformedBitmap(bitmap, crop, orientation, dstWidth, dstHeight);
+            } else {
+                out = createTransformedBitmap(bitmap, crop, ExifInterface.ORIENTATION_NORMAL,
+                        reqWidth, reqHeight);
+            }
+            PipelineStats.record(Stage.CROP_SCALE, transformStart,
+                    out != null ? byteSizeOf(out) : 0);
+        } else if (!orient) {
+            out = bitmap;
+        } else {
+            // Test if the bitmap has exif format, and decode properly
+            out = applyExifOrientation(bitmap, orientation);
+            if (out != null && out != bitmap) {
+                PipelineStats.record(Stage.EXIF, transformStart, byteSizeOf(out));
+            }
+        }
         if (out != null && !out.equals(bitmap)) {
-            bitmap.recycle();
+            BitmapPool.recycle(bitmap);
         }
         return out;
     }
 
+    /**
+     * Method that decodes a small preview of a picture without decoding the picture itself:
+     * the thumbnail embedded in its Exif data or, if there is none, the thumbnail already
+     * generated by the MediaStore (it's never generated here). The preview is returned as
+     * stored, without applying the Exif orientation of the picture.
+     *
+     * @param context The current context
+     * @param file The picture file
+     * @return Bitmap The preview or null if the picture has no thumbnail
+     */
+    public static Bitmap decodeThumbnail(Context context, File file) {
+        try {
+            ExifInterface exif = new ExifInterface(file.getAbsolutePath());
+            byte[] data = exif.getThumbnail();
+            if (data != null) {
+                Bitmap thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length);
+                if (thumbnail != null) {
+                    return thumbnail;
+                }
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+
+        ContentResolver cr = context.getContentResolver();
+        Cursor c = null;
+        try {
+            c = cr.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                    new String[]{BaseColumns._ID},
+                    MediaStore.MediaColumns.DATA + " = ?",
+                    new String[]{file.getAbsolutePath()},
+                    null);
+            if (c == null || !c.moveToFirst()) {
+                return null;
+            }
+            long id = c.getLong(0);
+            c.close();
+            c = MediaStore.Images.Thumbnails.queryMiniThumbnail(cr, id,
+                    MediaStore.Images.Thumbnails.MINI_KIND,
+                    new String[]{MediaStore.Images.Thumbnails.DATA});
+            if (c != null && c.moveToFirst() && c.getString(0) != null) {
+                return BitmapFactory.decodeFile(c.getString(0));
+            }
+        } catch (RuntimeException e) {
+            // Ignore
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method that decodes only a region of a bitmap
+     *
+     * @param file The bitmap file to decode
+     * @param region The region to decode
+     * @param options The decode options
+     * @return Bitmap The decoded bitmap or null if the format doesn't support region decoding
+     */
+    private static Bitmap decodeBitmapRegion(File file, Rect region, Options options) {
+        BitmapRegionDecoder decoder = null;
+        try {
+            // Only jpeg and png pictures supports region decoding
+            decoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+
+            // Region decoding only supports reusing bitmaps of any size since KitKat
+            if (AndroidHelper.isKitKatOrGreater()) {
+                BitmapPool.prepareDecode(options, region.width(), region.height());
+            }
+            try {
+                return decoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException ex) {
+                if (options.inBitmap == null) {
+                    throw ex;
+                }
+                // The pooled bitmap can't be reused for this picture
+                BitmapPool.recycle(options.inBitmap);
+                options.inBitmap = null;
+                return decoder.decodeRegion(region, options);
+            } finally {
+                options.inBitmap = null;
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * Method that decodes a file, falling back to a new bitmap if the decode target set in
+     * the options can't be reused for this picture
+     *
+     * @param file The bitmap file to decode
+     * @param options The decode options
+     * @return Bitmap The decoded bitmap
+     */
+    private static Bitmap decodeFile(File file, Options options) {
+        try {
+            return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        } catch (IllegalArgumentException ex) {
+            if (options.inBitmap == null) {
+                throw ex;
+            }
+            BitmapPool.recycle(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        } finally {
+            options.inBitmap = null;
+        }
+    }
+
     public static Rect getBitmapDimensions(File file) {
         // First decode with inJustDecodeBounds=true to check dimensions
         final Options options = new Options();
@@ -176,13 +392,41 @@ public class BitmapUtils {
                 dstWidth, dstHeight, scalingLogic);
         Rect dstRect = calculateDstRect(unscaledBitmap.getWidth(), unscaledBitmap.getHeight(),
                 dstWidth, dstHeight, scalingLogic);
-        Bitmap scaledBitmap = Bitmap.createBitmap(dstRect.width(), dstRect.height(),
+        Bitmap scaledBitmap = BitmapPool.obtain(dstRect.width(), dstRect.height(),
                 Bitmap.Config.ARGB_8888);
+        scaledBitmap.setHasAlpha(unscaledBitmap.hasAlpha());
         Canvas canvas = new Canvas(scaledBitmap);
         canvas.drawBitmap(unscaledBitmap, srcRect, dstRect, new Paint(Paint.FILTER_BITMAP_FLAG));
         return scaledBitmap;
     }
 
+    /**
+     * Method that compresses a bitmap to an ETC1 texture
+     *
+     * @param bitmap The bitmap to compress
+     * @return ETC1Texture The compressed texture or null if the bitmap has alpha (ETC1
+     * doesn't support it)
+     */
+    public static ETC1Texture compressBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || bitmap.hasAlpha()) {
+            return null;
+        }
+
+        // Encode the picture by strips of 4 rows, so the pixels are not copied at once
+        final int w = bitmap.getWidth();
+        final int h = bitmap.getHeight();
+        ByteBuffer out = ByteBuffer.allocateDirect(ETC1Encoder.getEncodedDataSize(w, h))
+                .order(ByteOrder.nativeOrder());
+        int[] strip = new int[w * 4];
+        for (int y = 0; y < h; y += 4) {
+            int rows = Math.min(4, h - y);
+            bitmap.getPixels(strip, 0, w, 0, y, w, rows);
+            ETC1Encoder.encodeImage(strip, w, rows, out);
+        }
+        out.position(0);
+        return new ETC1Texture(w, h, out);
+    }
+
     /**
      * Method that decodes an Exif bitmap
      *
@@ -192,49 +436,136 @@ public class BitmapUtils {
      */
     private static Bitmap decodeExifBitmap(File file, Bitmap src) {
         if (src != null) {
-            try {
-                // Try to load the bitmap as a bitmap file
-                ExifInterface exif = new ExifInterface(file.getAbsolutePath());
-                int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1);
-                if (orientation == ExifInterface.ORIENTATION_UNDEFINED
-                        || orientation == ExifInterface.ORIENTATION_NORMAL) {
-                    return src;
-                }
-                Matrix matrix = new Matrix();
-                if (orientation == ExifInterface.ORIENTATION_ROTATE_90) {
-                    matrix.postRotate(90);
-                } else if (orientation == ExifInterface.ORIENTATION_ROTATE_180) {
-                    matrix.postRotate(180);
-                } else if (orientation == ExifInterface.ORIENTATION_ROTATE_270) {
-                    matrix.postRotate(270);
-                } else if (orientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL) {
-                    matrix.setScale(-1, 1);
-                    matrix.postTranslate(src.getWidth(), 0);
-                } else if (orientation == ExifInterface.ORIENTATION_FLIP_VERTICAL) {
-                    matrix.setScale(1, -1);
-                    matrix.postTranslate(0, src.getHeight());
-                }
-                // Rotate the bitmap
-                return Bitmap.createBitmap(src, 0, 0, src.getWidth(), src.getHeight(), matrix, true);
-            } catch (IOException e) {
-                // Ignore
-            }
+            return applyExifOrientation(src, getExifOrientation(file));
         }
         return src;
     }
 
+    /**
+     * Method that reads the Exif orientation of a picture
+     *
+     * @param file The picture file
+     * @return int The Exif orientation
+     */
+    public static int getExifOrientation(File file) {
+        try {
+            ExifInterface exif = new ExifInterface(file.getAbsolutePath());
+            return exif.getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            // Ignore
+        }
+        return ExifInterface.ORIENTATION_UNDEFINED;
+    }
+
+    /**
+     * Method that returns if an Exif orientation swaps the width and height of a picture
+     *
+     * @param orientation The Exif orientation
+     * @return boolean If the width and height are swapped
+     */
+    public static boolean isExifOrientationSwapped(int orientation) {
+        return orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_ROTATE_270
+                || orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+    }
+
+    /**
+     * Method that applies an Exif orientation to a bitmap
+     *
+     * @param src The bitmap reference
+     * @param orientation The Exif orientation
+     * @return Bitmap The oriented bitmap
+     */
+    private static Bitmap applyExifOrientation(Bitmap src, int orientation) {
+        if (getExifMatrix(orientation) == null) {
+            return src;
+        }
+        boolean swap = isExifOrientationSwapped(orientation);
+        return createTransformedBitmap(src, null, orientation,
+                swap ? src.getHeight() : src.getWidth(), swap ? src.getWidth() : src.getHeight());
+    }
+
+    /**
+     * Method that returns the transformation of an Exif orientation
+     *
+     * @param orientation The Exif orientation
+     * @return Matrix The transformation or null if the orientation doesn't need any
+     */
+    private static Matrix getExifMatrix(int orientation) {
+        Matrix matrix = new Matrix();
+        if (orientation == ExifInterface.ORIENTATION_ROTATE_90) {
+            matrix.setRotate(90);
+        } else if (orientation == ExifInterface.ORIENTATION_ROTATE_180) {
+            matrix.setRotate(180);
+        } else if (orientation == ExifInterface.ORIENTATION_ROTATE_270) {
+            matrix.setRotate(270);
+        } else if (orientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL) {
+            matrix.setScale(-1, 1);
+        } else if (orientation == ExifInterface.ORIENTATION_FLIP_VERTICAL) {
+            matrix.setScale(1, -1);
+        } else if (orientation == ExifInterface.ORIENTATION_TRANSPOSE) {
+            matrix.setRotate(90);
+            matrix.postScale(-1, 1);
+        } else if (orientation == ExifInterface.ORIENTATION_TRANSVERSE) {
+            matrix.setRotate(-90);
+            matrix.postScale(-1, 1);
+        } else {
+            return null;
+        }
+        return matrix;
+    }
+
+    /**
+     * Method that crops, orients and scales a bitmap in a single pass, drawing the result
+     * into one destination bitmap.
+     *
+     * @param src The source bitmap
+     * @param srcRect The region of the source bitmap to keep or null to keep all of it
+     * @param orientation The Exif orientation of the source bitmap
+     * @param dstWidth The width of the destination bitmap (already oriented)
+     * @param dstHeight The height of the destination bitmap (already oriented)
+     * @return Bitmap The transformed bitmap or the source bitmap if no transformation is
+     * needed
+     */
+    public static Bitmap createTransformedBitmap(Bitmap src, Rect srcRect, int orientation,
+            int dstWidth, int dstHeight) {
+        if (srcRect == null) {
+            srcRect = new Rect(0, 0, src.getWidth(), src.getHeight());
+        }
+
+        // Orient the region and move it to the origin, then scale it to the destination
+        Matrix matrix = getExifMatrix(orientation);
+        if (matrix == null) {
+            matrix = new Matrix();
+        }
+        RectF bounds = new RectF(srcRect);
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        matrix.postScale(dstWidth / bounds.width(), dstHeight / bounds.height());
+        if (matrix.isIdentity() && src.getWidth() == dstWidth && src.getHeight() == dstHeight) {
+            return src;
+        }
+
+        Bitmap out = BitmapPool.obtain(dstWidth, dstHeight,
+                src.getConfig() != null ? src.getConfig() : Bitmap.Config.ARGB_8888);
+        out.setHasAlpha(src.hasAlpha());
+        Canvas canvas = new Canvas(out);
+        canvas.drawBitmap(src, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return out;
+    }
+
     /**
      * Method that calculate the bitmap size prior to decode
      *
-     * @param options The bitmap factory options
+     * @param width The raw width of the picture
+     * @param height The raw height of the picture
      * @param reqWidth The request width
      * @param reqHeight The request height
      * @return int The picture ratio
      */
-    private static int calculateBitmapRatio(Options options, int reqWidth, int reqHeight) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
+    private static int calculateBitmapRatio(int width, int height, int reqWidth, int reqHeight) {
         int inSampleSize = 1;
 
         if (height > reqHeight || width > reqWidth) {
@@ -265,6 +596,24 @@ public class BitmapUtils {
      */
     public static Rect calculateSrcRect(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
             ScalingLogic scalingLogic) {
+        return calculateSrcRect(srcWidth, srcHeight, dstWidth, dstHeight, scalingLogic,
+                new Rect());
+    }
+
+    /**
+     * Calculates source rectangle for scaling bitmap into an existing rectangle
+     *
+     * @param srcWidth Width of source image
+     * @param srcHeight Height of source image
+     * @param dstWidth Width of destination area
+     * @param dstHeight Height of destination area
+     * @param scalingLogic Logic to use to avoid image stretching
+     * @param out The rectangle where to store the result
+     * @return The passed rectangle with the optimal source rectangle
+     */
+    public static Rect calculateSrcRect(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+            ScalingLogic scalingLogic, Rect out) {
+        // The fields are assigned directly, so the math can be tested on the JVM
         if (scalingLogic == ScalingLogic.CROP) {
             final float srcAspect = (float)srcWidth / (float)srcHeight;
             final float dstAspect = (float)dstWidth / (float)dstHeight;
@@ -272,14 +621,14 @@ public class BitmapUtils {
             if (srcAspect > dstAspect) {
                 final int srcRectWidth = (int)(srcHeight * dstAspect);
                 final int srcRectLeft = (srcWidth - srcRectWidth) / 2;
-                return new Rect(srcRectLeft, 0, srcRectLeft + srcRectWidth, srcHeight);
+                return set(out, srcRectLeft, 0, srcRectLeft + srcRectWidth, srcHeight);
             } else {
                 final int srcRectHeight = (int)(srcWidth / dstAspect);
                 final int scrRectTop = (srcHeight - srcRectHeight) / 2;
-                return new Rect(0, scrRectTop, srcWidth, scrRectTop + srcRectHeight);
+                return set(out, 0, scrRectTop, srcWidth, scrRectTop + srcRectHeight);
             }
         } else {
-            return new Rect(0, 0, srcWidth, srcHeight);
+            return set(out, 0, 0, srcWidth, srcHeight);
         }
     }
 
@@ -295,20 +644,45 @@ public class BitmapUtils {
      */
     public static Rect calculateDstRect(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
             ScalingLogic scalingLogic) {
+        return calculateDstRect(srcWidth, srcHeight, dstWidth, dstHeight, scalingLogic,
+                new Rect());
+    }
+
+    /**
+     * Calculates destination rectangle for scaling bitmap into an existing rectangle
+     *
+     * @param srcWidth Width of source image
+     * @param srcHeight Height of source image
+     * @param dstWidth Width of destination area
+     * @param dstHeight Height of destination area
+     * @param scalingLogic Logic to use to avoid image stretching
+     * @param out The rectangle where to store the result
+     * @return The passed rectangle with the optimal destination rectangle
+     */
+    public static Rect calculateDstRect(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+            ScalingLogic scalingLogic, Rect out) {
         if (scalingLogic == ScalingLogic.FIT) {
             final float srcAspect = (float)srcWidth / (float)srcHeight;
             final float dstAspect = (float)dstWidth / (float)dstHeight;
 
             if (srcAspect > dstAspect) {
-                return new Rect(0, 0, dstWidth, (int)(dstWidth / srcAspect));
+                return set(out, 0, 0, dstWidth, (int)(dstWidth / srcAspect));
             } else {
-                return new Rect(0, 0, (int)(dstHeight * srcAspect), dstHeight);
+                return set(out, 0, 0, (int)(dstHeight * srcAspect), dstHeight);
             }
         } else {
-            return new Rect(0, 0, dstWidth, dstHeight);
+            return set(out, 0, 0, dstWidth, dstHeight);
         }
     }
 
+    private static Rect set(Rect r, int left, int top, int right, int bottom) {
+        r.left = left;
+        r.top = top;
+        r.right = right;
+        r.bottom = bottom;
+        return r;
+    }
+
     /**
      * Check if the bitmap is a power of two
      *
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pure java ETC1 encoder (OES_compressed_ETC1_RGB8_texture), so the compression doesn't
+ * depend on the platform and can be tested on the JVM.<br/>
+ * <br/>
+ * Every 4x4 block is split in two halves (side by side or stacked, whichever fits best).
+ * Each half gets the average of its pixels as base color (stored differentially when
+ * both bases are close enough) and the modifier table with the smallest error.
+ */
+public final class ETC1Encoder {
+
+    /**
+     * The size in bytes of an encoded block of 4x4 pixels
+     */
+    public static final int BLOCK_SIZE = 8;
+
+    // The intensity modifiers of every table (the index of a pixel is msb << 1 | lsb)
+    private static final int[][] MODIFIERS = {
+            {2, 8, -2, -8},
+            {5, 17, -5, -17},
+            {9, 29, -9, -29},
+            {13, 42, -13, -42},
+            {18, 60, -18, -60},
+            {24, 80, -24, -80},
+            {33, 106, -33, -106},
+            {47, 183, -47, -183}};
+
+    /**
+     * The working arrays of an encode and the results of its steps, so the blocks are
+     * encoded without allocations
+     */
+    private static final class Scratch {
+        final int[] mBlock = new int[16];
+        final byte[] mEncoded = new byte[BLOCK_SIZE];
+        final int[] mAvg1 = new int[3];
+        final int[] mAvg2 = new int[3];
+        final int[] mQ1 = new int[3];
+        final int[] mQ2 = new int[3];
+        final int[] mBase1 = new int[3];
+        final int[] mBase2 = new int[3];
+        final int[] mIndexes = new int[16];
+        final int[] mTableIndexes = new int[16];
+        final int[] mBestIndexes = new int[16];
+        final int[] mRed = new int[16];
+        final int[] mGreen = new int[16];
+        final int[] mBlue = new int[16];
+        final int[] mColors = new int[12];
+        int mTable;
+        int mTableError;
+        long mBlockError;
+    }
+
+    // The pixels of every half: not flipped (left, right) and flipped (top, bottom)
+    private static final int[][] HALVES = new int[4][8];
+    static {
+        for (int h = 0; h < 4; h++) {
+            int n = 0;
+            for (int i = 0; i < 16; i++) {
+                if (isFirstHalf(i, h >= 2) == ((h & 1) == 0)) {
+                    HALVES[h][n++] = i;
+                }
+            }
+        }
+    }
+
+    private ETC1Encoder() {
+    }
+
+    /**
+     * Method that returns the size of an encoded image. The dimensions are rounded up to
+     * a multiple of 4.
+     *
+     * @param width The width of the image
+     * @param height The height of the image
+     * @return int The size in bytes of the encoded image
+     */
+    public static int getEncodedDataSize(int width, int height) {
+        return (((width + 3) & ~3) * ((height + 3) & ~3)) >> 1;
+    }
+
+    /**
+     * Method that encodes an image. The blocks are written in row order starting at the
+     * current position of the output buffer. The pixels outside the image (when the
+     * dimensions are not multiple of 4) replicate the last row and column. The alpha
+     * channel is ignored.
+     *
+     * @param argb The pixels of the image (as returned by Bitmap.getPixels)
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param out The output buffer
+     */
+    public static void encodeImage(int[] argb, int width, int height, ByteBuffer out) {
+        final Scratch scratch = new Scratch();
+        final int[] block = scratch.mBlock;
+        final byte[] encoded = scratch.mEncoded;
+        for (int by = 0; by < height; by += 4) {
+            for (int bx = 0; bx < width; bx += 4) {
+                for (int x = 0; x < 4; x++) {
+                    int px = Math.min(bx + x, width - 1);
+                    for (int y = 0; y < 4; y++) {
+                        int py = Math.min(by + y, height - 1);
+                        block[x * 4 + y] = argb[py * width + px];
+                    }
+                }
+                encodeBlock(block, encoded, scratch);
+                out.put(encoded);
+            }
+        }
+    }
+
+    /**
+     * Method that encodes a block of 4x4 pixels
+     *
+     * @param block The 16 pixels of the block, in column order (x * 4 + y)
+     * @param out The 8 bytes of the encoded block
+     */
+    static void encodeBlock(int[] block, byte[] out) {
+        encodeBlock(block, out, new Scratch());
+    }
+
+    private static void encodeBlock(int[] block, byte[] out, Scratch scratch) {
+        for (int i = 0; i < 16; i++) {
+            int c = block[i];
+            scratch.mRed[i] = (c >> 16) & 0xff;
+            scratch.mGreen[i] = (c >> 8) & 0xff;
+            scratch.mBlue[i] = c & 0xff;
+        }
+        long best = 0;
+        long bestError = Long.MAX_VALUE;
+        for (int flip = 0; flip < 2; flip++) {
+            long bits = encodeBlock(block, flip == 1, scratch);
+            if (scratch.mBlockError < bestError) {
+                bestError = scratch.mBlockError;
+                best = bits;
+            }
+        }
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            out[i] = (byte) (best >>> (56 - i * 8));
+        }
+    }
+
+    /**
+     * @return long The encoded block (its error is returned in the scratch)
+     */
+    private static long encodeBlock(int[] block, boolean flip, Scratch scratch) {
+        // Average colors of both halves
+        final int[] avg1 = scratch.mAvg1;
+        final int[] avg2 = scratch.mAvg2;
+        for (int ch = 0; ch < 3; ch++) {
+            avg1[ch] = 0;
+            avg2[ch] = 0;
+        }
+        for (int i = 0; i < 16; i++) {
+            int[] avg = isFirstHalf(i, flip) ? avg1 : avg2;
+            avg[0] += scratch.mRed[i];
+            avg[1] += scratch.mGreen[i];
+            avg[2] += scratch.mBlue[i];
+        }
+
+        // Quantize the base colors (differential mode if the halves are close enough)
+        final int[] q1 = scratch.mQ1;
+        final int[] q2 = scratch.mQ2;
+        boolean diff = true;
+        for (int ch = 0; ch < 3; ch++) {
+            q1[ch] = quantize(avg1[ch], 31);
+            q2[ch] = quantize(avg2[ch], 31);
+            int d = q2[ch] - q1[ch];
+            if (d < -4 || d > 3) {
+                diff = false;
+            }
+        }
+        final int[] base1 = scratch.mBase1;
+        final int[] base2 = scratch.mBase2;
+        for (int ch = 0; ch < 3; ch++) {
+            if (diff) {
+                base1[ch] = expand5(q1[ch]);
+                base2[ch] = expand5(q2[ch]);
+            } else {
+                q1[ch] = quantize(avg1[ch], 15);
+                q2[ch] = quantize(avg2[ch], 15);
+                base1[ch] = expand4(q1[ch]);
+                base2[ch] = expand4(q2[ch]);
+            }
+        }
+
+        // Choose the modifiers of both halves
+        final int[] indexes = scratch.mIndexes;
+        chooseModifiers(flip, true, base1, indexes, scratch);
+        final int table1 = scratch.mTable;
+        final int error1 = scratch.mTableError;
+        chooseModifiers(flip, false, base2, indexes, scratch);
+        final int table2 = scratch.mTable;
+        final int error2 = scratch.mTableError;
+
+        long bits = 0;
+        if (diff) {
+            for (int ch = 0; ch < 3; ch++) {
+                int shift = 59 - ch * 8;
+                bits |= ((long) q1[ch]) << shift;
+                bits |= ((long) ((q2[ch] - q1[ch]) & 0x7)) << (shift - 3);
+            }
+            bits |= 1L << 33;
+        } else {
+            for (int ch = 0; ch < 3; ch++) {
+                int shift = 60 - ch * 8;
+                bits |= ((long) q1[ch]) << shift;
+                bits |= ((long) q2[ch]) << (shift - 4);
+            }
+        }
+        bits |= ((long) table1) << 37;
+        bits |= ((long) table2) << 34;
+        if (flip) {
+            bits |= 1L << 32;
+        }
+        for (int i = 0; i < 16; i++) {
+            bits |= ((long) (indexes[i] >> 1)) << (16 + i);
+            bits |= ((long) (indexes[i] & 1)) << i;
+        }
+        scratch.mBlockError = (long) error1 + error2;
+        return bits;
+    }
+
+    /**
+     * Method that chooses the best table of a half (returned in the scratch, with its error)
+     */
+    private static void chooseModifiers(boolean flip, boolean first,
+            int[] base, int[] indexes, Scratch scratch) {
+        final int[] half = HALVES[(flip ? 2 : 0) + (first ? 0 : 1)];
+        final int[] red = scratch.mRed;
+        final int[] green = scratch.mGreen;
+        final int[] blue = scratch.mBlue;
+        final int[] colors = scratch.mColors;
+        final int[] tableIndexes = scratch.mTableIndexes;
+        final int[] bestIndexes = scratch.mBestIndexes;
+        int bestTable = 0;
+        int bestError = Integer.MAX_VALUE;
+        for (int t = 0; t < MODIFIERS.length; t++) {
+            // The 4 colors of the table
+            for (int m = 0; m < 4; m++) {
+                int mod = MODIFIERS[t][m];
+                colors[m * 3] = clamp(base[0] + mod);
+                colors[m * 3 + 1] = clamp(base[1] + mod);
+                colors[m * 3 + 2] = clamp(base[2] + mod);
+            }
+            int error = 0;
+            for (int p = 0; p < 8 && error < bestError; p++) {
+                int i = half[p];
+                int r = red[i];
+                int g = green[i];
+                int b = blue[i];
+                int bestPixelError = Integer.MAX_VALUE;
+                for (int m = 0; m < 4; m++) {
+                    int dr = colors[m * 3] - r;
+                    int dg = colors[m * 3 + 1] - g;
+                    int db = colors[m * 3 + 2] - b;
+                    int e = dr * dr + dg * dg + db * db;
+                    if (e < bestPixelError) {
+                        bestPixelError = e;
+                        tableIndexes[i] = m;
+                    }
+                }
+                error += bestPixelError;
+            }
+            if (error < bestError) {
+                bestError = error;
+                bestTable = t;
+                System.arraycopy(tableIndexes, 0, bestIndexes, 0, 16);
+            }
+        }
+        for (int i = 0; i < 16; i++) {
+            if (isFirstHalf(i, flip) == first) {
+                indexes[i] = bestIndexes[i];
+            }
+        }
+        scratch.mTable = bestTable;
+        scratch.mTableError = bestError;
+    }
+
+    private static boolean isFirstHalf(int pixel, boolean flip) {
+        // Not flipped: left and right 2x4 halves. Flipped: top and bottom 4x2 halves
+        return flip ? (pixel & 3) < 2 : pixel < 8;
+    }
+
+    private static int quantize(int sum, int max) {
+        // The sum of the 8 pixels of a half
+        return Math.min(max, (sum * max + 8 * 255 / 2) / (8 * 255));
+    }
+
+    private static int expand4(int c) {
+        return (c << 4) | c;
+    }
+
+    private static int expand5(int c) {
+        return (c << 3) | (c >> 2);
+    }
+
+    private static int clamp(int c) {
+        return c < 0 ? 0 : (c > 255 ? 255 : c);
+    }
+}
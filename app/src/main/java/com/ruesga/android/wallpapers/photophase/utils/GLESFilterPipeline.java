@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.utils;
+
+import android.graphics.RectF;
+import android.media.effect.Effect;
+import android.opengl.GLES20;
+import android.opengl.GLException;
+import android.opengl.GLUtils;
+import android.support.media.ExifInterface;
+import android.util.Log;
+
+import com.ruesga.android.wallpapers.photophase.borders.Border;
+import com.ruesga.android.wallpapers.photophase.utils.PipelineStats.Stage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * A pipeline that applies a chain of effects and borders to a texture. The passes render
+ * through a persistent framebuffer, ping-ponging between a pair of persistent textures per
+ * target size, and only the last pass renders to the output texture.<br/>
+ * <br/>
+ * Framebuffers and textures belong to a GLES context, so there is a pipeline per context.
+ * All the methods must be called from the GLThread, except
+ * {@link #getAllocatedBytes(EGLContext)}.
+ */
+public final class GLESFilterPipeline {
+
+    private static final String TAG = "GLESFilterPipeline";
+
+    // The maximum number of target sizes with persistent textures
+    private static final int MAX_TARGETS = 4;
+
+    /**
+     * An interface for the effects that can draw directly into the bound framebuffer
+     */
+    public interface FilterPass {
+        /**
+         * Method that draws the pass into the bound framebuffer. The input texture is
+         * already bound to the texture unit 0 and the viewport is set.
+         *
+         * @param inputTexId The input texture
+         * @param width The width of the target
+         * @param height The height of the target
+         */
+        void drawPass(int inputTexId, int width, int height);
+    }
+
+    /**
+     * A pass that copies the input texture sampling it through custom texture coordinates,
+     * used to orient and crop the pictures before the rest of passes
+     */
+    private static class TransformPass implements FilterPass {
+        private static final String VERTEX_SHADER =
+                "attribute vec4 a_position;\n" +
+                "attribute vec2 a_texcoord;\n" +
+                "varying vec2 v_texcoord;\n" +
+                "void main() {\n" +
+                "  gl_Position = a_position;\n" +
+                "  v_texcoord = a_texcoord;\n" +
+                "}\n";
+        private static final String FRAGMENT_SHADER =
+                "precision mediump float;\n" +
+                "uniform sampler2D tex_sampler;\n" +
+                "varying vec2 v_texcoord;\n" +
+                "void main() {\n" +
+                "  gl_FragColor = texture2D(tex_sampler, v_texcoord);\n" +
+                "}\n";
+
+        private static final float[] POS_VERTICES =
+                {-1.0f, -1.0f, 1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f};
+
+        private final int mProgram;
+        private final int mTexSamplerHandle;
+        private final int mTexCoordHandle;
+        private final int mPosCoordHandle;
+        private final FloatBuffer mPosVertices;
+        private final FloatBuffer mTexVertices;
+
+        TransformPass() {
+            mProgram = GLESUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+            mTexSamplerHandle = GLES20.glGetUniformLocation(mProgram, "tex_sampler");
+            GLESUtil.glesCheckError("glGetUniformLocation");
+            mTexCoordHandle = GLES20.glGetAttribLocation(mProgram, "a_texcoord");
+            GLESUtil.glesCheckError("glGetAttribLocation");
+            mPosCoordHandle = GLES20.glGetAttribLocation(mProgram, "a_position");
+            GLESUtil.glesCheckError("glGetAttribLocation");
+            mPosVertices = ByteBuffer.allocateDirect(POS_VERTICES.length * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            mPosVertices.put(POS_VERTICES).position(0);
+            mTexVertices = ByteBuffer.allocateDirect(PASS_TEXTURE_COORDS.length * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+
+        void setTextureCoords(float[] coords) {
+            mTexVertices.clear();
+            mTexVertices.put(coords).position(0);
+        }
+
+        @Override
+        public void drawPass(int inputTexId, int width, int height) {
+            GLES20.glUseProgram(mProgram);
+            GLESUtil.glesCheckError("glUseProgram");
+            GLES20.glDisable(GLES20.GL_BLEND);
+            GLESUtil.glesCheckError("glDisable");
+
+            GLES20.glVertexAttribPointer(
+                    mTexCoordHandle, 2, GLES20.GL_FLOAT, false, 0, mTexVertices);
+            GLESUtil.glesCheckError("glVertexAttribPointer");
+            GLES20.glEnableVertexAttribArray(mTexCoordHandle);
+            GLESUtil.glesCheckError("glEnableVertexAttribArray");
+            GLES20.glVertexAttribPointer(
+                    mPosCoordHandle, 2, GLES20.GL_FLOAT, false, 0, mPosVertices);
+            GLESUtil.glesCheckError("glVertexAttribPointer");
+            GLES20.glEnableVertexAttribArray(mPosCoordHandle);
+            GLESUtil.glesCheckError("glEnableVertexAttribArray");
+            GLES20.glUniform1i(mTexSamplerHandle, 0);
+            GLESUtil.glesCheckError("glUniform1i");
+
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            GLESUtil.glesCheckError("glDrawArrays");
+
+            GLES20.glDisableVertexAttribArray(mTexCoordHandle);
+            GLESUtil.glesCheckError("glDisableVertexAttribArray");
+            GLES20.glDisableVertexAttribArray(mPosCoordHandle);
+            GLESUtil.glesCheckError("glDisableVertexAttribArray");
+        }
+
+        void release() {
+            GLESProgramRegistry.release(mProgram);
+        }
+    }
+
+    // The texture coordinates of a pass that draws the whole input (in the order of the
+    // vertices of the quad: bottom-left, bottom-right, top-left and top-right)
+    private static final float[] PASS_TEXTURE_COORDS =
+            {0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 1.0f, 1.0f, 1.0f};
+
+    private static final Map<EGLContext, GLESFilterPipeline> sPipelines = new HashMap<>();
+
+    private final int[] mFramebuffer = new int[1];
+    private TransformPass mTransformPass;
+
+    // The persistent ping-pong textures per target size (in access order)
+    private final LinkedHashMap<Long, int[]> mTargets = new LinkedHashMap<>(8, 0.75f, true);
+
+    private GLESFilterPipeline() {
+    }
+
+    /**
+     * Method that returns the pipeline of the current GLES context
+     *
+     * @return GLESFilterPipeline The pipeline or null if there is no current GLES context
+     */
+    public static synchronized GLESFilterPipeline get() {
+        EGLContext ctx = GLESUtil.getCurrentEglContext();
+        if (ctx == null) {
+            return null;
+        }
+        GLESFilterPipeline pipeline = sPipelines.get(ctx);
+        if (pipeline == null) {
+            pipeline = new GLESFilterPipeline();
+            sPipelines.put(ctx, pipeline);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Method that releases the framebuffer and the textures of the pipeline of the current
+     * GLES context
+     */
+    public static synchronized void destroy() {
+        EGLContext ctx = GLESUtil.getCurrentEglContext();
+        if (ctx == null) {
+            return;
+        }
+        GLESFilterPipeline pipeline = sPipelines.remove(ctx);
+        if (pipeline != null) {
+            pipeline.release();
+        }
+    }
+
+    /**
+     * Method that releases the persistent textures of the pipeline of the current
+     * GLES context. They are created again when needed.
+     */
+    public static void trim() {
+        GLESFilterPipeline pipeline = get();
+        if (pipeline != null) {
+            pipeline.releaseTargets();
+        }
+    }
+
+    /**
+     * Method that returns the estimated bytes of the persistent textures of the pipeline of
+     * a GLES context. Can be called from any thread.
+     *
+     * @param ctx The GLES context
+     * @return long The allocated bytes
+     */
+    public static long getAllocatedBytes(EGLContext ctx) {
+        GLESFilterPipeline pipeline;
+        synchronized (GLESFilterPipeline.class) {
+            pipeline = ctx != null ? sPipelines.get(ctx) : null;
+        }
+        if (pipeline == null) {
+            return 0;
+        }
+        long bytes = 0;
+        synchronized (pipeline) {
+            for (Map.Entry<Long, int[]> target : pipeline.mTargets.entrySet()) {
+                long size = (target.getKey() >>> 32) * (target.getKey() & 0xffffffffL) * 4L;
+                for (int texture : target.getValue()) {
+                    if (texture != 0) {
+                        bytes += size;
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Method that applies a chain of passes to a texture
+     *
+     * @param inputTexId The input texture
+     * @param width The width of the output
+     * @param height The height of the output
+     * @param outputTexId The output texture
+     * @param allocate If the storage of the output texture must be allocated
+     * @param passes The passes to apply (null passes are ignored)
+     */
+    public void apply(int inputTexId, int width, int height, int outputTexId,
+            boolean allocate, Effect... passes) {
+        apply(inputTexId, ExifInterface.ORIENTATION_NORMAL, null, width, height, outputTexId,
+                allocate, passes);
+    }
+
+    /**
+     * Method that applies a chain of passes to a region of a texture which pixels are stored
+     * with an Exif orientation. The input is oriented and cropped by the first pass, so the
+     * rest of passes and the output are already oriented and cropped.
+     *
+     * @param inputTexId The input texture
+     * @param orientation The Exif orientation of the input texture
+     * @param window The region of the oriented input to keep (normalized) or null to keep
+     * all of it
+     * @param width The width of the (oriented and cropped) output
+     * @param height The height of the (oriented and cropped) output
+     * @param outputTexId The output texture
+     * @param allocate If the storage of the output texture must be allocated
+     * @param passes The passes to apply (null passes are ignored)
+     */
+    public synchronized void apply(int inputTexId, int orientation, RectF window, int width,
+            int height, int outputTexId, boolean allocate, Effect... passes) {
+        float[] coords = GLESUtil.getTextureCoords(PASS_TEXTURE_COORDS, orientation, window);
+        boolean transform = coords != PASS_TEXTURE_COORDS;
+        int count = transform ? 1 : 0;
+        for (Effect pass : passes) {
+            if (pass != null) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        try {
+            if (mFramebuffer[0] == 0) {
+                GLES20.glGenFramebuffers(1, mFramebuffer, 0);
+                GLESUtil.glesCheckError("glGenFramebuffers");
+                if (GLESUtil.DEBUG_GL_MEMOBJS) {
+                    Log.d(GLESUtil.DEBUG_GL_MEMOBJS_NEW_TAG,
+                            "glGenFramebuffers: " + mFramebuffer[0]);
+                }
+            }
+
+            int input = inputTexId;
+            int n = 0;
+            if (transform) {
+                final long passStart = PipelineStats.start();
+                final boolean last = count == 1;
+                final int target = last ? outputTexId : obtainTarget(width, height, 0);
+                if (mTransformPass == null) {
+                    mTransformPass = new TransformPass();
+                }
+                mTransformPass.setTextureCoords(coords);
+                drawPass(mTransformPass, input, target, width, height, last && allocate);
+                PipelineStats.record(window != null ? Stage.CROP_SCALE : Stage.EXIF,
+                        passStart, width * height * 4L);
+                input = target;
+                n++;
+            }
+            for (Effect pass : passes) {
+                if (pass == null) {
+                    continue;
+                }
+                final long passStart = PipelineStats.start();
+                final boolean last = n == count - 1;
+                final int target = last ? outputTexId : obtainTarget(width, height, n % 2);
+                if (pass instanceof FilterPass) {
+                    drawPass((FilterPass) pass, input, target, width, height, last && allocate);
+                } else {
+                    // MCA effects use their own framebuffer and allocate the output
+                    pass.apply(input, width, height, target);
+                }
+                PipelineStats.record(pass instanceof Border ? Stage.BORDER : Stage.EFFECT,
+                        passStart, width * height * 4L);
+                input = target;
+                n++;
+            }
+
+        } finally {
+            // The GLThread always renders to the default framebuffer with its own programs
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glUseProgram(0);
+        }
+    }
+
+    private void drawPass(FilterPass pass, int input, int target, int width, int height,
+            boolean allocate) {
+        if (allocate) {
+            allocateStorage(target, width, height);
+        }
+        bindTarget(target);
+        GLES20.glViewport(0, 0, width, height);
+        GLESUtil.glesCheckError("glViewport");
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLESUtil.glesCheckError("glActiveTexture");
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, input);
+        GLESUtil.glesCheckError("glBindTexture");
+        pass.drawPass(input, width, height);
+    }
+
+    private void bindTarget(int texId) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        GLESUtil.glesCheckError("glBindFramebuffer");
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texId, 0);
+        GLESUtil.glesCheckError("glFramebufferTexture2D");
+
+        // Check if the buffer was built successfully
+        final int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            // Something was wrong. Throw an exception
+            GLESUtil.glesCheckError("glCheckFramebufferStatus");
+            int error = GLES20.glGetError();
+            throw new GLException(error, GLUtils.getEGLErrorString(error));
+        }
+    }
+
+    private int obtainTarget(int width, int height, int index) {
+        final long key = ((long) width << 32) | height;
+        int[] textures = mTargets.get(key);
+        if (textures == null) {
+            textures = new int[2];
+            mTargets.put(key, textures);
+            trimTargets();
+        }
+        if (textures[index] == 0) {
+            GLES20.glGenTextures(1, textures, index);
+            GLESUtil.glesCheckError("glGenTextures");
+            if (GLESUtil.DEBUG_GL_MEMOBJS) {
+                Log.d(GLESUtil.DEBUG_GL_MEMOBJS_NEW_TAG, "glGenTextures: " + textures[index]);
+            }
+            allocateStorage(textures[index], width, height);
+        }
+        return textures[index];
+    }
+
+    private static void allocateStorage(int texId, int width, int height) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texId);
+        GLESUtil.glesCheckError("glBindTexture");
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLESUtil.glesCheckError("glTexImage2D");
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLESUtil.glesCheckError("glTexParameteri");
+    }
+
+    private void trimTargets() {
+        Iterator<Map.Entry<Long, int[]>> it = mTargets.entrySet().iterator();
+        while (mTargets.size() > MAX_TARGETS && it.hasNext()) {
+            deleteTextures(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private synchronized void releaseTargets() {
+        for (int[] textures : mTargets.values()) {
+            deleteTextures(textures);
+        }
+        mTargets.clear();
+    }
+
+    private synchronized void release() {
+        releaseTargets();
+        if (mTransformPass != null) {
+            mTransformPass.release();
+            mTransformPass = null;
+        }
+        if (mFramebuffer[0] != 0) {
+            if (GLESUtil.DEBUG_GL_MEMOBJS) {
+                Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG,
+                        "glDeleteFramebuffers: " + mFramebuffer[0]);
+            }
+            GLES20.glDeleteFramebuffers(1, mFramebuffer, 0);
+            GLESUtil.glesCheckError("glDeleteFramebuffers");
+            mFramebuffer[0] = 0;
+        }
+    }
+
+    private static void deleteTextures(int[] textures) {
+        for (int i = 0; i < textures.length; i++) {
+            if (textures[i] != 0) {
+                if (GLESUtil.DEBUG_GL_MEMOBJS) {
+                    Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG,
+                            "glDeleteTextures: [" + textures[i] + "]");
+                }
+                GLES20.glDeleteTextures(1, textures, i);
+                GLESUtil.glesCheckError("glDeleteTextures");
+                textures[i] = 0;
+            }
+        }
+    }
+}
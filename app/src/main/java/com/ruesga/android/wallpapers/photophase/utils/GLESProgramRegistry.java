@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.utils;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.ruesga.android.wallpapers.photophase.glesnative.GLESNative;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * A registry of the linked GLES programs, keyed by the source of their shaders. Transitions,
+ * effects, borders and shapes that use the same shaders share the same program, which
+ * is linked only once per GLES context.<br/>
+ * <br/>
+ * When the driver supports OES_get_program_binary, the binaries of the linked programs are
+ * persisted under the app cache directory, so the next time the wallpaper starts the programs
+ * are loaded without compiling the shaders.<br/>
+ * <br/>
+ * Programs belong to a GLES context, so there is a registry per context. The registry of a
+ * lost context must be forgotten with {@link #forget(EGLContext)}. The uniforms are part of
+ * the state of a program, so a shared program doesn't keep the values of its last user:
+ * every user must set all the uniforms of the program after binding it. All the methods
+ * must be called from the GLThread, except {@link #forget(EGLContext)}.
+ */
+public final class GLESProgramRegistry {
+
+    private static final String TAG = "GLESProgramRegistry";
+
+    private static final boolean DEBUG = false;
+
+    private static final String CACHE_DIR = "programs";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x50505042;
+
+    private static final Map<EGLContext, GLESProgramRegistry> sRegistries = new HashMap<>();
+
+    private static File sCacheDir;
+
+    private static class Entry {
+        int mProgram;
+        int mRefs;
+    }
+
+    // The programs of the context (shaders source -> program) and (program -> shaders source)
+    private final Map<String, Entry> mPrograms = new HashMap<>();
+    private final Map<Integer, String> mSources = new HashMap<>();
+
+    private final boolean mBinarySupported;
+    private final String mDriver;
+
+    private int mHits;
+    private int mLinks;
+    private int mBinaryLoads;
+
+    private GLESProgramRegistry() {
+        mBinarySupported = sCacheDir != null && GLESNative.isProgramBinarySupported();
+        mDriver = GLES20.glGetString(GLES20.GL_VENDOR) + "|"
+                + GLES20.glGetString(GLES20.GL_RENDERER) + "|"
+                + GLES20.glGetString(GLES20.GL_VERSION);
+    }
+
+    /**
+     * Method that sets the directory where the program binaries are persisted
+     *
+     * @param context The current context
+     */
+    public static synchronized void init(Context context) {
+        sCacheDir = new File(context.getCacheDir(), CACHE_DIR);
+    }
+
+    /**
+     * Method that returns a linked program for the shaders. The program is shared with
+     * any other caller of the same shaders in the current GLES context.
+     *
+     * @param vertexShaderSrc The vertex shader
+     * @param fragmentShaderSrc The fragment shader
+     * @return int The handler identifier of the program or 0 if it can't be linked
+     */
+    public static int acquire(String vertexShaderSrc, String fragmentShaderSrc) {
+        if (vertexShaderSrc == null || fragmentShaderSrc == null) {
+            return 0;
+        }
+        GLESProgramRegistry registry = get();
+        if (registry == null) {
+            return GLESUtil.linkProgram(vertexShaderSrc, fragmentShaderSrc);
+        }
+        return registry.obtain(vertexShaderSrc, fragmentShaderSrc);
+    }
+
+    /**
+     * Method that releases a program returned by {@link #acquire(String, String)}. Shared
+     * programs are kept linked until the registry of the GLES context is destroyed, so the
+     * next user of the same shaders doesn't need to link them again.
+     *
+     * @param program The handler identifier of the program
+     */
+    public static void release(int program) {
+        if (program <= 0) {
+            return;
+        }
+        GLESProgramRegistry registry = get();
+        if (registry == null || !registry.unref(program)) {
+            delete(program);
+        }
+    }
+
+    /**
+     * Method that deletes all the programs of the current GLES context and destroys
+     * its registry
+     */
+    public static synchronized void destroy() {
+        EGLContext ctx = GLESUtil.getCurrentEglContext();
+        if (ctx == null) {
+            return;
+        }
+        GLESProgramRegistry registry = sRegistries.remove(ctx);
+        if (registry != null) {
+            if (DEBUG) Log.d(TAG, "Destroy registry: " + registry.mHits + " hits, "
+                    + registry.mLinks + " links, " + registry.mBinaryLoads + " binary loads");
+            registry.clear();
+        }
+    }
+
+    /**
+     * Method that forgets the registry of a GLES context that was lost or destroyed. The
+     * programs are not deleted, because they were released with the context (and the
+     * context is not current anymore), so this method can be called from any thread.
+     *
+     * @param ctx The lost GLES context
+     */
+    public static synchronized void forget(EGLContext ctx) {
+        if (ctx == null) {
+            return;
+        }
+        GLESProgramRegistry registry = sRegistries.remove(ctx);
+        if (registry != null) {
+            if (DEBUG) Log.d(TAG, "Forget registry: " + registry.mPrograms.size() + " programs");
+            registry.forget();
+        }
+    }
+
+    private static synchronized GLESProgramRegistry get() {
+        EGLContext ctx = GLESUtil.getCurrentEglContext();
+        if (ctx == null) {
+            return null;
+        }
+        GLESProgramRegistry registry = sRegistries.get(ctx);
+        if (registry == null) {
+            registry = new GLESProgramRegistry();
+            sRegistries.put(ctx, registry);
+        }
+        return registry;
+    }
+
+    private synchronized int obtain(String vertexShaderSrc, String fragmentShaderSrc) {
+        final String source = vertexShaderSrc + "\u0000" + fragmentShaderSrc;
+        Entry entry = mPrograms.get(source);
+        if (entry != null && GLES20.glIsProgram(entry.mProgram)) {
+            entry.mRefs++;
+            mHits++;
+            return entry.mProgram;
+        }
+        if (entry != null) {
+            mSources.remove(entry.mProgram);
+            mPrograms.remove(source);
+        }
+
+        String name = mBinarySupported ? getBinaryName(source) : null;
+        int program = name != null ? loadBinary(name) : 0;
+        if (program == 0) {
+            program = GLESUtil.linkProgram(vertexShaderSrc, fragmentShaderSrc);
+            if (program == 0) {
+                return 0;
+            }
+            mLinks++;
+            if (name != null) {
+                saveBinary(name, program);
+            }
+        } else {
+            mBinaryLoads++;
+        }
+
+        entry = new Entry();
+        entry.mProgram = program;
+        entry.mRefs = 1;
+        mPrograms.put(source, entry);
+        mSources.put(program, source);
+        return program;
+    }
+
+    private synchronized boolean unref(int program) {
+        String source = mSources.get(program);
+        if (source == null) {
+            return false;
+        }
+        Entry entry = mPrograms.get(source);
+        if (entry != null && entry.mRefs > 0) {
+            entry.mRefs--;
+        }
+        return true;
+    }
+
+    private synchronized void clear() {
+        for (Entry entry : mPrograms.values()) {
+            delete(entry.mProgram);
+        }
+        mPrograms.clear();
+        mSources.clear();
+    }
+
+    private synchronized void forget() {
+        mPrograms.clear();
+        mSources.clear();
+    }
+
+    private String getBinaryName(String source) {
+        try {
+            // The binaries are only valid for the driver that generated them
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(mDriver.getBytes("UTF-8"));
+            digest.update(source.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+            return null;
+        }
+    }
+
+    private static int loadBinary(String name) {
+        File file = new File(sCacheDir, name);
+        if (!file.exists()) {
+            return 0;
+        }
+
+        int program = 0;
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new FileInputStream(file));
+            if (is.readInt() != MAGIC) {
+                throw new IOException("Invalid program binary");
+            }
+            int format = is.readInt();
+            byte[] binary = new byte[is.readInt()];
+            is.readFully(binary);
+
+            program = GLES20.glCreateProgram();
+            GLESUtil.glesCheckError("glCreateProgram");
+            if (program <= 0) {
+                return 0;
+            }
+            if (GLESUtil.DEBUG_GL_MEMOBJS) {
+                Log.d(GLESUtil.DEBUG_GL_MEMOBJS_NEW_TAG, "glCreateProgram: " + program);
+            }
+            if (!GLESNative.glProgramBinary(program, format, binary)) {
+                // The driver was updated or rejected the binary. Link it again
+                throw new IOException("Program binary rejected");
+            }
+            return program;
+
+        } catch (IOException | RuntimeException ex) {
+            if (DEBUG) Log.d(TAG, "Can't load program binary " + name, ex);
+            if (program > 0) {
+                delete(program);
+            }
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return 0;
+
+        } finally {
+            close(is);
+        }
+    }
+
+    private static void saveBinary(String name, int program) {
+        int[] format = new int[1];
+        byte[] binary = GLESNative.glGetProgramBinary(program, format);
+        if (binary == null) {
+            return;
+        }
+
+        File tmp = new File(sCacheDir, name + TMP_SUFFIX);
+        DataOutputStream os = null;
+        try {
+            if (!sCacheDir.exists() && !sCacheDir.mkdirs()) {
+                return;
+            }
+            os = new DataOutputStream(new FileOutputStream(tmp));
+            os.writeInt(MAGIC);
+            os.writeInt(format[0]);
+            os.writeInt(binary.length);
+            os.write(binary);
+            os.close();
+            os = null;
+            if (!tmp.renameTo(new File(sCacheDir, name))) {
+                throw new IOException("Can't rename " + tmp);
+            }
+
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write program binary " + name, ex);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+
+        } finally {
+            close(os);
+        }
+    }
+
+    private static void delete(int program) {
+        if (!GLES20.glIsProgram(program)) {
+            return;
+        }
+        if (GLESUtil.DEBUG_GL_MEMOBJS) {
+            Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteProgram: " + program);
+        }
+        GLES20.glDeleteProgram(program);
+        GLESUtil.glesCheckError("glDeleteProgram");
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.utils;
+
+import android.opengl.ETC1;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * A pool of GLES texture objects (with their storage already allocated), keyed by their
+ * width, height and format. Reusing a pooled texture only requires a glTexSubImage2D
+ * upload, avoiding the driver allocation and deallocation of the texture storage.<br/>
+ * <br/>
+ * Texture names belong to a GLES context, so there is a pool per context. All the methods
+ * must be called from the GLThread, except {@link #getAllocatedBytes(EGLContext)}.
+ */
+public final class GLESTexturePool {
+
+    private static final String TAG = "GLESTexturePool";
+
+    private static final boolean DEBUG = false;
+
+    // The maximum number of free textures per key and the maximum bytes of all of them
+    private static final int MAX_TEXTURES_PER_KEY = 4;
+    private static final long MAX_SIZE = 32L * 1024L * 1024L;
+
+    private static final Map<EGLContext, GLESTexturePool> sPools = new HashMap<>();
+
+    // The key of every texture created through the pool (handle -> key)
+    private final Map<Integer, Long> mKeys = new HashMap<>();
+    private final Map<Long, LinkedList<Integer>> mFree = new HashMap<>();
+    private long mSize;
+
+    // The bytes of all the textures created through the pool (in use or free)
+    private long mAllocated;
+
+    private int mHits;
+    private int mMisses;
+
+    private GLESTexturePool() {
+    }
+
+    /**
+     * Method that returns the pool of the current GLES context
+     *
+     * @return GLESTexturePool The pool or null if there is no current GLES context
+     */
+    public static synchronized GLESTexturePool get() {
+        EGLContext ctx = GLESUtil.getCurrentEglContext();
+        if (ctx == null) {
+            return null;
+        }
+        GLESTexturePool pool = sPools.get(ctx);
+        if (pool == null) {
+            pool = new GLESTexturePool();
+            sPools.put(ctx, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Method that deletes all the free textures of the current GLES context and
+     * destroys its pool
+     */
+    public static synchronized void destroy() {
+        EGLContext ctx = GLESUtil.getCurrentEglContext();
+        if (ctx == null) {
+            return;
+        }
+        GLESTexturePool pool = sPools.remove(ctx);
+        if (pool != null) {
+            if (DEBUG) Log.d(TAG, "Destroy pool: " + pool.mHits + " hits, "
+                    + pool.mMisses + " misses");
+            pool.clear();
+        }
+    }
+
+    /**
+     * Method that deletes the free textures of the pool of the current GLES context
+     */
+    public static void trim() {
+        GLESTexturePool pool = get();
+        if (pool != null) {
+            pool.clearFree();
+        }
+    }
+
+    /**
+     * Method that returns the estimated bytes of all the textures created through the pool
+     * of a GLES context. Can be called from any thread.
+     *
+     * @param ctx The GLES context
+     * @return long The allocated bytes
+     */
+    public static long getAllocatedBytes(EGLContext ctx) {
+        GLESTexturePool pool;
+        synchronized (GLESTexturePool.class) {
+            pool = ctx != null ? sPools.get(ctx) : null;
+        }
+        if (pool == null) {
+            return 0;
+        }
+        synchronized (pool) {
+            return pool.mAllocated;
+        }
+    }
+
+    /**
+     * Method that returns a texture to the pool of the current GLES context, or deletes it
+     * if it can't be pooled
+     *
+     * @param handle The texture handle
+     */
+    public static void release(int handle) {
+        if (handle <= 0) {
+            return;
+        }
+        GLESTexturePool pool = get();
+        if (pool == null || !pool.recycle(handle)) {
+            delete(handle);
+        }
+    }
+
+    /**
+     * Method that returns a free texture with its storage already allocated
+     *
+     * @param width The width of the texture
+     * @param height The height of the texture
+     * @param format The format of the texture
+     * @return int The texture handle or 0 if there is no free texture
+     */
+    public synchronized int obtain(int width, int height, int format) {
+        LinkedList<Integer> free = mFree.get(keyOf(width, height, format));
+        if (free != null && !free.isEmpty()) {
+            int handle = free.removeFirst();
+            mSize -= sizeOf(width, height, format);
+            mHits++;
+            return handle;
+        }
+        mMisses++;
+        return 0;
+    }
+
+    /**
+     * Method that registers a new texture created by the caller, so it can be pooled
+     * when it's released. Compressed textures are only accounted, but never pooled.
+     *
+     * @param handle The texture handle
+     * @param width The width of the texture
+     * @param height The height of the texture
+     * @param format The format of the texture
+     */
+    public synchronized void register(int handle, int width, int height, int format) {
+        if (mKeys.put(handle, keyOf(width, height, format)) == null) {
+            mAllocated += sizeOf(width, height, format);
+        }
+    }
+
+    /**
+     * Method that returns the number of textures that were reused
+     *
+     * @return int The number of hits
+     */
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    /**
+     * Method that returns the number of textures that required a new allocation
+     *
+     * @return int The number of misses
+     */
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    private synchronized boolean recycle(int handle) {
+        Long key = mKeys.get(handle);
+        if (key == null) {
+            return false;
+        }
+        long size = sizeOf(key);
+        if ((key & 0xffff) == ETC1.ETC1_RGB8_OES) {
+            // Compressed textures can't be refilled with glTexSubImage2D
+            mKeys.remove(handle);
+            mAllocated -= size;
+            return false;
+        }
+        LinkedList<Integer> free = mFree.get(key);
+        if (free == null) {
+            free = new LinkedList<>();
+            mFree.put(key, free);
+        }
+        if (free.contains(handle)) {
+            return true;
+        }
+        if (free.size() >= MAX_TEXTURES_PER_KEY || mSize + size > MAX_SIZE) {
+            mKeys.remove(handle);
+            mAllocated -= size;
+            return false;
+        }
+        free.addFirst(handle);
+        mSize += size;
+        return true;
+    }
+
+    private synchronized void clearFree() {
+        for (LinkedList<Integer> free : mFree.values()) {
+            for (Integer handle : free) {
+                Long key = mKeys.remove(handle);
+                if (key != null) {
+                    mAllocated -= sizeOf(key);
+                }
+                delete(handle);
+            }
+        }
+        mFree.clear();
+        mSize = 0;
+    }
+
+    private synchronized void clear() {
+        clearFree();
+        mKeys.clear();
+        mAllocated = 0;
+    }
+
+    private static void delete(int handle) {
+        if (!GLES20.glIsTexture(handle)) {
+            return;
+        }
+        int[] textures = new int[]{handle};
+        if (GLESUtil.DEBUG_GL_MEMOBJS) {
+            Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteTextures: [" + handle + "]");
+        }
+        GLES20.glDeleteTextures(1, textures, 0);
+        GLESUtil.glesCheckError("glDeleteTextures");
+    }
+
+    private static long keyOf(int width, int height, int format) {
+        return ((long) width << 40) | ((long) height << 16) | (format & 0xffff);
+    }
+
+    private static long sizeOf(long key) {
+        return sizeOf((int) (key >>> 40), (int) ((key >>> 16) & 0xffffff), (int) (key & 0xffff));
+    }
+
+    private static long sizeOf(int width, int height, int format) {
+        if (format == ETC1.ETC1_RGB8_OES) {
+            // 4 bits per pixel
+            return (long) width * height / 2;
+        }
+        return (long) width * height * (format == GLES20.GL_RGBA ? 4 : 2);
+    }
+}
@@ -21,10 +21,15 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.media.effect.Effect;
+import android.opengl.ETC1;
+import android.opengl.ETC1Util;
+import android.opengl.ETC1Util.ETC1Texture;
 import android.opengl.GLES20;
 import android.opengl.GLException;
 import android.opengl.GLUtils;
+import android.support.media.ExifInterface;
 import android.util.Log;
 
 import com.ruesga.android.wallpapers.photophase.AndroidHelper;
@@ -32,12 +37,14 @@ import com.ruesga.android.wallpapers.photophase.BuildConfig;
 import com.ruesga.android.wallpapers.photophase.borders.Border;
 import com.ruesga.android.wallpapers.photophase.glesnative.GLESNative;
 import com.ruesga.android.wallpapers.photophase.preferences.PreferencesProvider;
+import com.ruesga.android.wallpapers.photophase.utils.PipelineStats.Stage;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLContext;
@@ -61,6 +68,8 @@ public final class GLESUtil {
     private static final int MAX_GLES_ERRORS = 50;
     private static int sGlErrors = 0;
 
+    private static Boolean sETC1Supported;
+
     /**
      * A helper class to deal with OpenGL float colors.
      */
@@ -194,6 +203,24 @@ public final class GLESUtil {
          * The bitmap reference
          */
         public Bitmap bitmap;
+        /**
+         * The compressed (ETC1) pixels of the bitmap or null if the texture is not compressed
+         */
+        public ETC1Texture compressed;
+        /**
+         * The Exif orientation of the pixels of the texture, applied when drawing it through
+         * the texture coordinates (see {@link GLESUtil#getTextureCoords(float[], int)})
+         */
+        public int orientation = ExifInterface.ORIENTATION_NORMAL;
+        /**
+         * The visible region of the oriented texture (normalized) or null if the whole
+         * texture is visible. Applied through the texture coordinates
+         */
+        public RectF window;
+        /**
+         * If the texture is a low resolution placeholder, shown until the picture is loaded
+         */
+        public boolean placeholder;
         /**
          * The path to the texture
          */
@@ -276,13 +303,26 @@ public final class GLESUtil {
     }
 
     /**
-     * Method that create a new program from its shaders (vertex and fragment)
+     * Method that create a new program from its shaders (vertex and fragment). The program
+     * is shared through {@link GLESProgramRegistry}, so it must be released with
+     * {@link GLESProgramRegistry#release(int)} instead of being deleted.
      *
      * @param vertexShaderSrc The vertex shader
      * @param fragmentShaderSrc  The fragment shader
      * @return int The handler identifier of the program.
      */
     public static int createProgram(String vertexShaderSrc, String fragmentShaderSrc) {
+        return GLESProgramRegistry.acquire(vertexShaderSrc, fragmentShaderSrc);
+    }
+
+    /**
+     * Method that compiles the shaders (vertex and fragment) and links them in a new program
+     *
+     * @param vertexShaderSrc The vertex shader
+     * @param fragmentShaderSrc  The fragment shader
+     * @return int The handler identifier of the program.
+     */
+    static int linkProgram(String vertexShaderSrc, String fragmentShaderSrc) {
         int vshader = 0;
         int fshader = 0;
         int progid;
@@ -365,10 +405,26 @@ public final class GLESUtil {
      * @return GLESTextureInfo The texture info
      */
     public static GLESTextureInfo loadFakeTexture(File file, Rect dimensions) {
+        return loadFakeTexture(file, dimensions, BitmapUtils.ScalingLogic.FIT);
+    }
+
+    /**
+     * Method that loads a fake texture (the bitmap but no gles data) from a file.
+     *
+     * @param file The image file
+     * @param dimensions The desired dimensions
+     * @param scalingLogic The logic that will be used to scale the texture
+     * @return GLESTextureInfo The texture info
+     */
+    public static GLESTextureInfo loadFakeTexture(File file, Rect dimensions,
+            BitmapUtils.ScalingLogic scalingLogic) {
         Bitmap bitmap = null;
         try {
-            // Decode and associate the bitmap (invert the desired dimensions)
-            bitmap = BitmapUtils.decodeBitmap(file, dimensions.width(), dimensions.height());
+            // Decode and associate the bitmap. The pixels are kept as stored in the file and
+            // the Exif orientation is applied when drawing the texture
+            int orientation = BitmapUtils.getExifOrientation(file);
+            bitmap = BitmapUtils.decodeUnorientedBitmap(
+                    file, dimensions.width(), dimensions.height(), scalingLogic, orientation);
             if (bitmap == null) {
                 Log.e(TAG, "Failed to decode the file bitmap");
                 return new GLESTextureInfo();
@@ -377,6 +433,7 @@ public final class GLESUtil {
             if (DEBUG) Log.d(TAG, "image: " + file.getAbsolutePath());
             GLESTextureInfo ti = new GLESTextureInfo();
             ti.bitmap = bitmap;
+            ti.orientation = orientation;
             ti.path = file;
             return ti;
 
@@ -394,6 +451,29 @@ public final class GLESUtil {
         }
     }
 
+    /**
+     * Method that loads a fake texture (the bitmap but no gles data) with the low resolution
+     * placeholder of a picture (see {@link BitmapUtils#decodeThumbnail(Context, File)}).
+     *
+     * @param context The current context
+     * @param file The image file
+     * @return GLESTextureInfo The texture info (without bitmap if the picture has no
+     * placeholder)
+     */
+    public static GLESTextureInfo loadFakePlaceholderTexture(Context context, File file) {
+        final long start = PipelineStats.start();
+        Bitmap bitmap = BitmapUtils.decodeThumbnail(context, file);
+        GLESTextureInfo ti = new GLESTextureInfo();
+        if (bitmap != null) {
+            ti.bitmap = bitmap;
+            ti.orientation = BitmapUtils.getExifOrientation(file);
+            ti.path = file;
+            ti.placeholder = true;
+            PipelineStats.record(Stage.PLACEHOLDER, start, BitmapUtils.byteSizeOf(bitmap));
+        }
+        return ti;
+    }
+
     /**
      * Method that loads a texture from a resource context.
      *
@@ -452,32 +532,119 @@ public final class GLESUtil {
      * @param dimen The new dimensions
      * @return GLESTextureInfo The texture info
      */
-    public static synchronized GLESTextureInfo loadTexture(Context context, Bitmap bitmap,
+    public static GLESTextureInfo loadTexture(Context context, Bitmap bitmap,
             Effect effect, Border border, Rect dimen) {
+        return loadTexture(context, bitmap, null, effect, border, dimen);
+    }
+
+    /**
+     * Method that loads texture from a bitmap reference, uploading its compressed pixels
+     * instead when they are available and the device supports them.
+     *
+     * @param bitmap The bitmap reference
+     * @param compressed The compressed pixels of the bitmap or null
+     * @param effect The effect to apply to the image or null if no effect is needed
+     * @param border The border to apply to the image or null if no border was defined
+     * @param dimen The new dimensions
+     * @return GLESTextureInfo The texture info
+     */
+    public static GLESTextureInfo loadTexture(Context context, Bitmap bitmap,
+            ETC1Texture compressed, Effect effect, Border border, Rect dimen) {
+        return loadTexture(context, bitmap, compressed, ExifInterface.ORIENTATION_NORMAL,
+                null, effect, border, dimen);
+    }
+
+    /**
+     * Method that loads texture from a bitmap reference which pixels are stored with an Exif
+     * orientation and from which only a region is visible. If effects or borders are
+     * applied, the orientation and the crop are applied by them and the returned texture is
+     * already oriented and cropped. Otherwise the orientation and the visible region are
+     * returned in the texture info, to be applied through the texture coordinates.
+     *
+     * @param bitmap The bitmap reference
+     * @param compressed The compressed pixels of the bitmap or null
+     * @param orientation The Exif orientation of the bitmap
+     * @param window The visible region of the oriented bitmap (normalized) or null if the
+     * whole bitmap is visible
+     * @param effect The effect to apply to the image or null if no effect is needed
+     * @param border The border to apply to the image or null if no border was defined
+     * @param dimen The new dimensions (of the oriented and cropped picture)
+     * @return GLESTextureInfo The texture info
+     */
+    public static synchronized GLESTextureInfo loadTexture(Context context, Bitmap bitmap,
+            ETC1Texture compressed, int orientation, RectF window, Effect effect, Border border,
+            Rect dimen) {
         // Check that we have a valid image name reference
         if (bitmap == null) {
             return new GLESTextureInfo();
         }
 
+        final long potStart = PipelineStats.start();
         Bitmap texture = ensurePowerOfTwoTexture(context, bitmap);
-
-        int num = 1;
-        if (effect != null) {
-            num++;
-        }
-        if (border != null) {
-            num++;
+        if (texture != bitmap) {
+            PipelineStats.record(Stage.POT, potStart, BitmapUtils.byteSizeOf(texture));
         }
 
+        // The effects and borders are applied in a single chain, so only one more texture
+        // is needed for the output
+        int num = effect != null || border != null ? 2 : 1;
+
+        // Compressed textures can't be updated with glTexSubImage2D, so they aren't reused
+        final boolean useCompressed = compressed != null && isETC1Supported()
+                && compressed.getWidth() == texture.getWidth()
+                && compressed.getHeight() == texture.getHeight();
+        final int format = GLUtils.getInternalFormat(texture);
+
+        // Reuse the pooled textures (with its storage already allocated) when possible. The
+        // effects and borders render to a texture of the requested dimensions
+        final GLESTexturePool pool = GLESTexturePool.get();
         int[] textureHandles = new int[num];
-        GLES20.glGenTextures(num, textureHandles, 0);
-        GLESUtil.glesCheckError("glGenTextures");
-        for (int i = 0; i < num; i++) {
-            if (GLESUtil.DEBUG_GL_MEMOBJS) {
-                Log.d(GLESUtil.DEBUG_GL_MEMOBJS_NEW_TAG, "glGenTextures: " + textureHandles[i]);
+        int missing = 0;
+        if (pool != null) {
+            for (int i = 0; i < num; i++) {
+                if (i == 0) {
+                    if (!useCompressed) {
+                        textureHandles[i] = pool.obtain(
+                                texture.getWidth(), texture.getHeight(), format);
+                    }
+                } else {
+                    textureHandles[i] = pool.obtain(
+                            dimen.width(), dimen.height(), GLES20.GL_RGBA);
+                }
+                if (textureHandles[i] == 0) {
+                    missing++;
+                }
             }
+        } else {
+            missing = num;
         }
-        if (textureHandles[0] <= 0 || (effect != null && textureHandles[1] <= 0)) {
+        final boolean reused = textureHandles[0] != 0;
+        final boolean outputReused = num > 1 && textureHandles[1] != 0;
+        if (missing > 0) {
+            int[] newHandles = new int[missing];
+            GLES20.glGenTextures(missing, newHandles, 0);
+            GLESUtil.glesCheckError("glGenTextures");
+            for (int i = 0, j = 0; i < num; i++) {
+                if (textureHandles[i] != 0) {
+                    continue;
+                }
+                textureHandles[i] = newHandles[j++];
+                if (GLESUtil.DEBUG_GL_MEMOBJS) {
+                    Log.d(GLESUtil.DEBUG_GL_MEMOBJS_NEW_TAG,
+                            "glGenTextures: " + textureHandles[i]);
+                }
+                if (pool != null && textureHandles[i] > 0) {
+                    if (i > 0) {
+                        pool.register(textureHandles[i],
+                                dimen.width(), dimen.height(), GLES20.GL_RGBA);
+                    } else {
+                        pool.register(textureHandles[i], texture.getWidth(),
+                                texture.getHeight(), useCompressed ? ETC1.ETC1_RGB8_OES : format);
+                    }
+                }
+            }
+        }
+        if (textureHandles[0] <= 0 || (num > 1 && textureHandles[1] <= 0)) {
             Log.e(TAG, "Failed to generate a valid texture");
             return new GLESTextureInfo();
         }
@@ -486,10 +653,11 @@ public final class GLESUtil {
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandles[0]);
         GLESUtil.glesCheckError("glBindTexture");
 
-        // Set the texture properties
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        // Set the texture properties. Cropped textures are scaled when drawn, so filter them
+        final int filter = window != null ? GLES20.GL_LINEAR : GLES20.GL_NEAREST;
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, filter);
         GLESUtil.glesCheckError("glTexParameteri");
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, filter);
         GLESUtil.glesCheckError("glTexParameteri");
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
         GLESUtil.glesCheckError("glTexParameteri");
@@ -497,10 +665,32 @@ public final class GLESUtil {
         GLESUtil.glesCheckError("glTexParameteri");
 
         // Load the texture
-        if (GLESNative.isUseNativeTextureBind()) {
-            GLESNative.glTexImage2D(texture);
+        final long uploadStart = PipelineStats.start();
+        if (useCompressed) {
+            ByteBuffer data = compressed.getData();
+            GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, 0, ETC1.ETC1_RGB8_OES,
+                    compressed.getWidth(), compressed.getHeight(), 0, data.capacity(), data);
+            GLESUtil.glesCheckError("glCompressedTexImage2D");
+            PipelineStats.record(Stage.UPLOAD_ETC1, uploadStart, data.capacity());
         } else {
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, texture, 0);
+            final boolean nativeUpload;
+            if (reused) {
+                // Just refill the storage of the pooled texture
+                nativeUpload = GLESNative.isUseNativeTextureBind()
+                        && GLESNative.glTexSubImage2D(texture, 0, 0);
+                if (!nativeUpload) {
+                    GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, texture);
+                }
+                GLESUtil.glesCheckError("glTexSubImage2D");
+            } else {
+                nativeUpload = GLESNative.isUseNativeTextureBind()
+                        && GLESNative.glTexImage2D(texture);
+                if (!nativeUpload) {
+                    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, texture, 0);
+                }
+            }
+            PipelineStats.record(nativeUpload ? Stage.UPLOAD_NATIVE : Stage.UPLOAD_GLUTILS,
+                    uploadStart, BitmapUtils.byteSizeOf(texture));
         }
 
         if (!GLES20.glIsTexture(textureHandles[0])) {
@@ -510,14 +700,20 @@ public final class GLESUtil {
 
         // Apply effects and borders. Don't apply effects if there is not a valid context
         int handle = textureHandles[0];
-        if (hasValidEglContext()) {
-            int n = 0;
-            if (effect != null) {
-                handle = applyEffect(textureHandles, n, effect, dimen);
-                n++;
-            }
-            if (border != null) {
-                handle = applyEffect(textureHandles, n, border, dimen);
+        if (num > 1) {
+            GLESFilterPipeline pipeline = GLESFilterPipeline.get();
+            if (pipeline != null) {
+                // We need a thread-safe call here
+                synchronized (SYNC) {
+                    pipeline.apply(textureHandles[0], orientation, window, dimen.width(),
+                            dimen.height(), textureHandles[1], !outputReused, effect, border);
+                }
+                handle = textureHandles[1];
+                orientation = ExifInterface.ORIENTATION_NORMAL;
+                window = null;
+                GLESTexturePool.release(textureHandles[0]);
+            } else {
+                GLESTexturePool.release(textureHandles[1]);
             }
         }
 
@@ -525,29 +721,105 @@ public final class GLESUtil {
         GLESTextureInfo ti = new GLESTextureInfo();
         ti.handle = handle;
         ti.bitmap = texture;
+        ti.orientation = orientation;
+        ti.window = window;
         ti.path = null;
         return ti;
     }
 
-    private static int applyEffect(int[] textureHandles, int n, Effect effect, Rect dimen) {
-        // Apply the border (we need a thread-safe call here)
-        synchronized (SYNC) {
-            // No more than 1024 (the minimum supported by all the gles20 devices)
-            effect.apply(textureHandles[n], dimen.width(), dimen.height(), textureHandles[n + 1]);
+    /**
+     * Method that maps the texture coordinates of a quad to show a texture which pixels are
+     * stored with an Exif orientation. The coordinates are pairs (s, t) in the texture space,
+     * where (0, 0) is the first pixel of the bitmap.
+     *
+     * @param coords The texture coordinates to draw the texture as is
+     * @param orientation The Exif orientation of the texture
+     * @return float[] The oriented texture coordinates (the passed ones if the orientation
+     * doesn't need any transformation)
+     */
+    public static float[] getTextureCoords(float[] coords, int orientation) {
+        return getTextureCoords(coords, orientation, null);
+    }
+
+    /**
+     * Method that maps the texture coordinates of a quad to show a region of a texture which
+     * pixels are stored with an Exif orientation. The coordinates are pairs (s, t) in the
+     * texture space, where (0, 0) is the first pixel of the bitmap.
+     *
+     * @param coords The texture coordinates to draw the texture as is
+     * @param orientation The Exif orientation of the texture
+     * @param window The region of the oriented texture to show (normalized) or null to
+     * show all of it
+     * @return float[] The texture coordinates (the passed ones if neither the orientation nor
+     * the region need any transformation)
+     */
+    public static float[] getTextureCoords(float[] coords, int orientation, RectF window) {
+        if (window != null) {
+            float[] cropped = new float[coords.length];
+            for (int i = 0; i < coords.length; i += 2) {
+                cropped[i] = window.left + coords[i] * window.width();
+                cropped[i + 1] = window.top + coords[i + 1] * window.height();
+            }
+            coords = cropped;
         }
 
-        // Delete the unused texture
-        if (GLESUtil.DEBUG_GL_MEMOBJS) {
-            Log.d(GLESUtil.DEBUG_GL_MEMOBJS_DEL_TAG, "glDeleteTextures: ["
-                    + textureHandles[n] + "]");
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+            case ExifInterface.ORIENTATION_ROTATE_180:
+            case ExifInterface.ORIENTATION_ROTATE_270:
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                break;
+            default:
+                return coords;
+        }
+
+        // Every point of the oriented picture is sampled from the point of the stored
+        // pixels that the orientation moves to it
+        float[] out = new float[coords.length];
+        for (int i = 0; i < coords.length; i += 2) {
+            final float s = coords[i];
+            final float t = coords[i + 1];
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    out[i] = t;
+                    out[i + 1] = 1 - s;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    out[i] = 1 - s;
+                    out[i + 1] = 1 - t;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    out[i] = 1 - t;
+                    out[i + 1] = s;
+                    break;
+                case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                    out[i] = 1 - s;
+                    out[i + 1] = t;
+                    break;
+                case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                    out[i] = s;
+                    out[i + 1] = 1 - t;
+                    break;
+                case ExifInterface.ORIENTATION_TRANSPOSE:
+                    out[i] = t;
+                    out[i + 1] = s;
+                    break;
+                default:
+                    // ExifInterface.ORIENTATION_TRANSVERSE
+                    out[i] = 1 - t;
+                    out[i + 1] = 1 - s;
+                    break;
+            }
         }
-        GLES20.glDeleteTextures(1, textureHandles, n);
-        GLESUtil.glesCheckError("glDeleteTextures");
-        return textureHandles[n + 1];
+        return out;
     }
 
     /**
-     * Ensure that the passed bitmap can be used a as power of two texture
+     * Ensure that the passed bitmap can be used a as power of two texture. If a new bitmap
+     * is created, the source bitmap is returned to the pool and must not be used anymore.
      *
      * @param src The source bitmap
      * @return A bitmap which is power of two
@@ -558,14 +830,30 @@ public final class GLESUtil {
             int powerOfTwo = BitmapUtils.calculateUpperPowerOfTwo(
                     Math.min(src.getWidth(), src.getHeight()));
 
-            // Create a power of two bitmap
-            Bitmap out = Bitmap.createScaledBitmap(src, powerOfTwo, powerOfTwo, false);
-            src.recycle();
+            // Create a power of two bitmap. It replaces the source bitmap in the returned
+            // texture info, so the source is given back to the pool (or just recycled if
+            // it can't be reused)
+            Bitmap out = BitmapUtils.createTransformedBitmap(
+                    src, null, ExifInterface.ORIENTATION_NORMAL, powerOfTwo, powerOfTwo);
+            BitmapPool.recycle(src);
             return out;
         }
         return src;
     }
 
+    /**
+     * Return whether the current GLES context supports ETC1 compressed textures. Must be
+     * called from the GLThread.
+     *
+     * @return boolean If ETC1 compressed textures are supported
+     */
+    private static boolean isETC1Supported() {
+        if (sETC1Supported == null) {
+            sETC1Supported = ETC1Util.isETC1Supported();
+        }
+        return sETC1Supported;
+    }
+
     /**
      * Method that checks if an GLES error is present
      *
@@ -627,10 +915,21 @@ public final class GLESUtil {
      * @return boolean If a valid Egl context exists
      */
     private static boolean hasValidEglContext() {
+        return getCurrentEglContext() != null;
+    }
+
+    /**
+     * Return the current Egl context
+     *
+     * @return EGLContext The current Egl context or null if there is no valid Egl context
+     */
+    public static EGLContext getCurrentEglContext() {
         final EGL10 egl = (EGL10) EGLContext.getEGL();
-        return egl != null &&
-                egl.eglGetCurrentContext() != null &&
-                !egl.eglGetCurrentContext().equals(EGL10.EGL_NO_CONTEXT);
+        if (egl == null) {
+            return null;
+        }
+        EGLContext ctx = egl.eglGetCurrentContext();
+        return ctx == null || ctx.equals(EGL10.EGL_NO_CONTEXT) ? null : ctx;
     }
 
     /**
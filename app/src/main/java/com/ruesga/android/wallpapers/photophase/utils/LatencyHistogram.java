@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free and allocation-free histogram of latencies (in microseconds). Every power of
+ * two is split in 4 buckets, so the reported percentiles have an error under 25%.
+ */
+public class LatencyHistogram {
+
+    // 4 buckets per power of two, up to 2^41 microseconds
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 40 * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    /**
+     * Method that records a new sample
+     *
+     * @param micros The latency in microseconds
+     * @param bytes The bytes processed (0 if not applicable)
+     */
+    public void record(long micros, long bytes) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mBuckets.incrementAndGet(indexOf(micros));
+        mCount.incrementAndGet();
+        mTotal.addAndGet(micros);
+        mBytes.addAndGet(bytes);
+        long max = mMax.get();
+        while (micros > max && !mMax.compareAndSet(max, micros)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Method that returns the number of samples
+     *
+     * @return long The number of samples
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Method that returns the sum of all the latencies
+     *
+     * @return long The total latency in microseconds
+     */
+    public long getTotal() {
+        return mTotal.get();
+    }
+
+    /**
+     * Method that returns the maximum latency
+     *
+     * @return long The maximum latency in microseconds
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Method that returns the bytes processed
+     *
+     * @return long The bytes processed
+     */
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * Method that returns a percentile of the latencies. The value is the upper bound of
+     * the bucket that holds the percentile.
+     *
+     * @param percentile The percentile (0-100)
+     * @return long The latency in microseconds
+     */
+    public long getPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mBuckets.get(i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100d));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Method that removes all the samples
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotal.set(0);
+        mMax.set(0);
+        mBytes.set(0);
+    }
+
+    private static int indexOf(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) ((v >>> (msb - 2)) & (SUB_BUCKETS - 1));
+        return Math.min(BUCKETS - 1, (msb - 1) * SUB_BUCKETS + sub);
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int msb = index / SUB_BUCKETS + 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (msb - 2)) - 1;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.utils;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ruesga.android.wallpapers.photophase.R;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A process-wide governor of the memory used by the pictures: the bitmaps held in memory and
+ * the (estimated) storage of the GLES textures of every renderer. Instead of stopping the
+ * rendering under memory pressure, the governor degrades the quality in steps:<br/>
+ * <ul>
+ * <li>{@link #LEVEL_REDUCED}: only one picture is prefetched and the pooled bitmaps are
+ * released.</li>
+ * <li>{@link #LEVEL_LOW}: new textures are created at half size and the free GLES
+ * textures are released.</li>
+ * <li>{@link #LEVEL_CRITICAL}: the prefetched pictures are released too.</li>
+ * </ul>
+ * The level is raised by the system (through <code>onTrimMemory</code>) or when the used
+ * memory exceeds the budget, and it's restored once the pressure is gone. Walking the
+ * clients is not free, so the level is cached and only recomputed when a client is
+ * registered or unregistered, when the system trims the memory, when the level raised by
+ * the system times out, or when a client reports a change of its memory through
+ * {@link #update()}.
+ */
+public final class MemoryGovernor {
+
+    private static final String TAG = "MemoryGovernor";
+
+    private static final boolean DEBUG = false;
+
+    /**
+     * No memory pressure
+     */
+    public static final int LEVEL_NORMAL = 0;
+    /**
+     * Moderate memory pressure. Don't prefetch pictures
+     */
+    public static final int LEVEL_REDUCED = 1;
+    /**
+     * High memory pressure. Downscale new textures and drop the caches
+     */
+    public static final int LEVEL_LOW = 2;
+    /**
+     * Critical memory pressure. Release everything that is not on screen
+     */
+    public static final int LEVEL_CRITICAL = 3;
+
+    // The time (in millis) a level raised by the system is kept
+    private static final long LEVEL_TIMEOUT = 60000L;
+
+    /**
+     * An interface implemented by the owners of picture memory (every renderer)
+     */
+    public interface MemoryClient {
+        /**
+         * Method that returns the bytes of the bitmaps held by the client
+         *
+         * @return long The bitmap bytes
+         */
+        long getBitmapBytes();
+
+        /**
+         * Method that returns the estimated bytes of the GLES textures held by the client
+         *
+         * @return long The texture bytes
+         */
+        long getTextureBytes();
+
+        /**
+         * Invoked when the memory level was raised, so the client must release its memory
+         * accordingly. Can be called from any thread.
+         *
+         * @param level The new level
+         */
+        void onTrimMemory(int level);
+    }
+
+    private static final List<MemoryClient> sClients = new ArrayList<>();
+    private static long sBudget = -1;
+    private static int sTrimLevel = LEVEL_NORMAL;
+    private static long sTrimTime;
+
+    // The cached level and the time when the level raised by the system times out
+    private static volatile int sLevel = LEVEL_NORMAL;
+    private static volatile long sLevelTimeout = Long.MAX_VALUE;
+
+    private MemoryGovernor() {
+    }
+
+    /**
+     * Method that initializes the budget of the governor
+     *
+     * @param context The current context
+     */
+    public static synchronized void init(Context context) {
+        if (sBudget < 0) {
+            ActivityManager am =
+                    (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            int percent = context.getResources().getInteger(R.integer.config_memory_budget);
+            sBudget = am.getMemoryClass() * 1024L * 1024L * percent / 100L;
+        }
+    }
+
+    /**
+     * Method that registers a new owner of picture memory
+     *
+     * @param client The client
+     */
+    public static synchronized void register(MemoryClient client) {
+        if (!sClients.contains(client)) {
+            sClients.add(client);
+        }
+        update();
+    }
+
+    /**
+     * Method that unregisters an owner of picture memory
+     *
+     * @param client The client
+     */
+    public static synchronized void unregister(MemoryClient client) {
+        sClients.remove(client);
+        update();
+    }
+
+    /**
+     * Method that translates a trim level of the system to a level of the governor
+     *
+     * @param level The trim level of the system (see {@link ComponentCallbacks2})
+     */
+    public static void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            raise(LEVEL_CRITICAL);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            raise(LEVEL_LOW);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            raise(LEVEL_REDUCED);
+        }
+        // TRIM_MEMORY_UI_HIDDEN doesn't apply to a wallpaper
+    }
+
+    /**
+     * Method called when the system runs under low memory
+     */
+    public static void onLowMemory() {
+        raise(LEVEL_CRITICAL);
+    }
+
+    /**
+     * Method that returns the current level, considering both the system pressure and
+     * the used memory
+     *
+     * @return int The current level
+     */
+    public static int getLevel() {
+        if (SystemClock.elapsedRealtime() >= sLevelTimeout) {
+            update();
+        }
+        return sLevel;
+    }
+
+    /**
+     * Method that recomputes the current level. Clients must call it when the memory they
+     * hold changed (for example, when a new picture was loaded).
+     */
+    public static synchronized void update() {
+        int level = LEVEL_NORMAL;
+        long timeout = Long.MAX_VALUE;
+        if (sTrimLevel != LEVEL_NORMAL
+                && SystemClock.elapsedRealtime() - sTrimTime < LEVEL_TIMEOUT) {
+            level = sTrimLevel;
+            timeout = sTrimTime + LEVEL_TIMEOUT;
+        }
+        if (sBudget > 0) {
+            long used = getBitmapBytes() + getTextureBytes();
+            if (used > sBudget + sBudget / 2) {
+                level = Math.max(level, LEVEL_LOW);
+            } else if (used > sBudget) {
+                level = Math.max(level, LEVEL_REDUCED);
+            }
+        }
+        sLevelTimeout = timeout;
+        sLevel = level;
+    }
+
+    /**
+     * Method that returns the maximum number of pictures that can be prefetched
+     *
+     * @param depth The desired number of pictures
+     * @return int The allowed number of pictures
+     */
+    public static int getPrefetchDepth(int depth) {
+        return getLevel() >= LEVEL_REDUCED ? Math.min(depth, 1) : depth;
+    }
+
+    /**
+     * Method that returns the scale to apply to the new textures
+     *
+     * @return float The scale of the new textures
+     */
+    public static float getTextureScale() {
+        return getLevel() >= LEVEL_LOW ? 0.5f : 1f;
+    }
+
+    /**
+     * Method that returns the bytes of the bitmaps held by all the clients (including
+     * the pooled bitmaps)
+     *
+     * @return long The bitmap bytes
+     */
+    public static synchronized long getBitmapBytes() {
+        long bytes = BitmapPool.size();
+        for (MemoryClient client : sClients) {
+            bytes += client.getBitmapBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Method that returns the estimated bytes of the GLES textures of all the clients
+     *
+     * @return long The texture bytes
+     */
+    public static synchronized long getTextureBytes() {
+        long bytes = 0;
+        for (MemoryClient client : sClients) {
+            bytes += client.getTextureBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Method that dumps the current state of the governor
+     *
+     * @param pw The writer where to dump the state
+     */
+    public static synchronized void dump(PrintWriter pw) {
+        pw.println("MemoryGovernor:");
+        update();
+        pw.println("  level: " + sLevel + " (system: " + sTrimLevel + ")");
+        pw.println("  budget: " + sBudget);
+        pw.println("  bitmaps: " + getBitmapBytes() + " (pooled: " + BitmapPool.size() + ")");
+        pw.println("  textures: " + getTextureBytes());
+        for (int i = 0; i < sClients.size(); i++) {
+            MemoryClient client = sClients.get(i);
+            pw.println("  client #" + i + ": bitmaps=" + client.getBitmapBytes()
+                    + ", textures=" + client.getTextureBytes());
+        }
+    }
+
+    private static void raise(int level) {
+        List<MemoryClient> clients;
+        synchronized (MemoryGovernor.class) {
+            long now = SystemClock.elapsedRealtime();
+            int current = now - sTrimTime < LEVEL_TIMEOUT ? sTrimLevel : LEVEL_NORMAL;
+            if (level < current) {
+                return;
+            }
+            sTrimTime = now;
+            if (level == current) {
+                update();
+                return;
+            }
+            sTrimLevel = level;
+            update();
+            clients = new ArrayList<>(sClients);
+        }
+        if (DEBUG) Log.d(TAG, "Memory level raised to " + level);
+
+        BitmapPool.clear();
+        for (MemoryClient client : clients) {
+            client.onTrimMemory(level);
+        }
+    }
+}
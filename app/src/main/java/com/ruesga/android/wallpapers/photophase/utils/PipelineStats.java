@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.utils;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * The latency histograms of every stage of the picture pipeline, from the media scan to the
+ * hand-off of the texture to its frame. Recording a sample only takes a few atomic operations
+ * and doesn't allocate, so the instrumentation is always enabled.<br/>
+ * <br/>
+ * The GLES stages measure the time spent by the GLThread issuing the commands, not the
+ * execution time in the GPU.
+ */
+public final class PipelineStats {
+
+    /**
+     * The instrumented stages of the picture pipeline
+     */
+    public enum Stage {
+        /**
+         * A query of the pictures in the MediaStore
+         */
+        SCAN,
+        /**
+         * The selection of the next picture to load
+         */
+        SELECT,
+        /**
+         * The decode of a picture file
+         */
+        DECODE,
+        /**
+         * The decode of the low resolution placeholder of a picture
+         */
+        PLACEHOLDER,
+        /**
+         * The EXIF rotation of a decoded picture
+         */
+        EXIF,
+        /**
+         * The crop, rotation and scale of a decoded picture to the frame size
+         */
+        CROP_SCALE,
+        /**
+         * The conversion of a picture to a power of two texture
+         */
+        POT,
+        /**
+         * The upload of a texture through the native library
+         */
+        UPLOAD_NATIVE,
+        /**
+         * The upload of a texture through GLUtils
+         */
+        UPLOAD_GLUTILS,
+        /**
+         * The upload of an ETC1 compressed texture
+         */
+        UPLOAD_ETC1,
+        /**
+         * An effect pass
+         */
+        EFFECT,
+        /**
+         * A border pass
+         */
+        BORDER,
+        /**
+         * The time a decoded picture waits for the GLThread
+         */
+        DISPATCH,
+        /**
+         * The hand-off of a texture to its requestor
+         */
+        HANDOFF
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private static final LatencyHistogram[] sHistograms = new LatencyHistogram[STAGES.length];
+    static {
+        for (int i = 0; i < sHistograms.length; i++) {
+            sHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    private PipelineStats() {
+    }
+
+    /**
+     * Method that returns the start time of a new sample
+     *
+     * @return long The start time in nanoseconds
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Method that records the latency of a stage
+     *
+     * @param stage The stage
+     * @param start The start time returned by {@link #start()}
+     */
+    public static void record(Stage stage, long start) {
+        record(stage, start, 0);
+    }
+
+    /**
+     * Method that records the latency of a stage and the bytes it processed
+     *
+     * @param stage The stage
+     * @param start The start time returned by {@link #start()}
+     * @param bytes The bytes processed
+     */
+    public static void record(Stage stage, long start, long bytes) {
+        sHistograms[stage.ordinal()].record((System.nanoTime() - start) / 1000L, bytes);
+    }
+
+    /**
+     * Method that returns the histogram of a stage
+     *
+     * @param stage The stage
+     * @return LatencyHistogram The histogram
+     */
+    public static LatencyHistogram getHistogram(Stage stage) {
+        return sHistograms[stage.ordinal()];
+    }
+
+    /**
+     * Method that returns a summary of the histogram of a stage
+     *
+     * @param stage The stage
+     * @return String The summary
+     */
+    public static String getSummary(Stage stage) {
+        LatencyHistogram h = sHistograms[stage.ordinal()];
+        long count = h.getCount();
+        if (count == 0) {
+            return "n=0";
+        }
+        return String.format(Locale.US,
+                "n=%d avg=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms bytes=%d",
+                count,
+                h.getTotal() / (count * 1000d),
+                h.getPercentile(50) / 1000d,
+                h.getPercentile(95) / 1000d,
+                h.getPercentile(99) / 1000d,
+                h.getMax() / 1000d,
+                h.getBytes());
+    }
+
+    /**
+     * Method that removes all the samples of all the stages
+     */
+    public static void reset() {
+        for (LatencyHistogram h : sHistograms) {
+            h.reset();
+        }
+    }
+
+    /**
+     * Method that dumps the histograms of all the stages and the counters of the bitmap pool
+     *
+     * @param pw The writer where to dump the histograms
+     */
+    public static void dump(PrintWriter pw) {
+        pw.println("PipelineStats:");
+        for (Stage stage : STAGES) {
+            pw.println("  " + stage.name() + ": " + getSummary(stage));
+        }
+        pw.println("  BitmapPool: hits=" + BitmapPool.getHits()
+                + " misses=" + BitmapPool.getMisses()
+                + " pooled=" + BitmapPool.size() + " bytes");
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase;
+
+import org.junit.Assume;
+
+import java.util.Locale;
+
+/**
+ * A minimal JVM micro-benchmark helper for the unit tests. Every task is run a few times
+ * to warm up the JIT and then measured; the best run is reported, so the results are
+ * comparable between runs. The results are printed to the standard output of the tests
+ * (build/test-results). The benchmarks are skipped unless they are requested with
+ * <code>./gradlew test -Pbenchmarks</code>, so they don't slow down every test run.
+ */
+public final class Benchmark {
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 5;
+
+    /**
+     * A task to measure
+     */
+    public interface Task {
+        /**
+         * Run the task once
+         *
+         * @return Object Any result of the task, so the JIT can't discard the work
+         */
+        Object run();
+    }
+
+    private static volatile Object sSink;
+
+    private Benchmark() {
+    }
+
+    /**
+     * Method that skips the current test unless the benchmarks were requested. Must be
+     * called before measuring anything (i.e. from a {@link org.junit.Before} method).
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks not requested", Boolean.getBoolean("benchmarks"));
+    }
+
+    /**
+     * Method that measures a task
+     *
+     * @param name The name of the task
+     * @param operations The number of operations done by every run of the task
+     * @param task The task
+     * @return double The best time per operation in nanoseconds
+     */
+    public static double measure(String name, long operations, Task task) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            sSink = task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            sSink = task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double perOp = (double) best / operations;
+        System.out.println(String.format(Locale.US, "Benchmark %s: %.1f ns/op, %.3f ms/run",
+                name, perOp, best / 1000000d));
+        return perOp;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase;
+
+import com.ruesga.android.wallpapers.photophase.MediaPictureIndex.OnPictureIndexedListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Benchmarks of the reads of the MediaStore by {@link MediaPictureIndex}, with a library
+ * of 100k pictures
+ */
+public class MediaPictureIndexBenchmark {
+
+    private static final int PICTURES = 100000;
+
+    private static final OnPictureIndexedListener LISTENER = new OnPictureIndexedListener() {
+        @Override
+        public void onPictureIndexed(String path, long bucketId) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+
+    @Test
+    public void benchmarkFirstRead() {
+        final FakeCursor c = MediaPictureIndexTest.createCursor(PICTURES);
+        final File file = new File("media-benchmark.idx");
+        Benchmark.measure("MediaPictureIndex.readModified(new)", PICTURES,
+                new Benchmark.Task() {
+            @Override
+            public Object run() {
+                MediaPictureIndex index = new MediaPictureIndex(file);
+                return index.readModified(c.copy(), LISTENER);
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkUnchangedRead() {
+        final FakeCursor c = MediaPictureIndexTest.createCursor(PICTURES);
+        final MediaPictureIndex index = new MediaPictureIndex(new File("media-benchmark.idx"));
+        index.readModified(c.copy(), null);
+        Benchmark.measure("MediaPictureIndex.readModified(unchanged)", PICTURES,
+                new Benchmark.Task() {
+            @Override
+            public Object run() {
+                return index.readModified(c.copy(), LISTENER);
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkRemoveDeleted() {
+        final FakeCursor c = MediaPictureIndexTest.createCursor(PICTURES);
+        final MediaPictureIndex index = new MediaPictureIndex(new File("media-benchmark.idx"));
+        index.readModified(c.copy(), null);
+        Benchmark.measure("MediaPictureIndex.removeDeleted(none)", PICTURES,
+                new Benchmark.Task() {
+            @Override
+            public Object run() {
+                return index.removeDeleted(c.copy());
+            }
+        });
+    }
+}
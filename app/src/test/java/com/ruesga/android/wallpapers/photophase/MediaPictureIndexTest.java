@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase;
+
+import com.ruesga.android.wallpapers.photophase.MediaPictureIndex.OnPictureIndexedListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link MediaPictureIndex}. The MediaStore is replaced by cursors in memory.
+ */
+public class MediaPictureIndexTest {
+
+    static final String[] COLUMNS = {"_id", "_data", "bucket_id", "date_modified"};
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("media", ".idx");
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Test
+    public void testAlbumBucketIdDoesNotDependOnLocale() {
+        Locale locale = Locale.getDefault();
+        try {
+            // The dotless i of the turkish locale
+            Locale.setDefault(new Locale("tr", "TR"));
+            assertEquals("/sdcard/dcim/istanbul".hashCode(),
+                    MediaPictureIndex.getAlbumBucketId("/sdcard/DCIM/ISTANBUL"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+        assertEquals(MediaPictureIndex.getAlbumBucketId("/sdcard/dcim"),
+                MediaPictureIndex.getBucketId("/sdcard/DCIM/a.jpg"));
+    }
+
+    @Test
+    public void testIsInAlbum() {
+        assertTrue(MediaPictureIndex.isInAlbum("/sdcard/DCIM/a.jpg", "/sdcard/DCIM"));
+        assertFalse(MediaPictureIndex.isInAlbum("/sdcard/DCIM/a.jpg", "/sdcard/dcim"));
+        assertFalse(MediaPictureIndex.isInAlbum("/sdcard/DCIM/b/a.jpg", "/sdcard/DCIM"));
+        assertFalse(MediaPictureIndex.isInAlbum("/sdcard/DCIMb/a.jpg", "/sdcard/DCIM"));
+        assertFalse(MediaPictureIndex.isInAlbum("/sdcard/a.jpg", "/sdcard/DCIM"));
+        assertTrue(MediaPictureIndex.isInAlbum("/a.jpg", "/"));
+        assertFalse(MediaPictureIndex.isInAlbum("/sdcard/a.jpg", "/"));
+    }
+
+    @Test
+    public void testAlbumSelectionArgs() {
+        String[] args = MediaPictureIndex.getAlbumSelectionArgs("/sdcard/DCIM");
+        assertEquals(3, args.length);
+        assertEquals(String.valueOf(MediaPictureIndex.getAlbumBucketId("/sdcard/DCIM")),
+                args[0]);
+        // The pictures of the album, but not the ones of its nested albums
+        assertEquals("/sdcard/DCIM/*", args[1]);
+        assertEquals("/sdcard/DCIM/*/*", args[2]);
+
+        // The glob wildcards of the path are escaped
+        args = MediaPictureIndex.getAlbumSelectionArgs("/sdcard/[a]*?");
+        assertEquals("/sdcard/[[]a][*][?]/*", args[1]);
+        assertEquals("/sdcard/[[]a][*][?]/*/*", args[2]);
+    }
+
+    @Test
+    public void testReadModified() {
+        MediaPictureIndex index = new MediaPictureIndex(mFile);
+        assertTrue(index.readModified(new FakeCursor(COLUMNS, new Object[][]{
+                {1L, "/sdcard/DCIM/a.jpg", 10L, 100L},
+                {2L, null, 10L, 100L},
+                {3L, "/sdcard/Pictures/b.jpg", null, 100L}}), null));
+
+        List<String> paths = new ArrayList<>();
+        List<Long> buckets = new ArrayList<>();
+        visit(index, paths, buckets);
+        assertEquals(2, paths.size());
+        assertEquals("/sdcard/DCIM/a.jpg", paths.get(0));
+        assertEquals(10L, (long) buckets.get(0));
+        // Without bucket id, it's computed from the path
+        assertEquals(MediaPictureIndex.getBucketId("/sdcard/Pictures/b.jpg"),
+                (long) buckets.get(1));
+
+        // A modified path and a picture without path anymore
+        assertTrue(index.readModified(new FakeCursor(COLUMNS, new Object[][]{
+                {1L, "/sdcard/DCIM/c.jpg", 10L, 200L},
+                {3L, null, null, 200L}}), null));
+        paths.clear();
+        visit(index, paths, null);
+        assertEquals(1, paths.size());
+        assertEquals("/sdcard/DCIM/c.jpg", paths.get(0));
+    }
+
+    @Test
+    public void testUnchangedRowsKeepTheirPaths() {
+        MediaPictureIndex index = new MediaPictureIndex(mFile);
+        FakeCursor c = createCursor(1000);
+        assertTrue(index.readModified(c.copy(), null));
+        List<String> before = new ArrayList<>();
+        visit(index, before, null);
+
+        // Reading the same rows again doesn't change the index nor its paths
+        final List<String> notified = new ArrayList<>();
+        assertFalse(index.readModified(c.copy(), new OnPictureIndexedListener() {
+            @Override
+            public void onPictureIndexed(String path, long bucketId) {
+                notified.add(path);
+            }
+        }));
+        List<String> after = new ArrayList<>();
+        visit(index, after, null);
+        assertEquals(before.size(), after.size());
+        assertEquals(before.size(), notified.size());
+        for (int i = 0; i < before.size(); i++) {
+            assertSame(before.get(i), after.get(i));
+            assertSame(before.get(i), notified.get(i));
+        }
+    }
+
+    @Test
+    public void testRemoveDeleted() {
+        MediaPictureIndex index = new MediaPictureIndex(mFile);
+        FakeCursor c = createCursor(10);
+        index.readModified(c.copy(), null);
+        FakeCursor ids = createIdCursor(c, 2, 3, 7);
+        assertTrue(index.removeDeleted(ids.copy()));
+        List<String> paths = new ArrayList<>();
+        visit(index, paths, null);
+        assertEquals(3, paths.size());
+        assertFalse(index.removeDeleted(ids.copy()));
+    }
+
+    @Test
+    public void testRemoveDeletedUpdatesMovedPictures() {
+        // Moving a picture keeps its id and modification date, so it isn't read again
+        MediaPictureIndex index = new MediaPictureIndex(mFile);
+        index.readModified(new FakeCursor(COLUMNS, new Object[][]{
+                {1L, "/sdcard/DCIM/a.jpg", MediaPictureIndex.getAlbumBucketId("/sdcard/DCIM"), 1L},
+                {2L, "/sdcard/DCIM/b.jpg", MediaPictureIndex.getAlbumBucketId("/sdcard/DCIM"), 1L}
+        }), null);
+        String[] columns = {"_id", "_data", "bucket_id"};
+        assertTrue(index.removeDeleted(new FakeCursor(columns, new Object[][]{
+                {1L, "/sdcard/DCIM/a.jpg", MediaPictureIndex.getAlbumBucketId("/sdcard/DCIM")},
+                {2L, "/sdcard/Pictures/b.jpg", null}
+        })));
+        List<String> paths = new ArrayList<>();
+        List<Long> buckets = new ArrayList<>();
+        visit(index, paths, buckets);
+        assertEquals("/sdcard/DCIM/a.jpg", paths.get(0));
+        assertEquals("/sdcard/Pictures/b.jpg", paths.get(1));
+        assertEquals(MediaPictureIndex.getAlbumBucketId("/sdcard/Pictures"),
+                buckets.get(1).longValue());
+    }
+
+    /**
+     * Method that creates a cursor of pictures spread over albums of 100 pictures
+     */
+    static FakeCursor createCursor(int count) {
+        Object[][] rows = new Object[count][];
+        for (int i = 0; i < count; i++) {
+            String album = "/storage/emulated/0/DCIM/Album" + (i / 100);
+            rows[i] = new Object[]{(long) (i + 1), album + "/IMG_" + i + ".jpg",
+                    MediaPictureIndex.getAlbumBucketId(album), 1500000000L + i};
+        }
+        return new FakeCursor(COLUMNS, rows);
+    }
+
+    /**
+     * Method that creates a cursor of ids (with their paths and albums) with some of the
+     * rows of a cursor of pictures
+     */
+    static FakeCursor createIdCursor(FakeCursor c, long... ids) {
+        Object[][] rows = new Object[ids.length][];
+        for (int i = 0; i < ids.length; i++) {
+            c.moveToPosition((int) ids[i] - 1);
+            rows[i] = new Object[]{c.getLong(0), c.getString(1), c.getLong(2)};
+        }
+        return new FakeCursor(new String[]{"_id", "_data", "bucket_id"}, rows);
+    }
+
+    private static void visit(MediaPictureIndex index, final List<String> paths,
+            final List<Long> buckets) {
+        index.visit(new OnPictureIndexedListener() {
+            @Override
+            public void onPictureIndexed(String path, long bucketId) {
+                paths.add(path);
+                if (buckets != null) {
+                    buckets.add(bucketId);
+                }
+            }
+        });
+    }
+}
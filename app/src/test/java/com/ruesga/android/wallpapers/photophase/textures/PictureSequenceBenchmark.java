@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.textures;
+
+import com.ruesga.android.wallpapers.photophase.Benchmark;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Benchmarks of {@link PictureSequence} with libraries of 1k, 10k and 100k pictures
+ */
+public class PictureSequenceBenchmark {
+
+    private static final int[] SIZES = {1000, 10000, 100000};
+
+    private File mLogFile;
+
+    @Before
+    public void setUp() throws IOException {
+        Benchmark.assumeEnabled();
+        mLogFile = File.createTempFile("sequence", ".log");
+        //noinspection ResultOfMethodCallIgnored
+        mLogFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (mLogFile != null) {
+            //noinspection ResultOfMethodCallIgnored
+            mLogFile.delete();
+        }
+    }
+
+    @Test
+    public void benchmarkAddAll() {
+        for (final int size : SIZES) {
+            final File[] pictures = createPictures(size);
+            Benchmark.measure("PictureSequence.addAll(" + size + ")", size,
+                    new Benchmark.Task() {
+                @Override
+                public Object run() {
+                    PictureSequence sequence = new PictureSequence(mLogFile, null);
+                    sequence.addAll(pictures);
+                    return sequence.size();
+                }
+            });
+        }
+    }
+
+    @Test
+    public void benchmarkRandomCycle() {
+        for (final int size : SIZES) {
+            final PictureSequence sequence = new PictureSequence(mLogFile, null);
+            sequence.addAll(createPictures(size));
+            sequence.attachLog();
+            Benchmark.measure("PictureSequence.nextRandom(" + size + ")", size,
+                    new Benchmark.Task() {
+                @Override
+                public Object run() {
+                    // A whole cycle, with the draws buffered for the log
+                    File last = null;
+                    for (int i = 0; i < size; i++) {
+                        last = sequence.nextRandom();
+                    }
+                    return last;
+                }
+            });
+            sequence.close();
+        }
+    }
+
+    @Test
+    public void benchmarkSequentialDraws() {
+        for (final int size : SIZES) {
+            final PictureSequence sequence = new PictureSequence(mLogFile, null);
+            sequence.addAll(createPictures(size));
+            Benchmark.measure("PictureSequence.nextSequential(" + size + ")", size,
+                    new Benchmark.Task() {
+                @Override
+                public Object run() {
+                    File last = null;
+                    for (int i = 0; i < size; i++) {
+                        last = sequence.nextSequential(last);
+                    }
+                    return last;
+                }
+            });
+        }
+    }
+
+    @Test
+    public void benchmarkUpdate() {
+        for (final int size : SIZES) {
+            // A refresh that replaces a tenth of the pictures
+            final File[] pictures = createPictures(size + size / 10);
+            final File[] initial = Arrays.copyOfRange(pictures, 0, size);
+            final File[] added = Arrays.copyOfRange(pictures, size, pictures.length);
+            final File[] removed = Arrays.copyOfRange(pictures, 0, size / 10);
+            Benchmark.measure("PictureSequence.update(" + size + ")", size,
+                    new Benchmark.Task() {
+                @Override
+                public Object run() {
+                    PictureSequence sequence = new PictureSequence(mLogFile, null);
+                    sequence.addAll(initial);
+                    sequence.addAll(added);
+                    sequence.removeAll(removed);
+                    return sequence.size();
+                }
+            });
+        }
+    }
+
+    private static File[] createPictures(int count) {
+        File[] pictures = new File[count];
+        for (int i = 0; i < count; i++) {
+            pictures[i] = new File("/storage/emulated/0/DCIM/Album" + (i / 100)
+                    + "/IMG_" + i + ".jpg");
+        }
+        return pictures;
+    }
+}
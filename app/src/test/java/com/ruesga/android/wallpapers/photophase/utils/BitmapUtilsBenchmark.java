@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.utils;
+
+import android.graphics.Rect;
+
+import com.ruesga.android.wallpapers.photophase.Benchmark;
+import com.ruesga.android.wallpapers.photophase.utils.BitmapUtils.ScalingLogic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Benchmarks of the rect math of {@link BitmapUtils}, run for every picture and frame
+ */
+public class BitmapUtilsBenchmark {
+
+    private static final int OPERATIONS = 1000000;
+
+    // Typical picture and frame sizes
+    private static final int[][] SIZES = {
+            {4000, 3000, 540, 960},
+            {3000, 4000, 1080, 1920},
+            {1920, 1080, 270, 480},
+            {4032, 3024, 1440, 1440}};
+
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+    }
+
+    @Test
+    public void benchmarkCalculateSrcRect() {
+        final Rect r = new Rect();
+        Benchmark.measure("calculateSrcRect(CROP)", OPERATIONS, new Benchmark.Task() {
+            @Override
+            public Object run() {
+                int sum = 0;
+                for (int i = 0; i < OPERATIONS; i++) {
+                    int[] s = SIZES[i & 3];
+                    BitmapUtils.calculateSrcRect(s[0], s[1], s[2] + (i & 7), s[3],
+                            ScalingLogic.CROP, r);
+                    sum += r.left + r.top;
+                }
+                return sum;
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkCalculateDstRect() {
+        final Rect r = new Rect();
+        Benchmark.measure("calculateDstRect(FIT)", OPERATIONS, new Benchmark.Task() {
+            @Override
+            public Object run() {
+                int sum = 0;
+                for (int i = 0; i < OPERATIONS; i++) {
+                    int[] s = SIZES[i & 3];
+                    BitmapUtils.calculateDstRect(s[0], s[1], s[2] + (i & 7), s[3],
+                            ScalingLogic.FIT, r);
+                    sum += r.right + r.bottom;
+                }
+                return sum;
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkCalculateUpperPowerOfTwo() {
+        Benchmark.measure("calculateUpperPowerOfTwo", OPERATIONS, new Benchmark.Task() {
+            @Override
+            public Object run() {
+                int sum = 0;
+                for (int i = 1; i <= OPERATIONS; i++) {
+                    sum += BitmapUtils.calculateUpperPowerOfTwo(i);
+                }
+                return sum;
+            }
+        });
+    }
+}
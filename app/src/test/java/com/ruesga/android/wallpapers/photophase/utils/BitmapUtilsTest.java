@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.utils;
+
+import android.graphics.Rect;
+
+import com.ruesga.android.wallpapers.photophase.utils.BitmapUtils.ScalingLogic;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the rect math of {@link BitmapUtils}. Only the public fields of the rects are
+ * read, because the methods of the framework classes are not available on the JVM.
+ */
+public class BitmapUtilsTest {
+
+    @Test
+    public void testCropLandscapeIntoSquare() {
+        Rect r = BitmapUtils.calculateSrcRect(4000, 3000, 1000, 1000, ScalingLogic.CROP,
+                new Rect());
+        assertRect(500, 0, 3500, 3000, r);
+    }
+
+    @Test
+    public void testCropPortraitIntoLandscape() {
+        Rect r = BitmapUtils.calculateSrcRect(1000, 1000, 1920, 1080, ScalingLogic.CROP,
+                new Rect());
+        assertEquals(0, r.left);
+        assertEquals(1000, r.right);
+        // 1000 / (1920 / 1080) = 562.5
+        assertEquals(562, r.bottom - r.top);
+        assertEquals(219, r.top);
+    }
+
+    @Test
+    public void testCropSameAspectIsIdentity() {
+        Rect r = BitmapUtils.calculateSrcRect(1920, 1080, 960, 540, ScalingLogic.CROP,
+                new Rect());
+        assertRect(0, 0, 1920, 1080, r);
+    }
+
+    @Test
+    public void testFitSourceIsWholeImage() {
+        Rect r = BitmapUtils.calculateSrcRect(4000, 3000, 1000, 1000, ScalingLogic.FIT,
+                new Rect());
+        assertRect(0, 0, 4000, 3000, r);
+    }
+
+    @Test
+    public void testFitDestination() {
+        Rect r = BitmapUtils.calculateDstRect(1000, 2000, 1000, 1000, ScalingLogic.FIT,
+                new Rect());
+        assertRect(0, 0, 500, 1000, r);
+        r = BitmapUtils.calculateDstRect(2000, 1000, 1000, 1000, ScalingLogic.FIT, r);
+        assertRect(0, 0, 1000, 500, r);
+    }
+
+    @Test
+    public void testCropDestinationIsWholeArea() {
+        Rect r = BitmapUtils.calculateDstRect(4000, 3000, 1080, 1920, ScalingLogic.CROP,
+                new Rect());
+        assertRect(0, 0, 1080, 1920, r);
+    }
+
+    @Test
+    public void testCropProperties() {
+        Random random = new Random(1);
+        Rect r = new Rect();
+        for (int i = 0; i < 10000; i++) {
+            int srcWidth = 1 + random.nextInt(8000);
+            int srcHeight = 1 + random.nextInt(8000);
+            int dstWidth = 1 + random.nextInt(4000);
+            int dstHeight = 1 + random.nextInt(4000);
+            BitmapUtils.calculateSrcRect(srcWidth, srcHeight, dstWidth, dstHeight,
+                    ScalingLogic.CROP, r);
+            String msg = srcWidth + "x" + srcHeight + " -> " + dstWidth + "x" + dstHeight;
+
+            // Inside the source, centered and with one full dimension
+            assertTrue(msg, r.left >= 0 && r.top >= 0);
+            assertTrue(msg, r.right <= srcWidth && r.bottom <= srcHeight);
+            assertTrue(msg, Math.abs(r.left - (srcWidth - r.right)) <= 1);
+            assertTrue(msg, Math.abs(r.top - (srcHeight - r.bottom)) <= 1);
+            assertTrue(msg, (r.right - r.left) == srcWidth || (r.bottom - r.top) == srcHeight);
+
+            // With the aspect of the destination (up to the rounding of one pixel)
+            int w = r.right - r.left;
+            int h = r.bottom - r.top;
+            if (w == srcWidth) {
+                assertTrue(msg, Math.abs(h - (double) w * dstHeight / dstWidth) <= 1);
+            } else {
+                assertTrue(msg, Math.abs(w - (double) h * dstWidth / dstHeight) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void testFitProperties() {
+        Random random = new Random(2);
+        Rect r = new Rect();
+        for (int i = 0; i < 10000; i++) {
+            int srcWidth = 1 + random.nextInt(8000);
+            int srcHeight = 1 + random.nextInt(8000);
+            int dstWidth = 1 + random.nextInt(4000);
+            int dstHeight = 1 + random.nextInt(4000);
+            BitmapUtils.calculateDstRect(srcWidth, srcHeight, dstWidth, dstHeight,
+                    ScalingLogic.FIT, r);
+            String msg = srcWidth + "x" + srcHeight + " -> " + dstWidth + "x" + dstHeight;
+
+            // Inside the destination, with one full dimension and the source aspect
+            assertEquals(msg, 0, r.left);
+            assertEquals(msg, 0, r.top);
+            assertTrue(msg, r.right <= dstWidth && r.bottom <= dstHeight);
+            assertTrue(msg, r.right == dstWidth || r.bottom == dstHeight);
+            if (r.right == dstWidth) {
+                double h = (double) r.right * srcHeight / srcWidth;
+                assertTrue(msg, Math.abs(r.bottom - h) <= 1);
+            } else {
+                double w = (double) r.bottom * srcWidth / srcHeight;
+                assertTrue(msg, Math.abs(r.right - w) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void testUpperPowerOfTwo() {
+        assertEquals(1, BitmapUtils.calculateUpperPowerOfTwo(1));
+        assertEquals(2, BitmapUtils.calculateUpperPowerOfTwo(2));
+        assertEquals(4, BitmapUtils.calculateUpperPowerOfTwo(3));
+        assertEquals(1024, BitmapUtils.calculateUpperPowerOfTwo(1000));
+        assertEquals(1024, BitmapUtils.calculateUpperPowerOfTwo(1024));
+        assertEquals(2048, BitmapUtils.calculateUpperPowerOfTwo(1025));
+        assertEquals(1 << 30, BitmapUtils.calculateUpperPowerOfTwo((1 << 29) + 1));
+        for (int v = 1; v <= 1 << 16; v++) {
+            int pot = BitmapUtils.calculateUpperPowerOfTwo(v);
+            assertTrue(BitmapUtils.isPowerOfTwo(pot, pot));
+            assertTrue(pot >= v && pot / 2 < v);
+        }
+    }
+
+    private static void assertRect(int left, int top, int right, int bottom, Rect r) {
+        assertEquals(left, r.left);
+        assertEquals(top, r.top);
+        assertEquals(right, r.right);
+        assertEquals(bottom, r.bottom);
+    }
+}
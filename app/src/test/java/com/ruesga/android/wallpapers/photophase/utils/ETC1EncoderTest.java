@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2015 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ruesga.android.wallpapers.photophase.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link ETC1Encoder}. The encoded images are decoded back following the
+ * OES_compressed_ETC1_RGB8_texture specification, and the golden images are generated
+ * procedurally, so the test doesn't depend on the platform encoder.
+ */
+public class ETC1EncoderTest {
+
+    private static final int[][] MODIFIERS = {
+            {2, 8, -2, -8},
+            {5, 17, -5, -17},
+            {9, 29, -9, -29},
+            {13, 42, -13, -42},
+            {18, 60, -18, -60},
+            {24, 80, -24, -80},
+            {33, 106, -33, -106},
+            {47, 183, -47, -183}};
+
+    @Test
+    public void testEncodedDataSize() {
+        assertEquals(8, ETC1Encoder.getEncodedDataSize(4, 4));
+        assertEquals(8, ETC1Encoder.getEncodedDataSize(1, 1));
+        assertEquals(32, ETC1Encoder.getEncodedDataSize(8, 5));
+        assertEquals(1920 * 1080 / 2, ETC1Encoder.getEncodedDataSize(1920, 1080));
+    }
+
+    @Test
+    public void testSolidBlockGolden() {
+        // Gray 66 is exact in 5 bits (8): differential mode, no delta, table 0, and all
+        // the pixels with the first modifier (+2)
+        int[] block = new int[16];
+        for (int i = 0; i < 16; i++) {
+            block[i] = 0xff424242;
+        }
+        byte[] out = new byte[ETC1Encoder.BLOCK_SIZE];
+        ETC1Encoder.encodeBlock(block, out);
+        assertArrayEquals(new byte[]{0x40, 0x40, 0x40, 0x02, 0, 0, 0, 0}, out);
+    }
+
+    @Test
+    public void testSplitBlockUsesIndividualMode() {
+        // Black and white halves are too far apart for the differential mode, but both
+        // are exact in the individual mode
+        int[] block = new int[16];
+        int[] image = new int[16];
+        for (int i = 0; i < 16; i++) {
+            // The left half (columns 0 and 1) is black
+            block[i] = i < 8 ? 0xff000000 : 0xffffffff;
+            image[i] = (i & 3) < 2 ? 0xff000000 : 0xffffffff;
+        }
+        byte[] out = new byte[ETC1Encoder.BLOCK_SIZE];
+        ETC1Encoder.encodeBlock(block, out);
+        assertEquals(0, out[3] & 0x02);
+        assertEquals(0, maxError(image, decode(out, 4, 4)));
+    }
+
+    @Test
+    public void testSolidColorsAreNearlyExact() {
+        int[] block = new int[16];
+        byte[] out = new byte[ETC1Encoder.BLOCK_SIZE];
+        for (int c = 0; c < 256; c += 5) {
+            int color = 0xff000000 | (c << 16) | ((255 - c) << 8) | (c / 2);
+            for (int i = 0; i < 16; i++) {
+                block[i] = color;
+            }
+            ETC1Encoder.encodeBlock(block, out);
+            // The base color is quantized to 5 bits and the smallest modifier is +-2
+            assertTrue("color " + Integer.toHexString(color),
+                    maxError(block, decode(out, 4, 4)) <= 6);
+        }
+    }
+
+    @Test
+    public void testGoldenGradient() {
+        assertGolden(gradient(64, 48), 64, 48, 0x5cd5c30bL, 34f);
+    }
+
+    @Test
+    public void testGoldenCheckerboard() {
+        assertGolden(checkerboard(32, 32), 32, 32, 0x7c7c094cL, 30f);
+    }
+
+    @Test
+    public void testGoldenNoisyGradient() {
+        // Dimensions not multiple of 4
+        assertGolden(noisyGradient(30, 18), 30, 18, 0x9b583cddL, 28f);
+    }
+
+    @Test
+    public void testStripsMatchWholeImage() {
+        // Bitmaps are encoded by strips of 4 rows
+        final int w = 30;
+        final int h = 18;
+        int[] argb = noise(w, h);
+        ByteBuffer whole = ByteBuffer.allocate(ETC1Encoder.getEncodedDataSize(w, h));
+        ETC1Encoder.encodeImage(argb, w, h, whole);
+        ByteBuffer strips = ByteBuffer.allocate(ETC1Encoder.getEncodedDataSize(w, h));
+        int[] strip = new int[w * 4];
+        for (int y = 0; y < h; y += 4) {
+            int rows = Math.min(4, h - y);
+            System.arraycopy(argb, y * w, strip, 0, rows * w);
+            ETC1Encoder.encodeImage(strip, w, rows, strips);
+        }
+        assertArrayEquals(whole.array(), strips.array());
+    }
+
+    private static void assertGolden(int[] argb, int w, int h, long golden, float minPsnr) {
+        ByteBuffer out = ByteBuffer.allocate(ETC1Encoder.getEncodedDataSize(w, h));
+        ETC1Encoder.encodeImage(argb, w, h, out);
+        assertEquals(out.capacity(), out.position());
+
+        // The encoded image must match the golden one (any change of the encoder must be
+        // checked against the psnr before updating the checksum)
+        assertEquals(golden, crc(out.array()));
+
+        float psnr = psnr(argb, decode(out.array(), w, h));
+        assertTrue("psnr " + psnr, psnr >= minPsnr);
+    }
+
+    private static int[] gradient(int w, int h) {
+        int[] argb = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int r = x * 255 / (w - 1);
+                int g = y * 255 / (h - 1);
+                int b = (x + y) * 255 / (w + h - 2);
+                argb[y * w + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return argb;
+    }
+
+    private static int[] checkerboard(int w, int h) {
+        int[] argb = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                boolean on = ((x / 8) + (y / 8)) % 2 == 0;
+                argb[y * w + x] = on ? 0xffc03020 : 0xff2040a0;
+            }
+        }
+        return argb;
+    }
+
+    private static int[] noise(int w, int h) {
+        // A fixed linear congruential generator, so the image is always the same
+        int[] argb = new int[w * h];
+        int seed = 12345;
+        for (int i = 0; i < argb.length; i++) {
+            seed = seed * 1103515245 + 12345;
+            argb[i] = 0xff000000 | ((seed >>> 8) & 0xffffff);
+        }
+        return argb;
+    }
+
+    private static int[] noisyGradient(int w, int h) {
+        // A gradient with up to +-8 of noise per channel (like the grain of a photo)
+        int[] argb = gradient(w, h);
+        int[] noise = noise(w, h);
+        for (int i = 0; i < argb.length; i++) {
+            int c = 0xff000000;
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int v = ((argb[i] >> shift) & 0xff) + (((noise[i] >> shift) & 0xf) - 8);
+                c |= clamp(v) << shift;
+            }
+            argb[i] = c;
+        }
+        return argb;
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static int maxError(int[] expected, int[] actual) {
+        int max = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int e = ((expected[i] >> shift) & 0xff) - ((actual[i] >> shift) & 0xff);
+                max = Math.max(max, Math.abs(e));
+            }
+        }
+        return max;
+    }
+
+    private static float psnr(int[] expected, int[] actual) {
+        double sum = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int e = ((expected[i] >> shift) & 0xff) - ((actual[i] >> shift) & 0xff);
+                sum += e * e;
+            }
+        }
+        double mse = sum / (expected.length * 3);
+        return mse == 0 ? Float.MAX_VALUE : (float) (10 * Math.log10(255 * 255 / mse));
+    }
+
+    /**
+     * A reference decoder that follows the specification
+     */
+    private static int[] decode(byte[] data, int w, int h) {
+        int[] argb = new int[w * h];
+        int blocksX = (w + 3) / 4;
+        int blocksY = (h + 3) / 4;
+        for (int by = 0; by < blocksY; by++) {
+            for (int bx = 0; bx < blocksX; bx++) {
+                long bits = 0;
+                int offset = (by * blocksX + bx) * 8;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | (data[offset + i] & 0xff);
+                }
+                boolean diff = ((bits >>> 33) & 1) != 0;
+                boolean flip = ((bits >>> 32) & 1) != 0;
+                int[] c1 = new int[3];
+                int[] c2 = new int[3];
+                for (int ch = 0; ch < 3; ch++) {
+                    if (diff) {
+                        int shift = 59 - ch * 8;
+                        int base = (int) ((bits >>> shift) & 0x1f);
+                        int delta = (int) ((bits >>> (shift - 3)) & 0x7);
+                        delta = delta >= 4 ? delta - 8 : delta;
+                        int second = base + delta;
+                        c1[ch] = (base << 3) | (base >> 2);
+                        c2[ch] = (second << 3) | (second >> 2);
+                    } else {
+                        int shift = 60 - ch * 8;
+                        int first = (int) ((bits >>> shift) & 0xf);
+                        int second = (int) ((bits >>> (shift - 4)) & 0xf);
+                        c1[ch] = (first << 4) | first;
+                        c2[ch] = (second << 4) | second;
+                    }
+                }
+                int table1 = (int) ((bits >>> 37) & 0x7);
+                int table2 = (int) ((bits >>> 34) & 0x7);
+                for (int x = 0; x < 4; x++) {
+                    for (int y = 0; y < 4; y++) {
+                        int i = x * 4 + y;
+                        boolean first = flip ? y < 2 : x < 2;
+                        int index = (int) ((((bits >>> (16 + i)) & 1) << 1) | ((bits >>> i) & 1));
+                        int mod = MODIFIERS[first ? table1 : table2][index];
+                        int[] c = first ? c1 : c2;
+                        int px = bx * 4 + x;
+                        int py = by * 4 + y;
+                        if (px < w && py < h) {
+                            argb[py * w + px] = 0xff000000 | (clamp(c[0] + mod) << 16)
+                                    | (clamp(c[1] + mod) << 8) | clamp(c[2] + mod);
+                        }
+                    }
+                }
+            }
+        }
+        return argb;
+    }
+
+    private static int clamp(int c) {
+        return c < 0 ? 0 : (c > 255 ? 255 : c);
+    }
+}
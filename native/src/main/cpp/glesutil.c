@@ -15,14 +15,188 @@
  */
 
 #include <jni.h>
+#include <string.h>
+#include <android/bitmap.h>
+#include <EGL/egl.h>
 #include <GLES2/gl2.h>
+#include <GLES2/gl2ext.h>
+
+#define UPLOAD_OK                0
+#define UPLOAD_ERROR_LOCK       -1
+#define UPLOAD_ERROR_FORMAT     -2
+#define UPLOAD_ERROR_GL         -3
+
+/**
+ * Resolves the gl format and type of a bitmap, and sets the unpack alignment of its rows.
+ * Returns 0 if the bitmap can be uploaded directly from its pixels.
+ */
+static int resolve_format(AndroidBitmapInfo *info, GLenum *format, GLenum *type) {
+    int bpp;
+    switch (info->format) {
+        case ANDROID_BITMAP_FORMAT_RGBA_8888:
+            *format = GL_RGBA;
+            *type = GL_UNSIGNED_BYTE;
+            bpp = 4;
+            break;
+        case ANDROID_BITMAP_FORMAT_RGB_565:
+            *format = GL_RGB;
+            *type = GL_UNSIGNED_SHORT_5_6_5;
+            bpp = 2;
+            break;
+        default:
+            return UPLOAD_ERROR_FORMAT;
+    }
+
+    // GLES2 has no GL_UNPACK_ROW_LENGTH, so the rows must be tightly packed (apart
+    // from the alignment)
+    int row = info->width * bpp;
+    int alignment = (info->stride % 4) == 0 ? 4 : ((info->stride % 2) == 0 ? 2 : 1);
+    if (info->stride != ((row + alignment - 1) / alignment) * alignment) {
+        return UPLOAD_ERROR_FORMAT;
+    }
+    glPixelStorei(GL_UNPACK_ALIGNMENT, alignment);
+    return UPLOAD_OK;
+}
+
+/**
+ * Uploads the pixels of a bitmap to the bound texture, without any intermediate copy. If
+ * sub is true, the pixels are uploaded with glTexSubImage2D at the passed offsets.
+ */
+static jint upload(JNIEnv *env, jobject bitmap, jboolean sub, jint xoffset, jint yoffset) {
+    AndroidBitmapInfo info;
+    void *pixels;
+    GLenum format, type;
+    jint ret;
+
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        return UPLOAD_ERROR_LOCK;
+    }
+    ret = resolve_format(&info, &format, &type);
+    if (ret != UPLOAD_OK) {
+        return ret;
+    }
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        return UPLOAD_ERROR_LOCK;
+    }
+
+    if (sub) {
+        glTexSubImage2D(GL_TEXTURE_2D, 0, xoffset, yoffset, info.width, info.height,
+                format, type, pixels);
+    } else {
+        glTexImage2D(GL_TEXTURE_2D, 0, format, info.width, info.height, 0,
+                format, type, pixels);
+    }
+    ret = glGetError() == GL_NO_ERROR ? UPLOAD_OK : UPLOAD_ERROR_GL;
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+    glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+    return ret;
+}
 
 /**
- * Binds a IntBuffer image to OpenGL glTexSubImage2D
+ * Binds the pixels of a bitmap to OpenGL glTexImage2D
  */
-JNIEXPORT void JNICALL
+JNIEXPORT jint JNICALL
 Java_com_ruesga_android_wallpapers_photophase_glesnative_GLESNative_nativeGlTexImage2D
-        (JNIEnv *env, jclass clazz, jobject image, jint width, jint height) {
-    jint *pixels = (*env)->GetDirectBufferAddress(env, image);
-    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+        (JNIEnv *env, jclass clazz, jobject bitmap) {
+    return upload(env, bitmap, JNI_FALSE, 0, 0);
+}
+
+/**
+ * Binds the pixels of a bitmap to OpenGL glTexSubImage2D
+ */
+JNIEXPORT jint JNICALL
+Java_com_ruesga_android_wallpapers_photophase_glesnative_GLESNative_nativeGlTexSubImage2D
+        (JNIEnv *env, jclass clazz, jobject bitmap, jint xoffset, jint yoffset) {
+    return upload(env, bitmap, JNI_TRUE, xoffset, yoffset);
+}
+
+static PFNGLGETPROGRAMBINARYOESPROC glGetProgramBinaryOESProc = NULL;
+static PFNGLPROGRAMBINARYOESPROC glProgramBinaryOESProc = NULL;
+
+/**
+ * Returns whether the current context supports OES_get_program_binary. Must be called from
+ * the GLThread before any other program binary method.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_ruesga_android_wallpapers_photophase_glesnative_GLESNative_nativeIsProgramBinarySupported
+        (JNIEnv *env, jclass clazz) {
+    const char *extensions = (const char *) glGetString(GL_EXTENSIONS);
+    GLint formats = 0;
+
+    if (extensions == NULL || strstr(extensions, "GL_OES_get_program_binary") == NULL) {
+        return JNI_FALSE;
+    }
+    glGetIntegerv(GL_NUM_PROGRAM_BINARY_FORMATS_OES, &formats);
+    if (formats <= 0) {
+        return JNI_FALSE;
+    }
+    if (glGetProgramBinaryOESProc == NULL || glProgramBinaryOESProc == NULL) {
+        glGetProgramBinaryOESProc =
+                (PFNGLGETPROGRAMBINARYOESPROC) eglGetProcAddress("glGetProgramBinaryOES");
+        glProgramBinaryOESProc =
+                (PFNGLPROGRAMBINARYOESPROC) eglGetProcAddress("glProgramBinaryOES");
+    }
+    return glGetProgramBinaryOESProc != NULL && glProgramBinaryOESProc != NULL;
+}
+
+/**
+ * Returns the binary of a linked program (and its format in the first item of the passed
+ * array), or null if the binary can't be retrieved
+ */
+JNIEXPORT jbyteArray JNICALL
+Java_com_ruesga_android_wallpapers_photophase_glesnative_GLESNative_nativeGetProgramBinary
+        (JNIEnv *env, jclass clazz, jint program, jintArray format) {
+    GLint length = 0;
+    GLsizei written = 0;
+    GLenum binaryFormat = 0;
+    jbyteArray binary;
+    jbyte *data;
+    jint f;
+
+    if (glGetProgramBinaryOESProc == NULL) {
+        return NULL;
+    }
+    glGetProgramiv(program, GL_PROGRAM_BINARY_LENGTH_OES, &length);
+    if (length <= 0) {
+        return NULL;
+    }
+    binary = (*env)->NewByteArray(env, length);
+    if (binary == NULL) {
+        return NULL;
+    }
+    data = (*env)->GetByteArrayElements(env, binary, NULL);
+    glGetProgramBinaryOESProc(program, length, &written, &binaryFormat, data);
+    (*env)->ReleaseByteArrayElements(env, binary, data, 0);
+    if (glGetError() != GL_NO_ERROR || written != length) {
+        return NULL;
+    }
+
+    f = (jint) binaryFormat;
+    (*env)->SetIntArrayRegion(env, format, 0, 1, &f);
+    return binary;
+}
+
+/**
+ * Loads a program from a binary. Returns whether the program was linked successfully.
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_ruesga_android_wallpapers_photophase_glesnative_GLESNative_nativeProgramBinary
+        (JNIEnv *env, jclass clazz, jint program, jint format, jbyteArray binary) {
+    GLint status = 0;
+    jsize length;
+    jbyte *data;
+
+    if (glProgramBinaryOESProc == NULL) {
+        return JNI_FALSE;
+    }
+    length = (*env)->GetArrayLength(env, binary);
+    data = (*env)->GetByteArrayElements(env, binary, NULL);
+    glProgramBinaryOESProc(program, (GLenum) format, data, length);
+    (*env)->ReleaseByteArrayElements(env, binary, data, JNI_ABORT);
+
+    // Drivers reject binaries from other driver versions, so always check the link status
+    glGetProgramiv(program, GL_LINK_STATUS, &status);
+    glGetError();
+    return status == GL_TRUE;
 }
@@ -19,22 +19,18 @@ package com.ruesga.android.wallpapers.photophase.glesnative;
 import android.graphics.Bitmap;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-
 public final class GLESNative {
 
     private static final String TAG = "GLESNative";
 
-    private static boolean NATIVE_TEXTURE_BIND = true;
+    private static final boolean DEBUG = false;
 
-    private static IntBuffer sNativeBuffer;
+    private static boolean NATIVE_TEXTURE_BIND = true;
 
     static {
         if (NATIVE_TEXTURE_BIND) {
             try {
                 System.loadLibrary("photophase");
-                sNativeBuffer = null;
             } catch (UnsatisfiedLinkError ex) {
                 NATIVE_TEXTURE_BIND = false;
                 Log.w(TAG, "Can't load native library. Fallback to android texImage2D version", ex);
@@ -46,19 +42,79 @@ public final class GLESNative {
         return NATIVE_TEXTURE_BIND;
     }
 
-    public static void glTexImage2D(Bitmap texture) {
-        // Create a buffer from the image
-        int width = texture.getWidth();
-        int height = texture.getHeight();
-        final int size = height * texture.getRowBytes();
-        if (sNativeBuffer == null || sNativeBuffer.capacity() < size) {
-            sNativeBuffer = ByteBuffer.allocateDirect(size * 4).asIntBuffer();
-        } else {
-            sNativeBuffer.clear();
+    /**
+     * Uploads the pixels of the bitmap to the bound texture. The pixels are read in place,
+     * without copying them to an intermediate buffer.
+     *
+     * @param texture The bitmap to upload (ARGB_8888 or RGB_565)
+     * @return boolean If the bitmap was uploaded. Otherwise the caller must fallback to
+     * the android texImage2D version
+     */
+    public static boolean glTexImage2D(Bitmap texture) {
+        return onUploaded(texture, nativeGlTexImage2D(texture));
+    }
+
+    /**
+     * Uploads the pixels of the bitmap to a region of the bound texture, which must be
+     * already allocated. The pixels are read in place, without copying them to an
+     * intermediate buffer.
+     *
+     * @param texture The bitmap to upload (ARGB_8888 or RGB_565)
+     * @param xoffset The x offset of the region
+     * @param yoffset The y offset of the region
+     * @return boolean If the bitmap was uploaded. Otherwise the caller must fallback to
+     * the android texSubImage2D version
+     */
+    public static boolean glTexSubImage2D(Bitmap texture, int xoffset, int yoffset) {
+        return onUploaded(texture, nativeGlTexSubImage2D(texture, xoffset, yoffset));
+    }
+
+    /**
+     * Returns whether the current GLES context supports retrieving and loading program
+     * binaries (OES_get_program_binary). Must be called from the GLThread.
+     *
+     * @return boolean If program binaries are supported
+     */
+    public static boolean isProgramBinarySupported() {
+        return NATIVE_TEXTURE_BIND && nativeIsProgramBinarySupported();
+    }
+
+    /**
+     * Returns the binary of a linked program
+     *
+     * @param program The program
+     * @param format An array where to return the binary format
+     * @return byte[] The binary or null if it can't be retrieved
+     */
+    public static byte[] glGetProgramBinary(int program, int[] format) {
+        return nativeGetProgramBinary(program, format);
+    }
+
+    /**
+     * Loads a program from a binary previously retrieved with
+     * {@link #glGetProgramBinary(int, int[])}
+     *
+     * @param program The program
+     * @param format The binary format
+     * @param binary The binary
+     * @return boolean If the program was loaded and linked successfully
+     */
+    public static boolean glProgramBinary(int program, int format, byte[] binary) {
+        return nativeProgramBinary(program, format, binary);
+    }
+
+    private static boolean onUploaded(Bitmap texture, int ret) {
+        if (ret != 0) {
+            Log.w(TAG, "Native upload failed (" + ret + ") for " + texture.getConfig());
+            return false;
         }
-        texture.copyPixelsToBuffer(sNativeBuffer);
-        nativeGlTexImage2D(sNativeBuffer, width, height);
+        if (DEBUG) Log.d(TAG, "Uploaded " + texture.getWidth() + "x" + texture.getHeight());
+        return true;
     }
 
-    private static native void nativeGlTexImage2D(IntBuffer image, int width, int height);
+    private static native int nativeGlTexImage2D(Bitmap image);
+    private static native int nativeGlTexSubImage2D(Bitmap image, int xoffset, int yoffset);
+    private static native boolean nativeIsProgramBinarySupported();
+    private static native byte[] nativeGetProgramBinary(int program, int[] format);
+    private static native boolean nativeProgramBinary(int program, int format, byte[] binary);
 }